@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 
 public class BlockMatrix {
 
@@ -104,6 +105,33 @@ public class BlockMatrix {
     }
 
 
+    //bulk "delete": clears the info of transactionNumbers[i] in block blockNumbers[i] for every i, then recalculates each affected row and column hash once
+    public void clearInfoInTransactions(int[] blockNumbers, int[] transactionNumbers) {
+        if (blockNumbers.length != transactionNumbers.length) {
+            throw new IllegalArgumentException("There must be exactly one transaction number for each block number.");
+        }
+        HashSet<Integer> rows = new HashSet<>();
+        HashSet<Integer> columns = new HashSet<>();
+        for (int i = 0; i < blockNumbers.length; i++) {
+            this.blocksWithModifiedData.add(blockNumbers[i]);
+            getBlock(blockNumbers[i]).clearInfoInTransactionsInBlock(transactionNumbers[i]);
+            rows.add(getBlockRowIndex(blockNumbers[i]));
+            columns.add(getBlockColumnIndex(blockNumbers[i]));
+        }
+        String[] prevRowHashes = this.getRowHashes().clone();
+        String[] prevColumnHashes = this.getColumnHashes().clone();
+        for (int row : rows) {
+            updateRowHash(row);
+        }
+        for (int column : columns) {
+            updateColumnHash(column);
+        }
+        if (!checkValidBulkDeletion(prevRowHashes, prevColumnHashes, rows, columns)) {
+            System.out.println("Bad deletion, row and column hashes affected other than those of the cleared blocks");
+            deletionValidity = false;
+        }
+    }
+
     //Uses data in each block in the row except those that are null and those in the diagonal
     private void updateRowHash(int row) {
         rowHashes[row] =  calculateRowHash(row);
@@ -181,6 +209,19 @@ public class BlockMatrix {
         return true;
     }
 
+    //tests to make sure exactly the row and column hashes of the cleared blocks have been modified. If not, then integrity is likely compromised
+    private boolean checkValidBulkDeletion(String[] prevRow, String[] prevCol, HashSet<Integer> rows, HashSet<Integer> columns) {
+        for (int i = 0; i < dimension; i++) {
+            if (prevRow[i].equals(rowHashes[i]) == rows.contains(i)) {
+                return false;
+            }
+            if (prevCol[i].equals(columnHashes[i]) == columns.contains(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     //gets the number of blocks that have been entered
     public int getInputCount() {
         return inputCount;
@@ -7,10 +7,19 @@ import java.util.Base64;
 
 public class StringUtil {
 
+    //One SHA-256 digest per thread, reused instead of looked up for every hash
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
     static String applySha256(String input){
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            //Applies sha256 to our input,
+            MessageDigest digest = SHA256.get();
+            //Applies sha256 to our input, digest() resets the digest for the next call
             byte[] hash = digest.digest(input.getBytes("UTF-8"));
             StringBuffer hexString = new StringBuffer(); // This will contain hash as hexidecimal
             for (int i = 0; i < hash.length; i++) {
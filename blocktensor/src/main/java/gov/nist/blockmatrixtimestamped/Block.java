@@ -1,11 +1,11 @@
 package gov.nist.blockmatrixtimestamped;
 
-import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
  * Class for a block of data. Stores the data, the timestamp and the hash of these two. The data and the hash are
- * stored as byte arrays. The class knows how to calculate hash of itself using SHA-256 algorithm.
+ * stored as byte arrays. The class knows how to calculate hash of itself using SHA-256 algorithm or any other
+ * {@link HashEngine}.
  */
 public class Block {
     /**
@@ -30,9 +30,39 @@ public class Block {
      * @throws NullPointerException     if data is null
      */
     public Block(long timestamp, byte[] data) throws IllegalArgumentException, NullPointerException {
+        this(timestamp, data, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new block with given parameters, hashed with the given hash engine.
+     *
+     * @param timestamp  timestamp, a non-negative long.
+     * @param data       data to be stored, size of the array should be less than 1073741824 (1 gibibyte)
+     * @param hashEngine hash engine to calculate the hash with
+     * @throws IllegalArgumentException if the timestamp is negative or the size of the data array is too large
+     * @throws NullPointerException     if data is null
+     */
+    public Block(long timestamp, byte[] data, HashEngine hashEngine)
+            throws IllegalArgumentException, NullPointerException {
+        setTimestamp(timestamp);
+        setData(data);
+        setHash(calculateHash(hashEngine));
+    }
+
+    /**
+     * Create new block with given parameters and a hash calculated already, for example while the data was read.
+     *
+     * @param timestamp timestamp, a non-negative long.
+     * @param data      data to be stored, size of the array should be less than 1073741824 (1 gibibyte)
+     * @param hash      hash of the timestamp and the data
+     * @throws IllegalArgumentException if the timestamp is negative, the size of the data array is too large or the
+     *                                  hash is empty
+     * @throws NullPointerException     if data or hash is null
+     */
+    Block(long timestamp, byte[] data, byte[] hash) throws IllegalArgumentException, NullPointerException {
         setTimestamp(timestamp);
         setData(data);
-        setHash(calculateHash());
+        setHash(hash);
     }
 
     /**
@@ -76,16 +106,40 @@ public class Block {
      * @return hash byte array of size 32
      */
     public byte[] calculateHash() {
-        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES + data.length);
-        buf.putLong(timestamp);
-        buf.put(data);
-        return SecurityUtil.applySha256(buf.array());
+        return calculateHash(SecurityUtil.SHA256);
+    }
+
+    /**
+     * Calculate the hash of the timestamp and the data concatenated (in this order) with the given hash engine. The
+     * data is fed to the engine directly, it is not copied.
+     *
+     * @param hashEngine hash engine
+     * @return hash byte array of size hashEngine.getDigestLength()
+     */
+    public byte[] calculateHash(HashEngine hashEngine) {
+        Hasher hasher = hashEngine.hasher();
+        hasher.updateLong(timestamp);
+        hasher.update(data);
+        return hasher.digest();
+    }
+
+    /**
+     * Calculate the hash of the timestamp and the data concatenated (in this order) into the given array, using the
+     * given hasher. Nothing is allocated.
+     *
+     * @param hasher reset hasher
+     * @param hash   array to store the hash in
+     */
+    void calculateHash(Hasher hasher, byte[] hash) {
+        hasher.updateLong(timestamp);
+        hasher.update(data);
+        hasher.digest(hash, 0);
     }
 
     /**
      * Get hash.
      *
-     * @return hash, byte array of size 32
+     * @return hash, byte array of size 32 for SHA-256
      */
     public byte[] getHash() {
         return hash;
@@ -94,14 +148,14 @@ public class Block {
     /**
      * Set hash.
      *
-     * @param hash hash, non-null byte array of size 32
-     * @throws IllegalArgumentException if hash is not of size 32
+     * @param hash hash, non-null and non-empty byte array, of size 32 for SHA-256
+     * @throws IllegalArgumentException if hash is empty
      * @throws NullPointerException     if hash is null
      */
     public void setHash(byte[] hash) throws IllegalArgumentException, NullPointerException {
         Objects.requireNonNull(hash);
-        if (hash.length != BlockTensor.HASH_ARRAY_SIZE)
-            throw new IllegalArgumentException("Hash must be SHA256 - 32 bytes long.");
+        if (hash.length == 0)
+            throw new IllegalArgumentException("Hash must not be empty.");
         this.hash = hash;
     }
 
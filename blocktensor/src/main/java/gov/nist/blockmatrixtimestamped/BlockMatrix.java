@@ -1,10 +1,10 @@
 package gov.nist.blockmatrixtimestamped;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class BlockMatrix {
     private static final int HASH_ARRAY_SIZE = 32;
+    private static final byte[] ZERO_HASH = new byte[HASH_ARRAY_SIZE]; // padding for the missing blocks of a line
     private final int matrixWidth; // blockmatrix size is matrixWidth^dimension
     private int inputCount; // how many Blocks have been added to the blockmatrix
     private boolean deletionValidity; // whether or not all deletions have been valid. Used to check blockmatrix validity
@@ -125,25 +125,37 @@ public class BlockMatrix {
         columnHashes[column] = calculateColumnHash(column);
     }
 
+    // the present hashes are streamed to the hasher followed by zeros, the same bytes as a zero-filled buffer
+    // of matrixWidth hashes with the present hashes at the start
     private byte[] calculateRowHash(int row) {
-        ByteBuffer buf = ByteBuffer.allocate(HASH_ARRAY_SIZE * matrixWidth);
+        Hasher hasher = SecurityUtil.SHA256.hasher();
+        int present = 0;
         for (int column = 0; column < matrixWidth; column++) {
             if (row != column && blockData[row][column] != null) {
-                buf.put(blockData[row][column].getHash());
+                hasher.update(blockData[row][column].getHash());
+                present++;
             }
         }
-        return SecurityUtil.applySha256(buf.array());
+        return padAndDigest(hasher, present);
     }
 
     private byte[] calculateColumnHash(int column) {
-        ByteBuffer buf = ByteBuffer.allocate(HASH_ARRAY_SIZE * matrixWidth);
+        Hasher hasher = SecurityUtil.SHA256.hasher();
+        int present = 0;
         for (int row = 0; row < matrixWidth; row++) {
             if (row != column && blockData[row][column] != null) {
-                buf.put(blockData[row][column].getHash());
+                hasher.update(blockData[row][column].getHash());
+                present++;
             }
         }
+        return padAndDigest(hasher, present);
+    }
 
-        return SecurityUtil.applySha256(buf.array());
+    private byte[] padAndDigest(Hasher hasher, int present) {
+        for (int i = present; i < matrixWidth; i++) {
+            hasher.update(ZERO_HASH);
+        }
+        return hasher.digest();
     }
 
     //tests to make sure only one row hash and one column hash have been modified. If not, then integrity is likely compromised
@@ -0,0 +1,201 @@
+package gov.nist.blockmatrixtimestamped;
+
+/**
+ * Mapping between block numbers and one-dimensional cell indexes of a blocktensor, computed arithmetically. Block
+ * number 0 corresponds to {0,0,...,0} and subsequent block numbers follow the breadth-first search from this point,
+ * which is the same as ordering the cells by the sum of their indexes and then by their indexes in descending
+ * lexicographic order. For example, in 2 dimensions the order is {0,0}, {1,0}, {0,1}, {2,0}, {1,1}, {0,2}, ...
+ * <p>
+ * Only a table of (dimCount+1)*(dimCount*(width-1)+1) counts is stored, so the mapping does not depend on the
+ * capacity of the blocktensor and works for capacities that do not fit into an int. Both directions take
+ * O(dimCount*log(width)) time.
+ */
+final class BlockNumbering {
+    /**
+     * Width of the blocktensor.
+     */
+    private final int width;
+    /**
+     * Dimension count of the blocktensor.
+     */
+    private final int dimCount;
+    /**
+     * Number of cells, width^dimCount.
+     */
+    private final long capacity;
+    /**
+     * Maximal sum of indexes of a cell, dimCount*(width-1).
+     */
+    private final int maxLevel;
+    /**
+     * Strides of the dimensions in the one-dimensional index, strides[i] = width^(dimCount-1-i).
+     */
+    private final long[] strides;
+    /**
+     * cumulative[k][s] is the number of k-dimensional indexes with each index in [0 .. width) and the sum of indexes
+     * not greater than s.
+     */
+    private final long[][] cumulative;
+
+    /**
+     * Create new mapping for the given width and dimension count.
+     *
+     * @param width    width, a positive integer
+     * @param dimCount dimension count, a positive integer
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or width^dimCount does not
+     *                                  fit into a long
+     */
+    BlockNumbering(int width, int dimCount) throws IllegalArgumentException {
+        if (dimCount < 1)
+            throw new IllegalArgumentException("Dimension count must be greater than zero.");
+        if (width < 1)
+            throw new IllegalArgumentException("Width must be greater than zero.");
+
+        this.width = width;
+        this.dimCount = dimCount;
+        try {
+            this.capacity = Tensor.binPowExact(width, dimCount);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Capacity width^dimCount must not exceed " + Long.MAX_VALUE + ".");
+        }
+        // cannot overflow, since width^dimCount fits into a long
+        this.maxLevel = dimCount * (width - 1);
+
+        this.strides = new long[dimCount];
+        long stride = 1;
+        for (int i = dimCount - 1; i >= 0; --i) {
+            strides[i] = stride;
+            stride *= width;
+        }
+
+        this.cumulative = new long[dimCount + 1][maxLevel + 1];
+        // there is exactly one zero-dimensional index and its sum is 0
+        for (int s = 0; s <= maxLevel; ++s)
+            cumulative[0][s] = 1;
+        for (int k = 1; k <= dimCount; ++k) {
+            long total = 0;
+            for (int s = 0; s <= maxLevel; ++s) {
+                // number of k-dimensional indexes with sum exactly s: the last index takes values [0 .. width)
+                total += cumulative(k - 1, s) - cumulative(k - 1, s - width);
+                cumulative[k][s] = total;
+            }
+        }
+    }
+
+    /**
+     * Get number of cells.
+     *
+     * @return width^dimCount
+     */
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get stride of the dimension in the one-dimensional index.
+     *
+     * @param dimIdx index of the dimension, in the interval [0 .. dimCount)
+     * @return width^(dimCount-1-dimIdx)
+     */
+    long stride(int dimIdx) {
+        return strides[dimIdx];
+    }
+
+    /**
+     * Convert block number to the one-dimensional index of its cell.
+     *
+     * @param blockNumber block number, in the interval [0 .. width^dimCount)
+     * @return one-dimensional index of the cell
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    long toIndex(long blockNumber) throws IndexOutOfBoundsException {
+        Tensor.checkIndex(blockNumber, capacity);
+
+        // find the level (sum of indexes) of the block: the first level with more than blockNumber cells up to it
+        int lo = 0;
+        int hi = maxLevel;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[dimCount][mid] > blockNumber)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        int remaining = lo;
+        // position among the cells of the same level in descending lexicographic order
+        long rank = blockNumber - cumulative(dimCount, remaining - 1);
+
+        long index = 0;
+        for (int i = 0; i < dimCount; ++i) {
+            int k = dimCount - 1 - i;
+            int maxValue = Math.min(width - 1, remaining);
+            // cells with larger values come first, so take the smallest value preceded by at most rank cells
+            int a = 0;
+            int b = maxValue;
+            while (a < b) {
+                int mid = (a + b) >>> 1;
+                if (countGreater(k, remaining, mid, maxValue) <= rank)
+                    b = mid;
+                else
+                    a = mid + 1;
+            }
+            rank -= countGreater(k, remaining, a, maxValue);
+            remaining -= a;
+            index += a * strides[i];
+        }
+        assert rank == 0 && remaining == 0;
+        return index;
+    }
+
+    /**
+     * Convert the one-dimensional index of a cell to its block number.
+     *
+     * @param index one-dimensional index of the cell, in the interval [0 .. width^dimCount)
+     * @return block number
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    long toBlockNumber(long index) throws IndexOutOfBoundsException {
+        Tensor.checkIndex(index, capacity);
+
+        int level = 0;
+        for (int i = 0; i < dimCount; ++i)
+            level += (int) (index / strides[i] % width);
+
+        long blockNumber = cumulative(dimCount, level - 1);
+        int remaining = level;
+        for (int i = 0; i < dimCount; ++i) {
+            int value = (int) (index / strides[i] % width);
+            blockNumber += countGreater(dimCount - 1 - i, remaining, value, Math.min(width - 1, remaining));
+            remaining -= value;
+        }
+        return blockNumber;
+    }
+
+    /**
+     * Count the indexes with the given prefix whose next index is greater than the given value, and whose remaining
+     * k indexes complete the sum.
+     *
+     * @param k         number of indexes after the next one
+     * @param remaining sum of the next index and the k indexes after it
+     * @param value     value the next index must exceed
+     * @param maxValue  maximal value of the next index, min(width-1, remaining)
+     * @return number of such indexes
+     */
+    private long countGreater(int k, int remaining, int value, int maxValue) {
+        // the next index takes values (value .. maxValue], the k indexes after it sum to remaining minus that
+        return cumulative(k, remaining - value - 1) - cumulative(k, remaining - maxValue - 1);
+    }
+
+    /**
+     * Number of k-dimensional indexes with the sum not greater than s.
+     *
+     * @param k number of dimensions, in the interval [0 .. dimCount]
+     * @param s maximal sum, any integer
+     * @return number of indexes
+     */
+    private long cumulative(int k, int s) {
+        if (s < 0)
+            return 0;
+        return cumulative[k][Math.min(s, maxLevel)];
+    }
+}
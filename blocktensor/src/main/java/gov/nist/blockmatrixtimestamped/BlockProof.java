@@ -0,0 +1,445 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * Integrity proof of one block of a blocktensor. It holds the hash of the block and, for each of the dimCount lines
+ * through the block, the hashes of the other width-1 blocks of the line in order and the line hash. A client that
+ * trusts the line hashes of the blocktensor can check the block with dimCount*width hashes, see
+ * {@link #verify(BlockProof, HashEngine, int, int, long, byte[], IntFunction)}. The proof also holds the path of each
+ * line hash in the Merkle tree of {@link BlockTensor#getRootDigest()}, so a client that only trusts the root digest
+ * can check the block with log2(lines) more hashes per line, see
+ * {@link #verify(BlockProof, HashEngine, int, int, long, byte[], byte[])}.
+ * <p>
+ * The lines are not stored in the proof: the verifier derives them, and the position of the block in each line, from
+ * the block number and the shape of the blocktensor, which the verifier must know as well as the hash engine. A proof
+ * whose shape differs from the trusted one is rejected, so a proof cannot be presented for a different block.
+ * <p>
+ * A proof is sent to a client as bytes, see {@link #toBytes()} and {@link #fromBytes(byte[])}: the version, the block
+ * number, the width, the dimension count and the hash size as ints, the block hash, then for each line the hashes of
+ * the other blocks, the line hash, the length of the path as an int and the path.
+ */
+public class BlockProof {
+    /**
+     * Version of the encoding.
+     */
+    static final int VERSION = 1;
+    /**
+     * Largest length of a path, the height of the Merkle tree of the largest blocktensor.
+     */
+    private static final int MAX_PATH_LENGTH = Integer.SIZE;
+
+    /**
+     * Block number of the block.
+     */
+    private final int blockNumber;
+    /**
+     * Width of the blocktensor.
+     */
+    private final int width;
+    /**
+     * Dimension count of the blocktensor.
+     */
+    private final int dimCount;
+    /**
+     * Hash of the block.
+     */
+    private final byte[] blockHash;
+    /**
+     * Hashes of the other blocks of each line, in order of the variable index, dimCount arrays of width-1 hashes.
+     */
+    private final byte[][][] otherHashes;
+    /**
+     * Hash of each line, in order of the variable index.
+     */
+    private final byte[][] lineHashes;
+    /**
+     * Sibling hashes on the path of each line hash to the root digest, in order of the variable index.
+     */
+    private final byte[][][] merklePaths;
+
+    /**
+     * Create new proof. The arrays are stored without copying.
+     *
+     * @param blockNumber block number
+     * @param width       width of the blocktensor
+     * @param dimCount    dimension count of the blocktensor
+     * @param blockHash   hash of the block
+     * @param otherHashes hashes of the other blocks of each line
+     * @param lineHashes  hash of each line
+     * @param merklePaths path of each line hash to the root digest
+     */
+    BlockProof(int blockNumber, int width, int dimCount, byte[] blockHash, byte[][][] otherHashes,
+               byte[][] lineHashes, byte[][][] merklePaths) {
+        this.blockNumber = blockNumber;
+        this.width = width;
+        this.dimCount = dimCount;
+        this.blockHash = blockHash;
+        this.otherHashes = otherHashes;
+        this.lineHashes = lineHashes;
+        this.merklePaths = merklePaths;
+    }
+
+    /**
+     * Get block number of the block.
+     *
+     * @return block number
+     */
+    public int getBlockNumber() {
+        return blockNumber;
+    }
+
+    /**
+     * Get width of the blocktensor.
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get dimension count of the blocktensor.
+     *
+     * @return dimension count
+     */
+    public int getDimCount() {
+        return dimCount;
+    }
+
+    /**
+     * Get copy of the hash of the block.
+     *
+     * @return hash of the block
+     */
+    public byte[] getBlockHash() {
+        return blockHash.clone();
+    }
+
+    /**
+     * Get copy of the hash of the line through the block along the given dimension.
+     *
+     * @param varDimIdx index of the variable index, in the interval [0 .. dimCount)
+     * @return hash of the line
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    public byte[] getLineHash(int varDimIdx) throws IndexOutOfBoundsException {
+        return lineHashes[varDimIdx].clone();
+    }
+
+    /**
+     * Get copy of the hashes of the other blocks of the line through the block along the given dimension, in order.
+     *
+     * @param varDimIdx index of the variable index, in the interval [0 .. dimCount)
+     * @return width-1 hashes
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    public byte[][] getOtherHashes(int varDimIdx) throws IndexOutOfBoundsException {
+        return Arrays.stream(otherHashes[varDimIdx]).map(byte[]::clone).toArray(byte[][]::new);
+    }
+
+    /**
+     * Get copy of the sibling hashes on the path of the line hash along the given dimension to the root digest, from
+     * the bottom.
+     *
+     * @param varDimIdx index of the variable index, in the interval [0 .. dimCount)
+     * @return sibling hashes
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    public byte[][] getMerklePath(int varDimIdx) throws IndexOutOfBoundsException {
+        return Arrays.stream(merklePaths[varDimIdx]).map(byte[]::clone).toArray(byte[][]::new);
+    }
+
+    /**
+     * Encode the proof, see {@link #fromBytes(byte[])}.
+     *
+     * @return encoded proof
+     */
+    public byte[] toBytes() {
+        int hashSize = blockHash.length;
+        int length = 5 * Integer.BYTES + hashSize;
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx)
+            length += (width + merklePaths[varDimIdx].length) * hashSize + Integer.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(VERSION).putInt(blockNumber).putInt(width).putInt(dimCount).putInt(hashSize).put(blockHash);
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            for (byte[] hash : otherHashes[varDimIdx])
+                buffer.put(hash);
+            buffer.put(lineHashes[varDimIdx]);
+            buffer.putInt(merklePaths[varDimIdx].length);
+            for (byte[] hash : merklePaths[varDimIdx])
+                buffer.put(hash);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode a proof encoded by {@link #toBytes()}. The proof is not verified; every length is checked against the
+     * remaining bytes before anything is allocated, so malformed bytes cannot allocate more than their own size.
+     *
+     * @param bytes encoded proof
+     * @return the proof
+     * @throws IllegalArgumentException if the bytes are not an encoded proof
+     */
+    public static BlockProof fromBytes(byte[] bytes) throws IllegalArgumentException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < 5 * Integer.BYTES || buffer.getInt() != VERSION)
+            throw new IllegalArgumentException("Not an encoded proof.");
+        int blockNumber = buffer.getInt();
+        int width = buffer.getInt();
+        int dimCount = buffer.getInt();
+        int hashSize = buffer.getInt();
+        if (width < 1 || dimCount < 1 || hashSize < 1 || hashSize > buffer.remaining() ||
+                dimCount > (buffer.remaining() - hashSize) / ((long) width * hashSize + Integer.BYTES))
+            throw new IllegalArgumentException("Corrupted proof.");
+        byte[] blockHash = hash(buffer, hashSize);
+        byte[][][] otherHashes = new byte[dimCount][][];
+        byte[][] lineHashes = new byte[dimCount][];
+        byte[][][] merklePaths = new byte[dimCount][][];
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            otherHashes[varDimIdx] = hashes(buffer, width - 1, hashSize);
+            lineHashes[varDimIdx] = hash(buffer, hashSize);
+            if (buffer.remaining() < Integer.BYTES)
+                throw new IllegalArgumentException("Corrupted proof.");
+            int pathLength = buffer.getInt();
+            if (pathLength < 0 || pathLength > MAX_PATH_LENGTH)
+                throw new IllegalArgumentException("Corrupted proof.");
+            merklePaths[varDimIdx] = hashes(buffer, pathLength, hashSize);
+        }
+        if (buffer.hasRemaining())
+            throw new IllegalArgumentException("Corrupted proof.");
+        return new BlockProof(blockNumber, width, dimCount, blockHash, otherHashes, lineHashes, merklePaths);
+    }
+
+    /**
+     * Get number of the line through the block along the given dimension, the same as in {@link LineHashTensor}.
+     *
+     * @param varDimIdx index of the variable index, in the interval [0 .. dimCount)
+     * @return number of the line
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    public int getLine(int varDimIdx) throws IndexOutOfBoundsException {
+        Objects.checkIndex(varDimIdx, dimCount);
+        BlockNumbering numbering = new BlockNumbering(width, dimCount);
+        return (int) lineOf(numbering, width, varDimIdx, numbering.toIndex(blockNumber));
+    }
+
+    /**
+     * Verify the proof against trusted line hashes: each line hash of the proof must be the hash of the block hashes
+     * of the line and equal to the trusted hash of the line.
+     *
+     * @param proof             proof to verify
+     * @param hashEngine        hash engine of the blocktensor
+     * @param width             trusted width of the blocktensor
+     * @param dimCount          trusted dimension count of the blocktensor
+     * @param trustedLineHashes trusted hash of each line by line number, or null for an unknown line
+     * @return whether the proof is valid
+     * @throws IllegalArgumentException if the trusted shape is not the shape of a blocktensor
+     */
+    public static boolean verify(BlockProof proof, HashEngine hashEngine, int width, int dimCount,
+                                 IntFunction<byte[]> trustedLineHashes) throws IllegalArgumentException {
+        BlockNumbering numbering = new BlockNumbering(width, dimCount);
+        if (!hasShape(proof, numbering, width, dimCount, hashEngine.getDigestLength()) ||
+                !verifyLines(proof, hashEngine, numbering))
+            return false;
+        long index = numbering.toIndex(proof.blockNumber);
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            byte[] trusted = trustedLineHashes.apply((int) lineOf(numbering, width, varDimIdx, index));
+            if (trusted == null || !Arrays.equals(trusted, proof.lineHashes[varDimIdx]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verify the proof against a trusted root digest: each line hash of the proof must be the hash of the block
+     * hashes of the line, and its path in the Merkle tree must lead to the root digest.
+     *
+     * @param proof      proof to verify
+     * @param hashEngine hash engine of the blocktensor
+     * @param width      trusted width of the blocktensor
+     * @param dimCount   trusted dimension count of the blocktensor
+     * @param rootDigest trusted root digest of the blocktensor, see {@link BlockTensor#getRootDigest()}
+     * @return whether the proof is valid
+     * @throws IllegalArgumentException if the trusted shape is not the shape of a blocktensor
+     */
+    public static boolean verify(BlockProof proof, HashEngine hashEngine, int width, int dimCount, byte[] rootDigest)
+            throws IllegalArgumentException {
+        BlockNumbering numbering = new BlockNumbering(width, dimCount);
+        if (!hasShape(proof, numbering, width, dimCount, hashEngine.getDigestLength()) ||
+                !verifyLines(proof, hashEngine, numbering))
+            return false;
+        long index = numbering.toIndex(proof.blockNumber);
+        int lineCount = (int) (numbering.capacity() / width * dimCount);
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            int line = (int) lineOf(numbering, width, varDimIdx, index);
+            byte[] root = MerkleTree.rootOf(proof.lineHashes[varDimIdx], line, lineCount, proof.merklePaths[varDimIdx],
+                    hashEngine);
+            if (root == null || !Arrays.equals(root, rootDigest))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verify the block against the proof and trusted line hashes: the hash of the timestamp and the data must be the
+     * block hash of the proof, and the proof must be valid, see
+     * {@link #verify(BlockProof, HashEngine, int, int, IntFunction)}.
+     *
+     * @param proof             proof to verify
+     * @param hashEngine        hash engine of the blocktensor
+     * @param width             trusted width of the blocktensor
+     * @param dimCount          trusted dimension count of the blocktensor
+     * @param timestamp         timestamp of the block
+     * @param data              data of the block
+     * @param trustedLineHashes trusted hash of each line by line number, or null for an unknown line
+     * @return whether the block and the proof are valid
+     * @throws IllegalArgumentException if the trusted shape is not the shape of a blocktensor
+     */
+    public static boolean verify(BlockProof proof, HashEngine hashEngine, int width, int dimCount, long timestamp,
+                                 byte[] data, IntFunction<byte[]> trustedLineHashes) throws IllegalArgumentException {
+        Hasher hasher = hashEngine.hasher();
+        hasher.updateLong(timestamp);
+        hasher.update(data);
+        return Arrays.equals(hasher.digest(), proof.blockHash) &&
+                verify(proof, hashEngine, width, dimCount, trustedLineHashes);
+    }
+
+    /**
+     * Verify the block against the proof and a trusted root digest: the hash of the timestamp and the data must be
+     * the block hash of the proof, and the proof must be valid, see
+     * {@link #verify(BlockProof, HashEngine, int, int, byte[])}.
+     *
+     * @param proof      proof to verify
+     * @param hashEngine hash engine of the blocktensor
+     * @param width      trusted width of the blocktensor
+     * @param dimCount   trusted dimension count of the blocktensor
+     * @param timestamp  timestamp of the block
+     * @param data       data of the block
+     * @param rootDigest trusted root digest of the blocktensor
+     * @return whether the block and the proof are valid
+     * @throws IllegalArgumentException if the trusted shape is not the shape of a blocktensor
+     */
+    public static boolean verify(BlockProof proof, HashEngine hashEngine, int width, int dimCount, long timestamp,
+                                 byte[] data, byte[] rootDigest) throws IllegalArgumentException {
+        Hasher hasher = hashEngine.hasher();
+        hasher.updateLong(timestamp);
+        hasher.update(data);
+        return Arrays.equals(hasher.digest(), proof.blockHash) &&
+                verify(proof, hashEngine, width, dimCount, rootDigest);
+    }
+
+    /**
+     * Check that the proof has the trusted shape: the same width and dimension count, a block number within the
+     * capacity, one line per dimension with width-1 other hashes, and no missing hash or hash of another size.
+     *
+     * @param proof     proof to check
+     * @param numbering numbering of the trusted shape
+     * @param width     trusted width of the blocktensor
+     * @param dimCount  trusted dimension count of the blocktensor
+     * @param hashSize  size of the hashes of the hash engine
+     * @return whether the proof has the trusted shape
+     */
+    private static boolean hasShape(BlockProof proof, BlockNumbering numbering, int width, int dimCount,
+                                    int hashSize) {
+        if (proof.width != width || proof.dimCount != dimCount || proof.blockNumber < 0 ||
+                proof.blockNumber >= numbering.capacity() || !hasSize(proof.blockHash, hashSize) ||
+                proof.otherHashes == null || proof.otherHashes.length != dimCount || proof.lineHashes == null ||
+                proof.lineHashes.length != dimCount || proof.merklePaths == null ||
+                proof.merklePaths.length != dimCount)
+            return false;
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            byte[][] others = proof.otherHashes[varDimIdx];
+            byte[][] path = proof.merklePaths[varDimIdx];
+            if (others == null || others.length != width - 1 || !hasSize(proof.lineHashes[varDimIdx], hashSize) ||
+                    path == null || !Arrays.stream(others).allMatch(hash -> hasSize(hash, hashSize)) ||
+                    !Arrays.stream(path).allMatch(hash -> hasSize(hash, hashSize)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check that the hash is present and of the given size.
+     *
+     * @param hash     hash, or null
+     * @param hashSize size of the hashes
+     * @return whether the hash has the size
+     */
+    private static boolean hasSize(byte[] hash, int hashSize) {
+        return hash != null && hash.length == hashSize;
+    }
+
+    /**
+     * Read one hash.
+     *
+     * @param buffer   buffer to read from
+     * @param hashSize size of the hash
+     * @return the hash
+     * @throws IllegalArgumentException if the buffer holds fewer bytes
+     */
+    private static byte[] hash(ByteBuffer buffer, int hashSize) throws IllegalArgumentException {
+        return hashes(buffer, 1, hashSize)[0];
+    }
+
+    /**
+     * Read hashes one after another.
+     *
+     * @param buffer   buffer to read from
+     * @param count    number of hashes
+     * @param hashSize size of the hashes
+     * @return the hashes
+     * @throws IllegalArgumentException if the buffer holds fewer bytes
+     */
+    private static byte[][] hashes(ByteBuffer buffer, int count, int hashSize) throws IllegalArgumentException {
+        if ((long) count * hashSize > buffer.remaining())
+            throw new IllegalArgumentException("Corrupted proof.");
+        byte[][] hashes = new byte[count][hashSize];
+        for (byte[] hash : hashes)
+            buffer.get(hash);
+        return hashes;
+    }
+
+    /**
+     * Check that each line hash of the proof is the hash of the block hashes of the line, with the block at its
+     * position in the line. The proof has the shape of the numbering, see
+     * {@link #hasShape(BlockProof, BlockNumbering, int, int, int)}.
+     *
+     * @param proof      proof to check
+     * @param hashEngine hash engine of the blocktensor
+     * @param numbering  numbering of the trusted shape
+     * @return whether all line hashes match
+     */
+    private static boolean verifyLines(BlockProof proof, HashEngine hashEngine, BlockNumbering numbering) {
+        long index = numbering.toIndex(proof.blockNumber);
+        Hasher hasher = hashEngine.hasher();
+        for (int varDimIdx = 0; varDimIdx < proof.dimCount; ++varDimIdx) {
+            byte[][] others = proof.otherHashes[varDimIdx];
+            // the block is at its variable index in the line
+            int position = (int) (index / numbering.stride(varDimIdx) % proof.width);
+            for (int i = 0; i < proof.width; ++i)
+                hasher.update(i == position ? proof.blockHash : others[i < position ? i : i - 1]);
+            if (!Arrays.equals(hasher.digest(), proof.lineHashes[varDimIdx]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get number of the line along the given dimension through the given cell.
+     *
+     * @param numbering numbering of the blocktensor
+     * @param width     width of the blocktensor
+     * @param varDimIdx index of the variable index
+     * @param index     one-dimensional index of a cell on the line
+     * @return number of the line
+     */
+    private static long lineOf(BlockNumbering numbering, int width, int varDimIdx, long index) {
+        long stride = numbering.stride(varDimIdx);
+        long linesPerDim = numbering.capacity() / width;
+        return varDimIdx * linesPerDim + index / (stride * width) * stride + index % stride;
+    }
+}
@@ -1,8 +1,28 @@
 package gov.nist.blockmatrixtimestamped;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.*;
-import java.util.function.Function;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
 import java.util.stream.IntStream;
 
 /**
@@ -10,12 +30,36 @@ import java.util.stream.IntStream;
  * log(size) complexity if used with optimal settings. Optimal width is 3 and optimal dimCount is log(size)/log(3).
  * You can choose dimCount and width manually or just provide the size you need and optimal parameters will be chosen
  * automatically.
+ * <p>
+ * The blocktensor is thread-safe. Block numbers of added blocks are reserved with an atomic counter and line hashes
+ * are guarded by striped line locks, so writers touching different lines proceed in parallel. Batches and validations
+ * lock out all writers and see a consistent state. Stored blocks are never modified: a write publishes a new block
+ * with a volatile store, so readers never lock and always see the data, timestamp and hash of one block together. A
+ * block number that has been reserved by {@link #add(byte[])} but not written yet reads as an empty block.
  */
 public class BlockTensor {
     /**
-     * Since SHA-256 is used, hash array size must be 32.
+     * Hash array size of SHA-256, the default hash algorithm.
      */
     public static final int HASH_ARRAY_SIZE = 32;
+    /**
+     * Data of erased blocks. Stored data arrays are never modified, so it is shared.
+     */
+    private static final byte[] EMPTY_DATA = new byte[0];
+    /**
+     * Origin timestamp meaning that the current time is used.
+     */
+    static final long CURRENT_TIME = -1;
+    /**
+     * Number of blocks erased in one batch by {@link #eraseAll(Collection)} and {@link #eraseIf(Predicate)}. The write
+     * lock is released between the batches, so a long erasure does not stall other writers.
+     */
+    static final int ERASE_BATCH = 4096;
+    /**
+     * Number of times {@link #getProof(int)} reads a proof while single writers run before it waits until no
+     * modification is in progress.
+     */
+    static final int PROOF_ATTEMPTS = 3;
 
     /**
      * Width of the blocktensor.
@@ -26,63 +70,208 @@ public class BlockTensor {
      */
     private final int dimCount; // dimension count
     /**
-     * Tensor to store the blocks. Its size is width^dimCount.
+     * Blocks indexed by the one-dimensional index of their cell, width^dimCount of them. The blocks are never
+     * modified once stored, they are replaced as a whole.
+     */
+    private final AtomicReferenceArray<Block> blockData;
+    /**
+     * Tensor to store hashes of the lines. If we have line represented by fixedIndexes and varDimIdx, we can access its
+     * hash via hashes.get(varDimIdx, fixedIndexes).
+     */
+    private final LineHashTensor hashes;
+    /**
+     * Converts block numbers to indexes in the underlying tensor and back. Block numbers start at {0,0,...,0} and are
+     * propagated via breadth-first search. The mapping is calculated arithmetically, no table is stored.
+     */
+    private final BlockNumbering numbering;
+
+    /**
+     * Number of lines along each dimension, width^(dimCount-1).
      */
-    private final Tensor<Block> blockData;
+    private final int linesPerDim;
     /**
-     * Tensor to store hashes of the lines. The indexes of the tensor represent the fixed indexes of the line in
-     * question, while the index of the array of hashes is the index of the variable index. Therefore, if we have line
-     * represented by fixedIndexes and varDimIdx, we can access its hash via hashes.get(fixedIndexes)[varDimIdx].
+     * Timestamp of the template block every cell holds before it is set.
      */
-    private final Tensor<byte[][]> hashes;
+    private final long originTimestamp;
     /**
-     * Converts index in the underlying tensor to block number. Block numbers start at {0,0,...,0} and are propagated
-     * via breadth-first search. This tensor is initialized when the blocktensor is created.
+     * Hash engine used for all hashes of this blocktensor. Its hashers are cached per thread, so no digest is
+     * allocated per hash.
      */
-    private final Tensor<Integer> indexesToBlockNumber;
+    private final HashEngine hashEngine;
     /**
-     * Converts block number in the underlying tensor to index. Block numbers start at {0,0,...,0} and are propagated
-     * via breadth-first search. This array is initialized when the blocktensor is created.
+     * Store sharing equal data arrays between blocks, or null if every block holds its own array.
      */
-    private final ArrayList<int[]> blockNumberToIndexes;
+    private final PayloadStore payloads;
+    /**
+     * Compression of the stored data.
+     */
+    private final Compression compression;
 
     /**
-     * Number of blocks added to the blocktensor.
+     * Number of blocks added to the blocktensor, including block numbers reserved by writers still in progress.
+     */
+    private final AtomicInteger size;
+    /**
+     * One-dimensional indexes of the cells modified since the last successful validation.
+     */
+    private final ChangeQueue touchedIndexes;
+    /**
+     * Numbers of the lines modified since the last successful validation.
+     */
+    private final ChangeQueue touchedLines;
+    /**
+     * Merkle tree over the line hashes, brought up to date by its readers. Guarded by its own monitor.
+     */
+    private final MerkleTree merkleTree;
+    /**
+     * Numbers of the lines modified since the Merkle tree was last brought up to date.
+     */
+    private final ChangeQueue merkleDirtyLines;
+    /**
+     * Index of the blocks by timestamp, writers queue the blocks they set and queries merge them into the index.
+     */
+    private final TimestampIndex timestampIndex;
+    /**
+     * Locks of the line hashes, the line number l is guarded by lineLocks[l % lineLocks.length].
      */
-    private int size;
+    private final Object[] lineLocks;
+    /**
+     * Single-block writers hold the read lock, so they run concurrently. Batches and validations hold the write lock.
+     */
+    private final ReentrantReadWriteLock structureLock;
+    /**
+     * Every fullValidationInterval-th incremental validation is a full one, 0 if never.
+     */
+    private volatile int fullValidationInterval;
+    /**
+     * Number of incremental validations since the last full one.
+     */
+    private int incrementalValidations;
 
 
     /**
-     * Create new blocktensor with given width and dimCount. May not be optimal.
+     * Create new blocktensor with given width and dimCount. May not be optimal. SHA-256 is used for hashes.
      *
      * @param width    width, a positive integer
      * @param dimCount dimension count, an integer greater than 1
      * @throws IllegalArgumentException if any argument does not satisfy the requirements
      */
     public BlockTensor(int width, int dimCount) throws IllegalArgumentException {
+        this(width, dimCount, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new blocktensor with given width, dimCount and hash engine. May not be optimal.
+     *
+     * @param width      width, a positive integer
+     * @param dimCount   dimension count, an integer greater than 1
+     * @param hashEngine hash engine for the block hashes and the line hashes, see
+     *                   {@link SecurityUtil#getHashEngine(String)}
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine is null
+     */
+    public BlockTensor(int width, int dimCount, HashEngine hashEngine)
+            throws IllegalArgumentException, NullPointerException {
+        this(width, dimCount, hashEngine, CURRENT_TIME, false, Compression.NONE);
+    }
+
+    /**
+     * Create new blocktensor with given width, dimCount and hash engine, optionally sharing equal data between
+     * blocks. A deduplicating blocktensor stores each distinct data array once, with a count of the blocks holding
+     * it, so its memory use follows the distinct data rather than the number of blocks; erasing a block only drops
+     * its reference. It pays for one lookup of the content per write.
+     *
+     * @param width       width, a positive integer
+     * @param dimCount    dimension count, an integer greater than 1
+     * @param hashEngine  hash engine for the block hashes and the line hashes
+     * @param deduplicate whether equal data is stored once
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine is null
+     */
+    public BlockTensor(int width, int dimCount, HashEngine hashEngine, boolean deduplicate)
+            throws IllegalArgumentException, NullPointerException {
+        this(width, dimCount, hashEngine, CURRENT_TIME, deduplicate, Compression.NONE);
+    }
+
+    /**
+     * Create new blocktensor with given width, dimCount, hash engine and compression of the stored data. Data is
+     * compressed when it is written and decompressed whenever it is read, see {@link Compression}.
+     *
+     * @param width       width, a positive integer
+     * @param dimCount    dimension count, an integer greater than 1
+     * @param hashEngine  hash engine for the block hashes and the line hashes
+     * @param compression compression of the stored data
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine or compression is null
+     */
+    public BlockTensor(int width, int dimCount, HashEngine hashEngine, Compression compression)
+            throws IllegalArgumentException, NullPointerException {
+        this(width, dimCount, hashEngine, CURRENT_TIME, false, compression);
+    }
+
+    /**
+     * Create new blocktensor with given width, dimCount, hash engine and timestamp of the template block. Two
+     * blocktensors with the same origin timestamp and the same blocks have the same hashes.
+     *
+     * @param width           width, a positive integer
+     * @param dimCount        dimension count, an integer greater than 1
+     * @param hashEngine      hash engine for the block hashes and the line hashes
+     * @param originTimestamp timestamp of the template block, a non-negative long, or CURRENT_TIME for timestamp()
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine is null
+     */
+    BlockTensor(int width, int dimCount, HashEngine hashEngine, long originTimestamp)
+            throws IllegalArgumentException, NullPointerException {
+        this(width, dimCount, hashEngine, originTimestamp, false, Compression.NONE);
+    }
+
+    /**
+     * Create new blocktensor with given width, dimCount, hash engine, timestamp of the template block, sharing of
+     * equal data and compression of the stored data.
+     *
+     * @param width           width, a positive integer
+     * @param dimCount        dimension count, an integer greater than 1
+     * @param hashEngine      hash engine for the block hashes and the line hashes
+     * @param originTimestamp timestamp of the template block, a non-negative long, or CURRENT_TIME for timestamp()
+     * @param deduplicate     whether equal data is stored once
+     * @param compression     compression of the stored data
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine or compression is null
+     */
+    BlockTensor(int width, int dimCount, HashEngine hashEngine, long originTimestamp, boolean deduplicate,
+                Compression compression) throws IllegalArgumentException, NullPointerException {
+        checkShape(width, dimCount);
+        this.hashEngine = Objects.requireNonNull(hashEngine);
+        this.payloads = deduplicate ? new PayloadStore() : null;
+        this.compression = Objects.requireNonNull(compression);
         this.width = width;
         this.dimCount = dimCount;
-        this.size = 0;
-        this.blockData = new Tensor<>(dimCount, width);
+        this.size = new AtomicInteger();
+        this.numbering = new BlockNumbering(width, dimCount);
+        this.blockData = new AtomicReferenceArray<>((int) numbering.capacity());
         /*
         It is problematic to handle null values instead of data byte arrays, since both zero-length array and null
         contribute nothing to the hash, so it is impossible to distinguish the default block and the block that has been
         deliberately given the empty data array.
          */
-        // fill the data tensor with the template block copies
-        Block template = new Block(timestamp(), new byte[0]);
-        for (int i = 0; i < blockData.capacity(); ++i)
-            this.blockData.set(new Block(template), i);
-        this.hashes = new Tensor<>(dimCount - 1, width);
-        // fill the hash tensor with arrays of empty strings
-        for (int i = 0; i < hashes.capacity(); ++i)
-            this.hashes.set(new byte[dimCount][], i);
-        this.indexesToBlockNumber = new Tensor<>(dimCount, width);
-        // fill the array with nulls
-        this.blockNumberToIndexes = new ArrayList<>(Collections.nCopies(Tensor.binPow(width, dimCount), null));
+        // every cell holds the template block, it is never modified, so it can be shared
+        this.originTimestamp = originTimestamp == CURRENT_TIME ? timestamp() : originTimestamp;
+        Block template = new Block(this.originTimestamp, EMPTY_DATA, hashEngine);
+        for (int i = 0; i < blockData.length(); ++i)
+            this.blockData.set(i, template);
+        this.hashes = new LineHashTensor(dimCount, width, hashEngine.getDigestLength());
+        this.linesPerDim = hashes.capacity() / dimCount;
+        this.touchedIndexes = new ChangeQueue(capacity());
+        this.touchedLines = new ChangeQueue(hashes.capacity());
+        this.lineLocks = newLocks(hashes.capacity());
+        this.structureLock = new ReentrantReadWriteLock();
+        this.fullValidationInterval = 0;
+        this.incrementalValidations = 0;
 
-        initIndexing();
-        updateAllHashes();
+        initHashes();
+        this.merkleTree = new MerkleTree(hashes, hashEngine);
+        this.merkleDirtyLines = new ChangeQueue(hashes.capacity());
+        this.timestampIndex = new TimestampIndex(capacity());
     }
 
     /**
@@ -99,24 +288,23 @@ public class BlockTensor {
     }
 
     /**
-     * Remove the index at the given index from the array of indexes.
+     * Check that a blocktensor of the given shape can be created, without creating it.
      *
-     * @param varDimIdx index of the index to be removed
-     * @param indexes   array of indexes
-     * @return array of indexes without the given index removed
+     * @param width    width, a positive integer
+     * @param dimCount dimension count, a positive integer
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or width^dimCount does not
+     *                                  fit into an int
      */
-    private static int[] removeVariableIndex(int varDimIdx, int... indexes) {
-        assert varDimIdx < indexes.length && varDimIdx >= 0;
-        assert Arrays.stream(indexes).allMatch(i -> i >= 0);
-
-        // make a stream of indexes in the interval [0 .. indexes.length)
-        return IntStream.range(0, indexes.length)
-                // remove the index we don't need
-                .filter(i -> i != varDimIdx)
-                // map the indexes to their corresponding values
-                .map(i -> indexes[i])
-                // convert back to array
-                .toArray();
+    static void checkShape(int width, int dimCount) throws IllegalArgumentException {
+        if (dimCount < 1)
+            throw new IllegalArgumentException("Dimension count must be greater than zero.");
+        if (width < 1)
+            throw new IllegalArgumentException("Width must be greater than zero.");
+        try {
+            Math.toIntExact(Tensor.binPowExact(width, dimCount));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Capacity width^dimCount must not exceed " + Integer.MAX_VALUE + ".");
+        }
     }
 
     /**
@@ -128,7 +316,41 @@ public class BlockTensor {
      */
     public byte[] getData(int blockNumber) throws IndexOutOfBoundsException {
         Objects.checkIndex(blockNumber, size());
-        return getBlock(blockNumber).getData().clone();
+        return dataOf(blockData.get((int) numbering.toIndex(blockNumber)));
+    }
+
+    /**
+     * Write data of the given block number to the channel. Uncompressed data is written from the array the block
+     * holds, without copying it.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size)
+     * @param channel     channel to write to, it is not closed
+     * @return number of bytes written, the length of the data
+     * @throws IOException               if the channel cannot be written
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public int readData(int blockNumber, WritableByteChannel channel) throws IOException, IndexOutOfBoundsException {
+        ByteBuffer buffer = getDataView(blockNumber);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        return buffer.capacity();
+    }
+
+    /**
+     * Get read-only view of the data of the given block number. Uncompressed data is not copied: the view is backed
+     * by the array the block holds, which is never modified, so the view keeps the data the block had when the method
+     * was called even if the block is set again later. Compressed data is inflated into a new array.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size)
+     * @return read-only view of the data, zero-length if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public ByteBuffer getDataView(int blockNumber) throws IndexOutOfBoundsException {
+        Objects.checkIndex(blockNumber, size());
+        byte[] data = blockData.get((int) numbering.toIndex(blockNumber)).getData();
+        if (compression.isCompressed() && data.length != 0)
+            data = compression.decompress(data);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
     /**
@@ -140,7 +362,7 @@ public class BlockTensor {
      */
     public long getTimestamp(int blockNumber) throws IndexOutOfBoundsException {
         Objects.checkIndex(blockNumber, size());
-        return getBlock(blockNumber).getTimestamp();
+        return blockData.get((int) numbering.toIndex(blockNumber)).getTimestamp();
     }
 
     /**
@@ -152,12 +374,163 @@ public class BlockTensor {
      */
     public byte[] getHash(int blockNumber) throws IndexOutOfBoundsException {
         Objects.checkIndex(blockNumber, size());
-        return getBlock(blockNumber).getHash().clone();
+        return blockData.get((int) numbering.toIndex(blockNumber)).getHash().clone();
+    }
+
+    /**
+     * Get read-only view of the hash of the given block number, backed by the hash the block holds without copying
+     * it. See {@link #getDataView(int)}.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size)
+     * @return read-only view of the hash
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public ByteBuffer getHashView(int blockNumber) throws IndexOutOfBoundsException {
+        Objects.checkIndex(blockNumber, size());
+        return ByteBuffer.wrap(blockData.get((int) numbering.toIndex(blockNumber)).getHash()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get copy of the block with the given block number. The data, the timestamp and the hash of the copy always
+     * belong together, even while other threads write to the block. The data of the copy is decompressed; with
+     * {@link Compression#DEFLATE_HASH_COMPRESSED} its hash covers the compressed data, so it differs from the hash
+     * calculated by the copy.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size)
+     * @return copy of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public Block getBlock(int blockNumber) throws IndexOutOfBoundsException {
+        Objects.checkIndex(blockNumber, size());
+        return copyOf(blockData.get((int) numbering.toIndex(blockNumber)));
+    }
+
+    /**
+     * Get hash of the given line. Lines are numbered the same as in {@link LineHashTensor}.
+     *
+     * @param line number of the line, in the interval [0 .. dimCount*width^(dimCount-1))
+     * @return hash of the line
+     * @throws IndexOutOfBoundsException if the line is not in the required interval
+     */
+    public byte[] getLineHash(int line) throws IndexOutOfBoundsException {
+        Objects.checkIndex(line, hashes.capacity());
+        // line hashes are updated in place, by single writers under the line lock and by batches under the write lock
+        structureLock.readLock().lock();
+        try {
+            synchronized (lineLock(line)) {
+                return hashes.get(line);
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get integrity proof of the given block: its hash and, for each line through it, the hashes of the other blocks
+     * of the line, the line hash and its path in the Merkle tree of {@link #getRootDigest()}. See {@link BlockProof}.
+     * <p>
+     * The hashes are read while single writers run and then checked against each other. If a writer has modified the
+     * lines of the block meanwhile, the proof is read again, and after {@link #PROOF_ATTEMPTS} attempts it is read
+     * while no modification is in progress, so all hashes belong together.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size)
+     * @return proof of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public BlockProof getProof(int blockNumber) throws IndexOutOfBoundsException {
+        Objects.checkIndex(blockNumber, size());
+        structureLock.readLock().lock();
+        try {
+            for (int attempt = 0; attempt < PROOF_ATTEMPTS; ++attempt) {
+                BlockProof proof = readProof(blockNumber, true);
+                if (proof != null)
+                    return proof;
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+        structureLock.writeLock().lock();
+        try {
+            return readProof(blockNumber, false);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get root digest of the blocktensor, the root of a Merkle tree over all line hashes in order of the line numbers.
+     * It covers every block, so two blocktensors of the same shape hold the same blocks exactly when their root
+     * digests are equal, and a state can be pinned by its root digest alone.
+     * <p>
+     * Modifications only queue their lines; the tree is brought up to date here, rehashing log2(lines) nodes per line
+     * modified since the last call, while no modification is in progress.
+     *
+     * @return root digest
+     */
+    public byte[] getRootDigest() {
+        structureLock.writeLock().lock();
+        try {
+            synchronized (merkleTree) {
+                updateMerkleTree();
+                return merkleTree.root();
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get hashes of nodes of the Merkle tree of {@link #getRootDigest()}, one after another, see
+     * {@link MerkleTree#nodes(int, int[])}. The tree is brought up to date first; single writers run concurrently, so a
+     * block being written meanwhile may or may not be covered.
+     *
+     * @param height height of the nodes, 0 for the line hashes
+     * @param nodes  indexes of the nodes within the height
+     * @return hashes of the nodes
+     * @throws IndexOutOfBoundsException if the height or any node does not exist
+     */
+    byte[] getMerkleNodes(int height, int[] nodes) throws IndexOutOfBoundsException {
+        structureLock.readLock().lock();
+        try {
+            synchronized (merkleTree) {
+                updateMerkleTree();
+                return merkleTree.nodes(height, nodes);
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the block numbers of the blocks whose timestamps lie in the interval [from .. to), in ascending order of the
+     * timestamps, blocks with equal timestamps in ascending order of the block numbers. Erased blocks are included
+     * with the timestamp of the erasure. The blocks are looked up in an index by timestamp by two binary searches.
+     * Writers only queue the blocks they set; the call first merges the blocks queued since the last call into the
+     * index, sorting them by timestamp. If any of them had been indexed before, their old entries are found by binary
+     * search and marked as tombstones, see {@link TimestampIndex}. Single writers run concurrently, a block being
+     * written meanwhile may or may not be seen.
+     *
+     * @param from first timestamp of the interval
+     * @param to   timestamp after the interval
+     * @return block numbers of the blocks
+     * @throws IllegalArgumentException if from is greater than to
+     */
+    public int[] blocksBetween(long from, long to) throws IllegalArgumentException {
+        if (from > to)
+            throw new IllegalArgumentException("Interval must not end before it starts.");
+        structureLock.readLock().lock();
+        try {
+            return timestampIndex.between(from, to, blockNumber ->
+                    blockData.get((int) numbering.toIndex(blockNumber)).getTimestamp());
+        } finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     /**
      * Set data to the given block. Return the data that was there before or zero-length byte array if the block has
-     * not been set yet. You can do set(size(), data) to add a block to the end.
+     * not been set yet. You can do set(size(), data) to add a block to the end, but when several threads add blocks,
+     * use {@link #add(byte[])}, which reserves the block number atomically.
      *
      * @param blockNumber block number, an integer in interval [0 .. capacity)
      * @param data        data byte array
@@ -166,43 +539,134 @@ public class BlockTensor {
      */
     public byte[] set(int blockNumber, byte[] data)
             throws IndexOutOfBoundsException {
-        if (blockNumber == size())
-            Objects.checkIndex(size(), capacity());
-        else
-            Objects.checkIndex(blockNumber, size());
-        if (data == null)
-            data = new byte[0];
-
-        int[] indexes = blockNumberToIndexes.get(blockNumber);
-
-        Block b = getBlock(blockNumber);
-        byte[] old = b.getData();
-        b.setData(data.clone());
-        b.setTimestamp(timestamp());
-        b.setHash(b.calculateHash());
-
-        // update hashes of lines which intersect the modified index
-        // iterate through indexes and make each one variable one by one
-        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
-            int[] fixedIndexes = removeVariableIndex(varDimIdx, indexes);
-            updateLineHash(varDimIdx, fixedIndexes);
-        }
+        return setBlock(blockNumber, newBlock(timestamp(), owned(data)));
+    }
 
-        if (blockNumber == size())
-            size++;
-        return old;
+    /**
+     * Set data read from the channel to the given block, hashing it while it is read, see {@link #set(int, byte[])}.
+     * The data is read into the array the block keeps, so it is not copied again.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size]
+     * @param channel     channel to read the data from, it is not closed
+     * @param length      length of the data
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IOException               if the channel cannot be read, or it ends before the data
+     * @throws IllegalArgumentException  if the length is negative
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     */
+    public byte[] set(int blockNumber, ReadableByteChannel channel, int length)
+            throws IOException, IllegalArgumentException, IndexOutOfBoundsException {
+        // fail before the channel is read, the size only grows
+        Objects.checkIndex(blockNumber, Math.min(size() + 1, capacity()));
+        return setBlock(blockNumber, readBlock(channel, length, timestamp()));
+    }
+
+    /**
+     * Set the new block to the given block number. See {@link #set(int, byte[])}. Subclasses that record the
+     * modifications override it.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. capacity)
+     * @param block       new block, owned by the blocktensor
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     */
+    byte[] setBlock(int blockNumber, Block block) throws IndexOutOfBoundsException {
+        structureLock.readLock().lock();
+        try {
+            int current;
+            do {
+                current = size.get();
+                if (blockNumber != current) {
+                    Objects.checkIndex(blockNumber, current);
+                    break;
+                }
+                Objects.checkIndex(current, capacity());
+            } while (!size.compareAndSet(current, current + 1));
+            return write(blockNumber, block);
+        } finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     /**
-     * Add data to the blocktensor. Equivalent to set(size(), data).
+     * Add data to the blocktensor. Equivalent to set(size(), data), except that the block number is reserved
+     * atomically, so concurrent calls always add different blocks.
      *
      * @param data data byte array
      * @return block number of the added block
      * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
      */
     public int add(byte[] data) throws IndexOutOfBoundsException {
-        set(size(), data);
-        return size() - 1;
+        return addBlock(newBlock(timestamp(), owned(data)));
+    }
+
+    /**
+     * Add data read from the stream to the blocktensor, hashing it while it is read, see {@link #add(byte[])}.
+     *
+     * @param in     stream to read the data from, it is not closed
+     * @param length length of the data
+     * @return block number of the added block
+     * @throws IOException               if the stream cannot be read, or it ends before the data
+     * @throws IllegalArgumentException  if the length is negative
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     */
+    public int add(InputStream in, int length) throws IOException, IllegalArgumentException, IndexOutOfBoundsException {
+        return add(Channels.newChannel(in), length);
+    }
+
+    /**
+     * Add data read from the channel to the blocktensor, hashing it while it is read, see {@link #add(byte[])}. The
+     * data is read into the array the block keeps, so it is not copied again.
+     *
+     * @param channel channel to read the data from, it is not closed
+     * @param length  length of the data
+     * @return block number of the added block
+     * @throws IOException               if the channel cannot be read, or it ends before the data
+     * @throws IllegalArgumentException  if the length is negative
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     */
+    public int add(ReadableByteChannel channel, int length)
+            throws IOException, IllegalArgumentException, IndexOutOfBoundsException {
+        // fail before the channel is read
+        Objects.checkIndex(size(), capacity());
+        return addBlock(readBlock(channel, length, timestamp()));
+    }
+
+    /**
+     * Add the new block to the blocktensor. See {@link #add(byte[])}. Subclasses that record the modifications
+     * override it.
+     *
+     * @param block new block, owned by the blocktensor
+     * @return block number of the added block
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     */
+    int addBlock(Block block) throws IndexOutOfBoundsException {
+        while (true) {
+            int blockNumber = size();
+            if (append(blockNumber, block))
+                return blockNumber;
+        }
+    }
+
+    /**
+     * Add the new block to the blocktensor as the given block number, if it is still the next one.
+     *
+     * @param blockNumber block number, normally size()
+     * @param block       new block, owned by the blocktensor
+     * @return whether the block has been added, false if the size is no longer equal to the block number
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     */
+    boolean append(int blockNumber, Block block) throws IndexOutOfBoundsException {
+        structureLock.readLock().lock();
+        try {
+            Objects.checkIndex(blockNumber, capacity());
+            if (!size.compareAndSet(blockNumber, blockNumber + 1))
+                return false;
+            write(blockNumber, block);
+            return true;
+        } finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     /**
@@ -215,13 +679,357 @@ public class BlockTensor {
         return set(blockNumber, null);
     }
 
+    /**
+     * Erase the given blocks in large batches, rehashing each affected line once per batch instead of once per block.
+     * All blocks get the same timestamp. Other threads may modify the blocktensor between the batches, they are not
+     * stalled for the whole erasure.
+     *
+     * @param blockNumbers block numbers, each an integer in interval [0 .. size), duplicates are erased once
+     * @return record of the erasure
+     * @throws IndexOutOfBoundsException if any block number is not in the required interval, nothing is erased then
+     * @throws NullPointerException      if the collection or any of its elements is null
+     */
+    public EraseRecord eraseAll(Collection<Integer> blockNumbers) throws IndexOutOfBoundsException,
+            NullPointerException {
+        int[] sorted = blockNumbers.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        int size = size();
+        for (int blockNumber : sorted)
+            Objects.checkIndex(blockNumber, size);
+        return eraseBatches(sorted);
+    }
+
+    /**
+     * Erase the blocks matching the predicate, see {@link #eraseAll(Collection)}. The predicate is given a copy of
+     * each block, as it is when it is tested; no lock is held meanwhile.
+     *
+     * @param predicate predicate selecting the blocks to erase
+     * @return record of the erasure
+     * @throws NullPointerException if the predicate is null
+     */
+    public EraseRecord eraseIf(Predicate<Block> predicate) throws NullPointerException {
+        Objects.requireNonNull(predicate);
+        IntStream.Builder matching = IntStream.builder();
+        for (int blockNumber = 0, size = size(); blockNumber < size; ++blockNumber) {
+            if (predicate.test(copyOf(blockData.get((int) numbering.toIndex(blockNumber)))))
+                matching.add(blockNumber);
+        }
+        return eraseBatches(matching.build().toArray());
+    }
+
+    /**
+     * Add all data to the blocktensor in one batch. Equivalent to calling add for each element in order, except that
+     * all blocks of the batch get the same timestamp and each line affected by the batch is rehashed only once, at the
+     * end. Nothing is modified if there is not enough space for the whole batch.
+     *
+     * @param data data byte arrays
+     * @return block number of the first added block, or size() if the list is empty
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws NullPointerException      if the list is null
+     */
+    public int addAll(List<byte[]> data) throws IndexOutOfBoundsException, NullPointerException {
+        return addAll(data, null);
+    }
+
+    /**
+     * Add all data to the blocktensor in one batch, rehashing the affected blocks and lines in parallel in the given
+     * pool. See {@link #addAll(List)}.
+     *
+     * @param data data byte arrays
+     * @param pool pool to rehash in, or null to rehash in the calling thread
+     * @return block number of the first added block, or size() if the list is empty
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws NullPointerException      if the list is null
+     */
+    public int addAll(List<byte[]> data, ForkJoinPool pool) throws IndexOutOfBoundsException, NullPointerException {
+        byte[][] array = data.toArray(new byte[0][]);
+        structureLock.writeLock().lock();
+        try {
+            // single writers hold the read lock, so no block can be added between reading the size and the batch
+            int first = size();
+            writeAll(IntStream.range(first, first + array.length).toArray(), array, null, pool);
+            return first;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set data to the given blocks in one batch. Equivalent to calling set(blockNumbers[i], data[i]) for each i in
+     * order, except that all blocks of the batch get the same timestamp and each line affected by the batch is
+     * rehashed only once, at the end. A block number may be equal to the size reached by the preceding elements of the
+     * batch to add a block to the end. Nothing is modified if any block number is not in the required interval.
+     *
+     * @param blockNumbers block numbers
+     * @param data         data byte arrays, one for each block number
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws IllegalArgumentException  if the arrays are not of the same length
+     */
+    public byte[][] setAll(int[] blockNumbers, byte[][] data) throws IndexOutOfBoundsException,
+            IllegalArgumentException {
+        return setAll(blockNumbers, data, null);
+    }
+
+    /**
+     * Set data to the given blocks in one batch, rehashing the affected blocks and lines in parallel in the given
+     * pool. See {@link #setAll(int[], byte[][])}.
+     *
+     * @param blockNumbers block numbers
+     * @param data         data byte arrays, one for each block number
+     * @param pool         pool to rehash in, or null to rehash in the calling thread
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws IllegalArgumentException  if the arrays are not of the same length
+     */
+    public byte[][] setAll(int[] blockNumbers, byte[][] data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, IllegalArgumentException {
+        if (blockNumbers.length != data.length)
+            throw new IllegalArgumentException("There must be exactly one data array for each block number.");
+        structureLock.writeLock().lock();
+        try {
+            return writeAll(blockNumbers, data, null, pool);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set data with explicit timestamps to the given blocks in one batch. See {@link #setAll(int[], byte[][])}.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data byte arrays, one for each block number
+     * @param pool         pool to rehash in, or null to rehash in the calling thread
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws IllegalArgumentException  if the arrays are not of the same length
+     */
+    byte[][] setAll(int[] blockNumbers, long[] timestamps, byte[][] data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, IllegalArgumentException {
+        if (blockNumbers.length != data.length || blockNumbers.length != timestamps.length)
+            throw new IllegalArgumentException("There must be exactly one data array for each block number.");
+        structureLock.writeLock().lock();
+        try {
+            return writeAll(blockNumbers, data, timestamps, pool);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set data with explicit timestamps to the given blocks in one batch, on behalf of a public operation: copying the
+     * blocks of a replica, see {@link BlockTensorSync}, or erasing blocks in bulk. Subclasses that record the
+     * modifications override it.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data byte arrays, one for each block number
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     */
+    byte[][] applyBatch(int[] blockNumbers, long[] timestamps, byte[][] data) throws IndexOutOfBoundsException {
+        return setAll(blockNumbers, timestamps, data, null);
+    }
+
+    /**
+     * Get the compression of the stored data. This is fixed.
+     *
+     * @return compression
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get the store sharing equal data between blocks.
+     *
+     * @return store, or null if the blocktensor does not deduplicate data
+     */
+    PayloadStore getPayloadStore() {
+        return payloads;
+    }
+
+    /**
+     * Get the block numbers of the cells all of whose lines are in the given set, in ascending order. The lines of the
+     * dimension with the fewest lines in the set are walked, and each of their cells is checked against the lines
+     * through it along the other dimensions.
+     *
+     * @param lines numbers of the lines
+     * @return block numbers, some of which may be beyond the size
+     */
+    int[] blocksOnLines(BitSet lines) {
+        int walked = 0;
+        int fewest = Integer.MAX_VALUE;
+        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
+            int count = lines.get(varDimIdx * linesPerDim, (varDimIdx + 1) * linesPerDim).cardinality();
+            if (count < fewest) {
+                walked = varDimIdx;
+                fewest = count;
+            }
+        }
+
+        IntStream.Builder blockNumbers = IntStream.builder();
+        int stride = (int) numbering.stride(walked);
+        for (int line = lines.nextSetBit(walked * linesPerDim); line >= 0 && line < (walked + 1) * linesPerDim;
+             line = lines.nextSetBit(line + 1)) {
+            for (int i = 0, index = firstCell(line); i < width; ++i, index += stride) {
+                boolean onAll = true;
+                for (int varDimIdx = 0; varDimIdx < getDimCount() && onAll; ++varDimIdx)
+                    onAll = lines.get(lineOf(varDimIdx, index));
+                if (onAll)
+                    blockNumbers.add((int) numbering.toBlockNumber(index));
+            }
+        }
+        return blockNumbers.build().sorted().toArray();
+    }
+
+    /**
+     * Check that the block numbers of a batch are in the required interval, see {@link #setAll(int[], byte[][])}. The
+     * result holds only while no other thread adds blocks.
+     *
+     * @param blockNumbers block numbers
+     * @return size after the batch
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     */
+    int checkBlockNumbers(int[] blockNumbers) throws IndexOutOfBoundsException {
+        int newSize = size();
+        for (int blockNumber : blockNumbers) {
+            if (blockNumber == newSize)
+                Objects.checkIndex(newSize++, capacity());
+            else
+                Objects.checkIndex(blockNumber, newSize);
+        }
+        return newSize;
+    }
+
+    /**
+     * Fill the empty blocktensor with the given blocks in block number order, hashing the blocks and then all lines
+     * in the pool. The data arrays are given as they are stored, compressed if the blocktensor compresses data, see
+     * {@link #snapshot()}, and stored without copying, so the caller must not modify them.
+     *
+     * @param timestamps timestamps of the blocks
+     * @param data       data byte arrays, one for each timestamp
+     * @param pool       pool to hash in
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws IllegalArgumentException  if the arrays are not of the same length or any compressed data is corrupted
+     * @throws IllegalStateException     if the blocktensor is not empty
+     */
+    void restore(long[] timestamps, byte[][] data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, IllegalArgumentException, IllegalStateException {
+        if (timestamps.length != data.length)
+            throw new IllegalArgumentException("There must be exactly one data array for each timestamp.");
+        structureLock.writeLock().lock();
+        try {
+            if (size() != 0)
+                throw new IllegalStateException("Blocktensor must be empty.");
+            Objects.checkFromIndexSize(0, data.length, capacity());
+            pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, data.length).parallel().forEach(i -> {
+                byte[] stored = data[i] == null || data[i].length == 0 ? EMPTY_DATA : data[i];
+                blockData.set((int) numbering.toIndex(i), storedBlock(timestamps[i], stored));
+            })));
+            pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, hashes.capacity()).parallel()
+                    .forEach(this::updateLineHash)));
+            size.set(data.length);
+            for (int i = 0; i < data.length; ++i)
+                touchedIndexes.add((int) numbering.toIndex(i));
+            timestampIndex.changedAll(IntStream.range(0, data.length).toArray());
+            int[] allLines = IntStream.range(0, hashes.capacity()).toArray();
+            touchedLines.addAll(allLines);
+            merkleDirtyLines.addAll(allLines);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take a consistent snapshot of the blocks and the line hashes. Blocks are immutable, so only the references are
+     * copied; no modification is in progress while they are collected.
+     *
+     * @return snapshot
+     */
+    Snapshot snapshot() {
+        structureLock.writeLock().lock();
+        try {
+            Block[] blocks = new Block[size()];
+            for (int i = 0; i < blocks.length; ++i)
+                blocks[i] = blockData.get((int) numbering.toIndex(i));
+            return new Snapshot(blocks, hashes.toByteArray());
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the batch, see {@link #setAll(int[], byte[][], ForkJoinPool)}. The caller holds the write lock.
+     *
+     * @param blockNumbers block numbers
+     * @param data         data byte arrays, one for each block number
+     * @param timestamps   timestamps of the blocks, one for each block number, or null to use one timestamp()
+     * @param pool         pool to rehash in, or null to rehash in the calling thread
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     */
+    private byte[][] writeAll(int[] blockNumbers, byte[][] data, long[] timestamps, ForkJoinPool pool)
+            throws IndexOutOfBoundsException {
+        int newSize = checkBlockNumbers(blockNumbers);
+
+        // find the element of the batch that sets each cell last, remembering which lines have to be rehashed
+        Map<Integer, Integer> last = new HashMap<>();
+        BitSet dirtyLines = new BitSet(hashes.capacity());
+        byte[][] stored = new byte[blockNumbers.length][];
+        byte[][] old = new byte[blockNumbers.length][];
+        boolean[] fromTensor = new boolean[blockNumbers.length];
+        for (int i = 0; i < blockNumbers.length; ++i) {
+            int index = (int) numbering.toIndex(blockNumbers[i]);
+            stored[i] = data[i] == null || data[i].length == 0 ? EMPTY_DATA : data[i].clone();
+            Integer previous = last.put(index, i);
+            old[i] = previous != null ? stored[previous] : blockData.get(index).getData();
+            fromTensor[i] = previous == null;
+            for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx)
+                dirtyLines.set(lineOf(varDimIdx, index));
+        }
+
+        // create the new blocks, then the line hashes, which depend on the block hashes
+        long timestamp = timestamps == null ? timestamp() : 0;
+        int[] indexes = last.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Block[] blocks = new Block[indexes.length];
+        IntUnaryOperator element = k -> last.get(indexes[k]);
+        if (pool == null) {
+            for (int k = 0; k < indexes.length; ++k) {
+                int i = element.applyAsInt(k);
+                blocks[k] = share(newBlock(timestamps == null ? timestamp : timestamps[i], stored[i]));
+            }
+            publish(indexes, blocks);
+            dirtyLines.stream().forEach(this::updateLineHash);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, indexes.length).parallel().forEach(k -> {
+                int i = element.applyAsInt(k);
+                blocks[k] = share(newBlock(timestamps == null ? timestamp : timestamps[i], stored[i]));
+            })));
+            publish(indexes, blocks);
+            pool.invoke(ForkJoinTask.adapt(() -> dirtyLines.stream().parallel().forEach(this::updateLineHash)));
+        }
+
+        for (int i = 0; i < old.length; ++i) {
+            if (fromTensor[i])
+                old[i] = replaced(old[i]);
+        }
+        size.set(newSize);
+        touchedIndexes.addAll(indexes);
+        timestampIndex.changedAll(blockNumbers);
+        int[] lines = dirtyLines.stream().toArray();
+        touchedLines.addAll(lines);
+        merkleDirtyLines.addAll(lines);
+        return old;
+    }
+
     /**
      * Number of set blocks. Does not decrease after erase and set.
      *
      * @return number of blocks modified
      */
     public int size() {
-        return size;
+        return size.get();
     }
 
     /**
@@ -230,7 +1038,7 @@ public class BlockTensor {
      * @return capacity of blocktensor
      */
     public int capacity() {
-        return blockData.capacity();
+        return blockData.length();
     }
 
     /**
@@ -251,151 +1059,529 @@ public class BlockTensor {
         return dimCount;
     }
 
+    /**
+     * Get the timestamp of the template block, which every cell holds before it is set. This is fixed.
+     *
+     * @return origin timestamp
+     */
+    public long getOriginTimestamp() {
+        return originTimestamp;
+    }
+
+    /**
+     * Get the hash engine of the blocktensor. This is fixed.
+     *
+     * @return hash engine used for the block hashes and the line hashes
+     */
+    public HashEngine getHashEngine() {
+        return hashEngine;
+    }
+
     /**
      * Check the validity of the blocktensor by checking whether each block has the same hash value stored as the one
-     * calculated for it, and checking whether each line hash stored is the same as the one calculated.
+     * calculated for it, and checking whether each line hash stored is the same as the one calculated. A successful
+     * check is a checkpoint for {@link #validateIncremental()}.
      *
      * @return whether the tensor is valid
      */
     public Boolean isValid() {
-        //loop through matrix to check block hashes:
-        for (int i = 0; i < size(); i++) {
-            Block b = getBlock(i);
-            //compare registered hash and calculated hash:
-            if (!Arrays.equals(b.getHash(), b.calculateHash())) {
-                return false;
+        structureLock.writeLock().lock();
+        try {
+            byte[] calculatedHash = new byte[hashEngine.getDigestLength()];
+
+            //loop through matrix to check block hashes:
+            for (int i = 0; i < size(); i++) {
+                if (!isBlockValid((int) numbering.toIndex(i), calculatedHash)) {
+                    return false;
+                }
             }
-        }
 
-        // check if all line hashes are valid
-        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
-            for (int i = 0; i < hashes.capacity(); ++i) {
-                int[] fixedIndexes = Tensor.indexToIndexes(dimCount - 1, width, i);
-                byte[] existingHash = hashes.get(fixedIndexes)[varDimIdx];
-                byte[] calculatedHash = calculateLineHash(varDimIdx, fixedIndexes);
-                if (!Arrays.equals(existingHash, calculatedHash)) {
+            // check if all line hashes are valid, lines are visited in the order they are stored
+            for (int line = 0; line < hashes.capacity(); ++line) {
+                if (!isLineValid(line, calculatedHash)) {
                     return false;
                 }
             }
+
+            markValidated();
+            return true;
+        } finally {
+            structureLock.writeLock().unlock();
         }
+    }
 
-        return true;
+    /**
+     * Check the validity of the blocktensor in parallel, the same as {@link #isValid()}. The blocks and the lines are
+     * split into fork-join tasks executed in the given pool. As soon as any task finds a mismatch, the remaining tasks
+     * stop without checking their blocks and lines.
+     *
+     * @param pool pool to execute the tasks in
+     * @return whether the tensor is valid
+     * @throws NullPointerException if pool is null
+     */
+    public boolean isValid(ForkJoinPool pool) throws NullPointerException {
+        structureLock.writeLock().lock();
+        try {
+            // blocks come first, then lines, but each item is checked independently of the others
+            ValidationTask task = new ValidationTask(0, size() + hashes.capacity(), size(), new AtomicBoolean());
+            if (!pool.invoke(task))
+                return false;
+            markValidated();
+            return true;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Initialize indexing from the data tensor indexes to block numbers. Block number 0 corresponds to {0,0,...,0} and
-     * all subsequent block numbers are assigned in order of breadth-first search from this point, i.e. block number 1
-     * is {0,0,...,1} and block number 2 is {0,0,...,1,0}. The mapping in both directions is calculated and stored to be
-     * used later.
+     * Check the validity of the blocks and lines modified since the last successful validation, either full or
+     * incremental. The cost depends on the number of modifications, not on the size of the blocktensor. Blocks and
+     * lines that were not modified through this blocktensor are not checked, so tampering with the underlying memory
+     * is only detected by a full validation; see {@link #setFullValidationInterval(int)}.
+     * <p>
+     * Writers queue the cells and lines they modify, see {@link ChangeQueue}, and the check drains the queues. If the
+     * check fails, the modified blocks and lines are queued again, so they are checked again next time.
+     *
+     * @return whether the modified blocks and lines are valid
      */
-    private void initIndexing() {
-        int[] start = new int[dimCount];
-        Queue<int[]> q = new ArrayDeque<>();
+    public boolean validateIncremental() {
+        structureLock.writeLock().lock();
+        try {
+            if (fullValidationInterval > 0 && incrementalValidations + 1 >= fullValidationInterval)
+                return isValid();
 
-        q.add(start);
+            int[] indexes = touchedIndexes.drain();
+            int[] lines = touchedLines.drain();
+            byte[] calculatedHash = new byte[hashEngine.getDigestLength()];
+            boolean valid = Arrays.stream(indexes).allMatch(index -> isBlockValid(index, calculatedHash)) &&
+                    Arrays.stream(lines).allMatch(line -> isLineValid(line, calculatedHash));
+            if (!valid) {
+                touchedIndexes.addAll(indexes);
+                touchedLines.addAll(lines);
+                return false;
+            }
+            incrementalValidations++;
+            return true;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
 
-        // get next indexes from the current one by adding 1 to each index
-        // example in 3 dimensions: {0,0,0} -> [{0,0,1},{0,1,0},{1,0,0}]
-        Function<int[], int[][]> nextIndexes = (int[] idx) -> {
-            int[] next;
-            int[][] res = new int[dimCount][];
+    /**
+     * Make every interval-th call of {@link #validateIncremental()} a full validation, counting from the last full
+     * validation.
+     *
+     * @param interval number of incremental validations per full one, or 0 to never validate fully
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    public void setFullValidationInterval(int interval) throws IllegalArgumentException {
+        if (interval < 0)
+            throw new IllegalArgumentException("Interval must not be negative.");
+        this.fullValidationInterval = interval;
+    }
 
-            for (int i = 0; i < dimCount; ++i) {
-                next = idx.clone();
-                next[i]++;
-                if (next[i] >= width)
-                    continue;
-                res[i] = next;
-            }
+    /**
+     * Get the number of blocks modified since the last successful validation. The cost depends on the number of
+     * modifications, not on the size of the blocktensor.
+     *
+     * @return number of modified blocks
+     */
+    public int getModifiedBlockCount() {
+        return touchedIndexes.count();
+    }
 
-            return res;
-        };
+    /**
+     * Initialize all line hashes in the blocktensor. All cells hold copies of the same template block, so all lines
+     * have the same hash, which is calculated only once.
+     */
+    private void initHashes() {
+        byte[] hash = calculateLineHash(0).digest();
+        for (int i = 0; i < hashes.capacity(); ++i)
+            hashes.set(i, hash);
+    }
 
-        // BFS
-        int idx = 0;
-        while (!q.isEmpty()) {
-            int[] cur = q.poll();
+    /**
+     * Write the new block and update the hashes of all lines through it. The caller holds the read lock and has
+     * checked the block number.
+     *
+     * @param blockNumber block number
+     * @param block       new block, hashed already
+     * @return data that was there before
+     */
+    private byte[] write(int blockNumber, Block block) {
+        int index = (int) numbering.toIndex(blockNumber);
+        byte[] old = replaced(blockData.getAndSet(index, share(block)).getData());
+        touchedIndexes.add(index);
+        timestampIndex.changed(blockNumber);
 
-            if (indexesToBlockNumber.get(cur) != null)
-                continue;
+        /*
+        Each writer rehashes the lines through its block after publishing it, under the line lock, so the last hash of
+        each line is calculated from the final block hashes whatever the order of concurrent writers is.
+         */
+        // update hashes of lines which intersect the modified index, making each index variable one by one
+        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
+            int line = lineOf(varDimIdx, index);
+            synchronized (lineLock(line)) {
+                updateLineHash(line);
+            }
+            touchedLines.add(line);
+            merkleDirtyLines.add(line);
+        }
+        return old;
+    }
 
-            indexesToBlockNumber.set(idx, cur);
-            idx++;
+    /**
+     * Erase the blocks in batches of {@link #ERASE_BATCH}, each applied by {@link #applyBatch(int[], long[],
+     * byte[][])}.
+     *
+     * @param blockNumbers block numbers in ascending order, each in the interval [0 .. size)
+     * @return record of the erasure
+     */
+    private EraseRecord eraseBatches(int[] blockNumbers) {
+        long timestamp = timestamp();
+        long erasedBytes = 0;
+        for (int from = 0; from < blockNumbers.length; from += ERASE_BATCH) {
+            int[] batch = Arrays.copyOfRange(blockNumbers, from, Math.min(from + ERASE_BATCH, blockNumbers.length));
+            long[] timestamps = new long[batch.length];
+            Arrays.fill(timestamps, timestamp);
+            for (byte[] old : applyBatch(batch, timestamps, new byte[batch.length][]))
+                erasedBytes += old.length;
+        }
+        return new EraseRecord(timestamp, blockNumbers, erasedBytes, getRootDigest());
+    }
 
-            for (int[] next : nextIndexes.apply(cur)) {
-                if (next != null)
-                    q.add(next);
+    /**
+     * Read the proof of the block, see {@link #getProof(int)}. The caller holds the read or the write lock.
+     *
+     * @param blockNumber block number
+     * @param checked     whether writers may run, so the proof is checked against the root of the tree its paths were
+     *                    read from
+     * @return proof of the block, or null if it is checked and its hashes do not belong together
+     */
+    private BlockProof readProof(int blockNumber, boolean checked) {
+        int index = (int) numbering.toIndex(blockNumber);
+        byte[] blockHash = blockData.get(index).getHash().clone();
+        byte[][][] otherHashes = new byte[getDimCount()][width - 1][];
+        byte[][] lineHashes = new byte[getDimCount()][];
+        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
+            int stride = (int) numbering.stride(varDimIdx);
+            int first = index - index / stride % width * stride;
+            for (int i = 0, k = 0; i < width; ++i) {
+                if (first + i * stride != index)
+                    otherHashes[varDimIdx][k++] = blockData.get(first + i * stride).getHash().clone();
             }
+            int line = lineOf(varDimIdx, index);
+            synchronized (lineLock(line)) {
+                lineHashes[varDimIdx] = hashes.get(line);
+            }
+        }
+        byte[][][] paths = new byte[getDimCount()][][];
+        byte[] root;
+        synchronized (merkleTree) {
+            updateMerkleTree();
+            for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx)
+                paths[varDimIdx] = merkleTree.path(lineOf(varDimIdx, index));
+            root = merkleTree.root();
         }
+        BlockProof proof = new BlockProof(blockNumber, width, getDimCount(), blockHash, otherHashes, lineHashes, paths);
+        return !checked || BlockProof.verify(proof, hashEngine, width, getDimCount(), root) ? proof : null;
+    }
 
+    /**
+     * Rehash the nodes of the Merkle tree above the lines modified since the last update. The caller holds the monitor
+     * of the tree. Writers queue a line only after its hash is written, so a line hash read while it is being written
+     * is queued again and rehashed by the next update.
+     */
+    private void updateMerkleTree() {
+        int[] dirty = merkleDirtyLines.drain();
+        if (dirty.length > 0)
+            merkleTree.update(dirty);
+    }
+
+    /**
+     * Create new block from the data as given, compressing it as configured. The data is shared with equal data of
+     * other blocks only when the block is published, see {@link #share(Block)}.
+     *
+     * @param timestamp timestamp of the block
+     * @param data      data as given, owned by the blocktensor unless it is compressed, EMPTY_DATA if empty
+     * @return the block
+     */
+    private Block newBlock(long timestamp, byte[] data) {
+        if (!compression.isCompressed() || data == EMPTY_DATA)
+            return new Block(timestamp, data, hashEngine);
+        byte[] compressed = compression.compress(data);
+        if (compression.hashesStoredData())
+            return new Block(timestamp, compressed, hashEngine);
+        Block block = new Block(timestamp, data, hashEngine);
+        block.setData(compressed);
+        return block;
+    }
 
-        // save backwards mapping
-        for (int i = 0; i < indexesToBlockNumber.size(); ++i) {
-            int blockNumber = indexesToBlockNumber.get(i);
-            blockNumberToIndexes.set(blockNumber, Tensor.indexToIndexes(dimCount, width, i));
+    /**
+     * Create new block from the data as it is stored, see {@link #restore(long[], byte[][], ForkJoinPool)}.
+     *
+     * @param timestamp timestamp of the block
+     * @param stored    data as it is stored, owned by the blocktensor, EMPTY_DATA if empty
+     * @return the block
+     * @throws IllegalArgumentException if the compressed data is corrupted
+     */
+    private Block storedBlock(long timestamp, byte[] stored) throws IllegalArgumentException {
+        if (compression.hashesStoredData() || stored == EMPTY_DATA)
+            return new Block(timestamp, store(stored), hashEngine);
+        Block block = new Block(timestamp, compression.decompress(stored), hashEngine);
+        block.setData(store(stored));
+        return block;
+    }
+
+    /**
+     * Get copy of the data of the block as it was given, decompressed if needed.
+     *
+     * @param block stored block
+     * @return data
+     */
+    private byte[] dataOf(Block block) {
+        byte[] data = block.getData();
+        return compression.isCompressed() && data.length != 0 ? compression.decompress(data) : data.clone();
+    }
+
+    /**
+     * Get copy of the stored block with its data as it was given.
+     *
+     * @param block stored block
+     * @return copy of the block
+     */
+    private Block copyOf(Block block) {
+        Block copy = new Block(block);
+        if (compression.isCompressed())
+            copy.setData(dataOf(block));
+        return copy;
+    }
+
+    /**
+     * Drop the reference of a replaced block to its data and get the data as it was given.
+     *
+     * @param data data array of the replaced block
+     * @return the data, not shared with any block
+     */
+    private byte[] replaced(byte[] data) {
+        if (!compression.isCompressed() || data.length == 0)
+            return release(data);
+        if (payloads != null)
+            payloads.release(data);
+        return compression.decompress(data);
+    }
+
+    /**
+     * Create new block from the data as given, read from the channel. Unless the block hash covers the compressed
+     * data, the data is hashed while it is read, so it is not read twice.
+     *
+     * @param channel   channel to read the data from
+     * @param length    length of the data
+     * @param timestamp timestamp of the block
+     * @return the block
+     * @throws IOException              if the channel cannot be read, or it ends before the data
+     * @throws IllegalArgumentException if the length is negative
+     */
+    private Block readBlock(ReadableByteChannel channel, int length, long timestamp)
+            throws IOException, IllegalArgumentException {
+        if (length < 0)
+            throw new IllegalArgumentException("Length must not be negative.");
+        byte[] data = length == 0 ? EMPTY_DATA : new byte[length];
+        boolean hashesData = !compression.isCompressed() || !compression.hashesStoredData();
+        Hasher hasher = hashEngine.hasher();
+        hasher.updateLong(timestamp);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int position = buffer.position();
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Channel ended after " + position + " of " + length + " bytes.");
+            if (hashesData)
+                hasher.update(data, position, buffer.position() - position);
         }
+        if (!hashesData)
+            return newBlock(timestamp, data);
+        byte[] hash = hasher.digest();
+        return new Block(timestamp, compression.isCompressed() && length != 0 ? compression.compress(data) : data,
+                hash);
     }
 
     /**
-     * Update all line hashes in the blocktensor.
+     * Get the data as given for a new block, copied unless it is compressed, since compressed data is never the
+     * given array. The empty array is never modified, so it can be shared.
+     *
+     * @param data data byte array, may be null
+     * @return data owned by the blocktensor, EMPTY_DATA if empty
      */
-    private void updateAllHashes() {
-        // iterate through all possible positions of variable index
-        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
-            // iterate through all fixed indexes for those positions
-            for (int i = 0; i < Tensor.binPow(getWidth(), getDimCount() - 1); ++i) {
-                int[] fixedIndexes = Tensor.indexToIndexes(getDimCount() - 1, getWidth(), i);
-                updateLineHash(varDimIdx, fixedIndexes);
+    private byte[] owned(byte[] data) {
+        return data == null || data.length == 0 ? EMPTY_DATA : compression.isCompressed() ? data : data.clone();
+    }
+
+    /**
+     * Share the data of a new block with equal data of the other blocks, if the blocktensor deduplicates data.
+     *
+     * @param block new block, not published yet
+     * @return the block
+     */
+    private Block share(Block block) {
+        block.setData(store(block.getData()));
+        return block;
+    }
+
+    /**
+     * Get the data array for a new block, the equal stored array if the blocktensor deduplicates data. The empty
+     * array is shared anyway.
+     *
+     * @param data data array owned by the blocktensor
+     * @return array to be held by the block
+     */
+    private byte[] store(byte[] data) {
+        return payloads == null || data == EMPTY_DATA ? data : payloads.intern(data);
+    }
+
+    /**
+     * Drop the reference of a replaced block to its data.
+     *
+     * @param data data array of the replaced block
+     * @return the data, copied if other blocks still hold the array
+     */
+    private byte[] release(byte[] data) {
+        return payloads != null && payloads.release(data) ? data.clone() : data;
+    }
+
+    /**
+     * Publish the new blocks of a batch.
+     *
+     * @param indexes one-dimensional indexes of the cells
+     * @param blocks  new blocks, one for each cell
+     */
+    private void publish(int[] indexes, Block[] blocks) {
+        for (int i = 0; i < indexes.length; ++i)
+            blockData.set(indexes[i], blocks[i]);
+    }
+
+    /**
+     * Get the lock of the line hash.
+     *
+     * @param line number of the line
+     * @return lock object
+     */
+    private Object lineLock(int line) {
+        return lineLocks[line % lineLocks.length];
+    }
+
+    /**
+     * Create lock objects for the given number of items, four per available processor but no more than the items.
+     *
+     * @param items number of items guarded
+     * @return lock objects
+     */
+    static Object[] newLocks(int items) {
+        Object[] locks = new Object[Math.max(1, Math.min(items, 4 * Runtime.getRuntime().availableProcessors()))];
+        for (int i = 0; i < locks.length; ++i)
+            locks[i] = new Object();
+        return locks;
+    }
+
+    /**
+     * Forget the modifications, after the whole blocktensor has been found valid.
+     */
+    private void markValidated() {
+        touchedIndexes.drain();
+        touchedLines.drain();
+        incrementalValidations = 0;
+    }
+
+    /**
+     * Check whether the stored hash of the block is the same as the one calculated for it.
+     *
+     * @param index          one-dimensional index of the cell of the block
+     * @param calculatedHash buffer for the calculated hash
+     * @return whether the block is valid
+     */
+    private boolean isBlockValid(int index, byte[] calculatedHash) {
+        Block b = blockData.get(index);
+        //compare registered hash and calculated hash:
+        if (compression.hashesStoredData() || b.getData().length == 0) {
+            b.calculateHash(hashEngine.hasher(), calculatedHash);
+        } else {
+            Hasher hasher = hashEngine.hasher();
+            hasher.updateLong(b.getTimestamp());
+            try {
+                hasher.update(compression.decompress(b.getData()));
+            } catch (IllegalArgumentException e) {
+                return false;
             }
+            hasher.digest(calculatedHash, 0);
         }
+        return Arrays.equals(b.getHash(), calculatedHash);
     }
 
     /**
-     * Update the hash of the line.
+     * Check whether the stored hash of the line is the same as the one calculated for it.
      *
-     * @param varDimIdx    index of the variable index
-     * @param fixedIndexes fixed indexes
+     * @param line           number of the line in the line hash tensor
+     * @param calculatedHash buffer for the calculated hash
+     * @return whether the line is valid
      */
-    private void updateLineHash(int varDimIdx, int[] fixedIndexes) {
+    private boolean isLineValid(int line, byte[] calculatedHash) {
+        calculateLineHash(line).digest(calculatedHash, 0);
+        return hashes.hashEquals(line, calculatedHash);
+    }
+
+    /**
+     * Get number of the line along the given dimension through the given cell.
+     *
+     * @param varDimIdx index of the variable index
+     * @param index     one-dimensional index of a cell on the line
+     * @return number of the line in the line hash tensor
+     */
+    private int lineOf(int varDimIdx, int index) {
         assert varDimIdx < getDimCount() && varDimIdx >= 0;
-        assert fixedIndexes.length == getDimCount() - 1;
-        // all indexes are in the interval [0 .. width)
-        assert Arrays.stream(fixedIndexes).allMatch(i -> i < getWidth() && i >= 0);
+        assert index >= 0 && index < capacity();
 
-        assert hashes.get(fixedIndexes) != null;
-        hashes.get(fixedIndexes)[varDimIdx] = calculateLineHash(varDimIdx, fixedIndexes);
+        int stride = (int) numbering.stride(varDimIdx);
+        // drop the variable index from the cell index to get the index of the fixed indexes
+        return varDimIdx * linesPerDim + index / (stride * width) * stride + index % stride;
     }
 
     /**
-     * Calculate the hash of the line.
+     * Recalculate and store the hash of the line.
      *
-     * @param varDimIdx    index of the variable index
-     * @param fixedIndexes fixed indexes
-     * @return hash of the line
+     * @param line number of the line in the line hash tensor
      */
-    private byte[] calculateLineHash(int varDimIdx, int[] fixedIndexes) {
-        assert varDimIdx < getDimCount() && varDimIdx >= 0;
-        assert fixedIndexes.length == getDimCount() - 1;
-        // all indexes are in the interval [0 .. width)
-        assert Arrays.stream(fixedIndexes).allMatch(i -> i < getWidth() && i >= 0);
+    private void updateLineHash(int line) {
+        hashes.digest(line, calculateLineHash(line));
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(HASH_ARRAY_SIZE * getWidth());
-        for (Block b : blockData.getLine(varDimIdx, fixedIndexes)) {
+    /**
+     * Feed the hashes of the blocks of the line to a hasher, in order of the variable index. The line hash is the
+     * hash of these block hashes concatenated. The cells of the line are width cells stride apart in the underlying
+     * tensor, so no indexes need to be built.
+     *
+     * @param line number of the line in the line hash tensor
+     * @return hasher of the calling thread fed with the block hashes, to be completed by the caller
+     */
+    private Hasher calculateLineHash(int line) {
+        int stride = (int) numbering.stride(line / linesPerDim);
+        Hasher hasher = hashEngine.hasher();
+        for (int i = 0, index = firstCell(line); i < width; ++i, index += stride) {
+            Block b = blockData.get(index);
             assert b != null;
-            buf.put(b.getHash());
+            hasher.update(b.getHash());
         }
-        return SecurityUtil.applySha256(buf.array());
+        return hasher;
     }
 
     /**
-     * Get block at the given block number.
+     * Get the one-dimensional index of the first cell of the line, the one with the variable index 0.
      *
-     * @param blockNumber block number
-     * @return block
+     * @param line number of the line in the line hash tensor
+     * @return index of the first cell
      */
-    private Block getBlock(int blockNumber) {
-        assert blockNumber >= 0 && blockNumber < capacity();
-        return blockData.get(blockNumberToIndexes.get(blockNumber));
+    private int firstCell(int line) {
+        int stride = (int) numbering.stride(line / linesPerDim);
+        int fixed = line % linesPerDim;
+        return fixed / stride * stride * width + fixed % stride;
     }
 
     /**
@@ -406,4 +1592,101 @@ public class BlockTensor {
     protected long timestamp() {
         return System.currentTimeMillis();
     }
+
+    /**
+     * Blocks of a blocktensor in block number order and its line hashes, all taken at the same moment.
+     */
+    static final class Snapshot {
+        /**
+         * Blocks, which must not be modified.
+         */
+        final Block[] blocks;
+        /**
+         * Line hashes one after another, in order of the line numbers.
+         */
+        final byte[] lineHashes;
+
+        /**
+         * Create new snapshot.
+         *
+         * @param blocks     blocks in block number order
+         * @param lineHashes line hashes
+         */
+        Snapshot(Block[] blocks, byte[] lineHashes) {
+            this.blocks = blocks;
+            this.lineHashes = lineHashes;
+        }
+    }
+
+    /**
+     * Fork-join task checking a range of blocks and lines. Items [0 .. blockCount) are block numbers, the following
+     * items are line numbers. Ranges are split in halves until they are small enough.
+     */
+    private class ValidationTask extends RecursiveTask<Boolean> {
+        /**
+         * Serialization version, tasks are never serialized.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * Number of items checked by one task without splitting.
+         */
+        private static final int THRESHOLD = 1024;
+
+        /**
+         * First item of the range.
+         */
+        private final int from;
+        /**
+         * End of the range, exclusive.
+         */
+        private final int to;
+        /**
+         * Number of blocks checked, items from this one on are lines.
+         */
+        private final int blockCount;
+        /**
+         * Set as soon as any task finds a mismatch, so the other tasks can stop.
+         */
+        private final AtomicBoolean failed;
+
+        /**
+         * Create new task.
+         *
+         * @param from       first item of the range
+         * @param to         end of the range, exclusive
+         * @param blockCount number of blocks checked
+         * @param failed     flag shared by all tasks of one validation
+         */
+        private ValidationTask(int from, int to, int blockCount, AtomicBoolean failed) {
+            this.from = from;
+            this.to = to;
+            this.blockCount = blockCount;
+            this.failed = failed;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                ValidationTask right = new ValidationTask(mid, to, blockCount, failed);
+                right.fork();
+                boolean valid = new ValidationTask(from, mid, blockCount, failed).compute();
+                return right.join() && valid;
+            }
+
+            byte[] calculatedHash = new byte[hashEngine.getDigestLength()];
+            for (int i = from; i < to; ++i) {
+                if (failed.get())
+                    return false;
+                boolean valid = i < blockCount ?
+                        isBlockValid((int) numbering.toIndex(i), calculatedHash) :
+                        isLineValid(i - blockCount, calculatedHash);
+                if (!valid) {
+                    failed.set(true);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,253 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/**
+ * Binary snapshots of blocktensors. A snapshot holds a header (magic number, version, width, dimension count, size,
+ * hash size, origin timestamp, compression and the name of the hash algorithm), the records of the blocks in block
+ * number order (timestamp, data length, data as stored and hash) and the line hashes, all big-endian. Snapshots of
+ * version 1 have no compression field and are read as uncompressed.
+ * <p>
+ * Writing a snapshot hands the stored data and hashes to the channel directly, in large gathering writes, without
+ * copying them. Reading a snapshot rehashes all blocks and lines in parallel and fails if any hash differs from the
+ * stored one. Snapshot files can be copied to other channels by {@link #transfer(Path, WritableByteChannel)}, which
+ * lets the operating system move the bytes.
+ */
+public class BlockTensorSnapshot {
+    /**
+     * Magic number at the start of a snapshot, "BLKTSNP" followed by a zero byte.
+     */
+    static final long MAGIC = 0x424C4B54534E5000L;
+    /**
+     * Version of the format.
+     */
+    static final int VERSION = 2;
+    /**
+     * Size of the fixed part of the header, the name of the hash algorithm follows it.
+     */
+    static final int HEADER_SIZE = Long.BYTES * 2 + Integer.BYTES * 7;
+    /**
+     * Size of the fields of a block record before the data: timestamp and data length.
+     */
+    static final int RECORD_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    /**
+     * Number of block records handed to the channel in one gathering write.
+     */
+    private static final int GATHER_BATCH = 1024;
+    /**
+     * Number of stored block hashes kept in one array while a snapshot is read, so large snapshots do not need one
+     * huge array.
+     */
+    private static final int HASH_PAGE = 1 << 16;
+
+    /**
+     * Write snapshot of the blocktensor to a new file and force it to the storage device.
+     *
+     * @param bt   blocktensor
+     * @param file snapshot file
+     * @throws IOException if the file cannot be written, or it already exists
+     */
+    public static void write(BlockTensor bt, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            write(bt, channel);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Write snapshot of the blocktensor to the channel. The snapshot is consistent even if other threads modify the
+     * blocktensor meanwhile; they only wait while the blocks are collected, not while they are written.
+     *
+     * @param bt      blocktensor
+     * @param channel channel to write to, it is not closed
+     * @throws IOException if the channel cannot be written
+     */
+    public static void write(BlockTensor bt, WritableByteChannel channel) throws IOException {
+        BlockTensor.Snapshot snapshot = bt.snapshot();
+        byte[] algorithm = bt.getHashEngine().getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + algorithm.length);
+        header.putLong(MAGIC).putInt(VERSION).putInt(bt.getWidth()).putInt(bt.getDimCount())
+                .putInt(snapshot.blocks.length).putInt(bt.getHashEngine().getDigestLength())
+                .putLong(bt.getOriginTimestamp()).putInt(bt.getCompression().ordinal()).putInt(algorithm.length)
+                .put(algorithm).flip();
+        writeFully(channel, new ByteBuffer[]{header}, 1);
+
+        ByteBuffer[] buffers = new ByteBuffer[GATHER_BATCH * 3];
+        byte[] fields = new byte[GATHER_BATCH * RECORD_HEADER_SIZE];
+        ByteBuffer fieldBuffer = ByteBuffer.wrap(fields);
+        int count = 0;
+        for (Block block : snapshot.blocks) {
+            int position = fieldBuffer.position();
+            fieldBuffer.putLong(block.getTimestamp()).putInt(block.getData().length);
+            buffers[count++] = ByteBuffer.wrap(fields, position, RECORD_HEADER_SIZE);
+            buffers[count++] = ByteBuffer.wrap(block.getData());
+            buffers[count++] = ByteBuffer.wrap(block.getHash());
+            if (count == buffers.length) {
+                writeFully(channel, buffers, count);
+                fieldBuffer.clear();
+                count = 0;
+            }
+        }
+        writeFully(channel, buffers, count);
+        writeFully(channel, new ByteBuffer[]{ByteBuffer.wrap(snapshot.lineHashes)}, 1);
+    }
+
+    /**
+     * Read blocktensor from the snapshot file, verifying its hashes in the common pool.
+     *
+     * @param file snapshot file
+     * @return the blocktensor
+     * @throws IOException              if the file cannot be read, does not hold a snapshot or any hash differs
+     * @throws IllegalArgumentException if the hash algorithm of the snapshot is not available
+     */
+    public static BlockTensor read(Path file) throws IOException, IllegalArgumentException {
+        return read(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Read blocktensor from the snapshot file. The blocks are read sequentially, then all block hashes and line
+     * hashes are recalculated in the pool and compared with the stored ones.
+     *
+     * @param file snapshot file
+     * @param pool pool to hash in
+     * @return the blocktensor
+     * @throws IOException              if the file cannot be read, does not hold a snapshot or any hash differs
+     * @throws IllegalArgumentException if the hash algorithm of the snapshot is not available
+     */
+    public static BlockTensor read(Path file, ForkJoinPool pool) throws IOException, IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long remaining = channel.size();
+            // closing the channel is enough, the stream holds no other resources
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                    1 << 16));
+            try {
+                if (in.readLong() != MAGIC)
+                    throw new IOException("File " + file + " does not hold a snapshot.");
+                int version = in.readInt();
+                if (version != 1 && version != VERSION)
+                    throw new IOException("Unsupported version " + version + ".");
+                int width = in.readInt();
+                int dimCount = in.readInt();
+                int size = in.readInt();
+                int hashSize = in.readInt();
+                long originTimestamp = in.readLong();
+                int compression = version == 1 ? Compression.NONE.ordinal() : in.readInt();
+                int algorithmLength = in.readInt();
+                remaining -= version == 1 ? HEADER_SIZE - Integer.BYTES : HEADER_SIZE;
+                if (compression < 0 || compression >= Compression.values().length || algorithmLength < 0 ||
+                        algorithmLength > remaining)
+                    throw new IOException("Corrupted header.");
+                byte[] algorithm = new byte[algorithmLength];
+                in.readFully(algorithm);
+                remaining -= algorithmLength;
+
+                HashEngine hashEngine = SecurityUtil.getHashEngine(new String(algorithm, StandardCharsets.UTF_8));
+                if (hashEngine.getDigestLength() != hashSize)
+                    throw new IOException("Hash size does not match the hash algorithm.");
+                BlockTensor bt;
+                try {
+                    bt = new BlockTensor(width, dimCount, hashEngine, originTimestamp, false,
+                            Compression.values()[compression]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Corrupted header.", e);
+                }
+                if (size < 0 || size > bt.capacity() || size > remaining / (RECORD_HEADER_SIZE + hashSize))
+                    throw new IOException("Corrupted header.");
+
+                long[] timestamps = new long[size];
+                byte[][] data = new byte[size][];
+                byte[][] blockHashes = new byte[(size + HASH_PAGE - 1) / HASH_PAGE][];
+                for (int page = 0; page < blockHashes.length; ++page)
+                    blockHashes[page] = new byte[Math.min(HASH_PAGE, size - page * HASH_PAGE) * hashSize];
+                for (int i = 0; i < size; ++i) {
+                    timestamps[i] = in.readLong();
+                    int length = in.readInt();
+                    remaining -= RECORD_HEADER_SIZE;
+                    if (length < 0 || length > remaining - hashSize)
+                        throw new IOException("Corrupted record of block " + i + ".");
+                    data[i] = new byte[length];
+                    in.readFully(data[i]);
+                    in.readFully(blockHashes[i / HASH_PAGE], i % HASH_PAGE * hashSize, hashSize);
+                    remaining -= length + hashSize;
+                }
+                // the line hashes fill the rest of the file
+                if (remaining != (long) bt.capacity() / width * dimCount * hashSize)
+                    throw new IOException("Line hashes are not of the expected size.");
+                byte[] lineHashes = new byte[(int) remaining];
+                in.readFully(lineHashes);
+
+                try {
+                    bt.restore(timestamps, data, pool);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Corrupted record.", e);
+                }
+                Integer invalid = pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, size).parallel()
+                        .filter(i -> !bt.getHashView(i).equals(ByteBuffer.wrap(blockHashes[i / HASH_PAGE],
+                                i % HASH_PAGE * hashSize, hashSize)))
+                        .boxed().findAny().orElse(null)));
+                if (invalid != null)
+                    throw new IOException("Hash of block " + invalid + " does not match.");
+                if (!Arrays.equals(bt.snapshot().lineHashes, lineHashes))
+                    throw new IOException("Line hashes do not match.");
+                return bt;
+            } catch (EOFException e) {
+                throw new IOException("File " + file + " is too short.", e);
+            }
+        }
+    }
+
+    /**
+     * Copy the snapshot file to the channel, letting the operating system move the bytes where it can, for example
+     * to another file or a socket.
+     *
+     * @param file    snapshot file
+     * @param channel channel to copy to, it is not closed
+     * @throws IOException if the file cannot be read or the channel cannot be written
+     */
+    public static void transfer(Path file, WritableByteChannel channel) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            for (long position = 0; position < size; )
+                position += source.transferTo(position, size - position, channel);
+        }
+    }
+
+    /**
+     * Write the first count buffers completely.
+     *
+     * @param channel channel to write to
+     * @param buffers buffers to write
+     * @param count   number of buffers
+     * @throws IOException if the channel cannot be written
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            for (int first = 0; first < count; ) {
+                gathering.write(buffers, first, count - first);
+                while (first < count && !buffers[first].hasRemaining())
+                    ++first;
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                while (buffers[i].hasRemaining())
+                    channel.write(buffers[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Anti-entropy between replicas of a blocktensor, blocktensors of the same width, dimension count, hash engine, origin
+ * timestamp and block hashes over the same form of the data, see {@link Compression}. Replicas holding the same
+ * blocks have the same Merkle tree over their line hashes, see {@link BlockTensor#getRootDigest()}, so the replicas
+ * first compare their root digests, then descend the tree level by level, comparing only the children of the nodes
+ * that differ, down to the lines that differ. A block that differs changes every line through it, so only the cells
+ * all of whose lines differ are candidates, and only the candidates are compared block by block. Only the hashes on
+ * the paths to the lines that differ and the blocks that differ are transferred.
+ * <p>
+ * The replicas can be in the same process, see {@link #pull(BlockTensor, BlockTensor)}, or connected by a pair of
+ * channels, for example a socket, see {@link #serve(BlockTensor, ReadableByteChannel, WritableByteChannel)} and
+ * {@link #pull(BlockTensor, ReadableByteChannel, WritableByteChannel)}. Over channels one session takes a round trip
+ * per level of the tree, log2(lines) of them, and two more: the target sends its root digest and receives the size of
+ * the source, then for each level it sends the nodes that differ and receives the hashes of their children, then it
+ * sends the candidates with their block hashes and receives the blocks that differ and the blocks it does not have
+ * yet.
+ * <p>
+ * The source may be modified during a session; the target then gets the blocks as they were when they were read,
+ * and the next session picks up the rest. The target must not be modified during a session. Blocks the target has
+ * beyond the size of the source are kept.
+ */
+public class BlockTensorSync {
+    /**
+     * Magic number at the start of a session, "BLKTSYN" followed by a zero byte.
+     */
+    static final long MAGIC = 0x424C4B5453594E00L;
+    /**
+     * Version of the protocol.
+     */
+    static final int VERSION = 3;
+    /**
+     * Status of the source: the replicas do not have the same width, dimension count, hash engine or origin timestamp.
+     */
+    private static final int STATUS_INCOMPATIBLE = 0;
+    /**
+     * Status of the source: the root digests are equal, the session ends.
+     */
+    private static final int STATUS_IN_SYNC = 1;
+    /**
+     * Status of the source: the size of the source follows, then the descent of the Merkle tree.
+     */
+    private static final int STATUS_DIFF = 2;
+    /**
+     * Largest length of the name of the hash algorithm accepted by the source.
+     */
+    private static final int MAX_ALGORITHM_LENGTH = 1024;
+
+    /**
+     * Get the block numbers of the blocks that differ between the replicas in ascending order, including the blocks
+     * only one of them has.
+     *
+     * @param local  replica
+     * @param remote other replica
+     * @return block numbers of the blocks that differ
+     * @throws IllegalArgumentException if the blocktensors are not replicas
+     */
+    public static int[] diff(BlockTensor local, BlockTensor remote) throws IllegalArgumentException {
+        checkReplicas(local, remote);
+        if (Arrays.equals(local.getRootDigest(), remote.getRootDigest()))
+            return new int[0];
+        int localSize = local.size();
+        int remoteSize = remote.size();
+        int lineCount = lineCount(local);
+        int[] nodes = {0};
+        for (int height = MerkleTree.depth(lineCount); height > 0 && nodes.length > 0; --height) {
+            int[] children = children(nodes, MerkleTree.nodeCount(lineCount, height - 1));
+            nodes = differing(local, height - 1, children, remote.getMerkleNodes(height - 1, children));
+        }
+        IntStream differing = Arrays.stream(candidates(local, nodes, remoteSize))
+                .filter(blockNumber -> !local.getHashView(blockNumber).equals(remote.getHashView(blockNumber)));
+        return IntStream.concat(differing, IntStream.range(Math.min(localSize, remoteSize),
+                Math.max(localSize, remoteSize))).toArray();
+    }
+
+    /**
+     * Copy the blocks of the source that differ in the target to the target in one batch, keeping their timestamps.
+     *
+     * @param target replica to update
+     * @param source replica to copy from
+     * @return number of blocks copied
+     * @throws IllegalArgumentException if the blocktensors are not replicas
+     */
+    public static int pull(BlockTensor target, BlockTensor source) throws IllegalArgumentException {
+        int sourceSize = source.size();
+        int[] blockNumbers = Arrays.stream(diff(target, source)).filter(blockNumber -> blockNumber < sourceSize)
+                .toArray();
+        long[] timestamps = new long[blockNumbers.length];
+        byte[][] data = new byte[blockNumbers.length][];
+        for (int i = 0; i < blockNumbers.length; ++i) {
+            Block block = source.getBlock(blockNumbers[i]);
+            timestamps[i] = block.getTimestamp();
+            data[i] = block.getData();
+        }
+        target.applyBatch(blockNumbers, timestamps, data);
+        return blockNumbers.length;
+    }
+
+    /**
+     * Answer one session of a target, see {@link #pull(BlockTensor, ReadableByteChannel, WritableByteChannel)}. The
+     * channels are not closed.
+     *
+     * @param source replica to copy from
+     * @param in     channel to read the requests of the target from
+     * @param out    channel to write the answers to
+     * @throws IOException if the channels cannot be read or written, or the target does not follow the protocol
+     */
+    public static void serve(BlockTensor source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out),
+                1 << 16));
+        try {
+            if (input.readLong() != MAGIC)
+                throw new IOException("Not a sync session.");
+            int version = input.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + ".");
+            int width = input.readInt();
+            int dimCount = input.readInt();
+            long originTimestamp = input.readLong();
+            int algorithmLength = input.readInt();
+            if (algorithmLength < 0 || algorithmLength > MAX_ALGORITHM_LENGTH)
+                throw new IOException("Corrupted request.");
+            byte[] algorithm = new byte[algorithmLength];
+            input.readFully(algorithm);
+            int hashSize = input.readInt();
+            boolean hashesCompressed = input.readBoolean();
+            HashEngine hashEngine = source.getHashEngine();
+            if (width != source.getWidth() || dimCount != source.getDimCount() ||
+                    originTimestamp != source.getOriginTimestamp() || hashSize != hashEngine.getDigestLength() ||
+                    hashesCompressed != hashesCompressed(source) ||
+                    !hashEngine.getAlgorithm().equals(new String(algorithm, StandardCharsets.UTF_8))) {
+                output.writeInt(STATUS_INCOMPATIBLE);
+                output.flush();
+                return;
+            }
+            byte[] rootDigest = new byte[hashSize];
+            input.readFully(rootDigest);
+            if (Arrays.equals(rootDigest, source.getRootDigest())) {
+                output.writeInt(STATUS_IN_SYNC);
+                output.flush();
+                return;
+            }
+            int size = source.size();
+            output.writeInt(STATUS_DIFF);
+            output.writeInt(size);
+            output.flush();
+
+            // the nodes that differ, answered with the hashes of their children, from the root down to the lines
+            int lineCount = lineCount(source);
+            for (int height = MerkleTree.depth(lineCount); height > 0; --height) {
+                int nodeCount = MerkleTree.nodeCount(lineCount, height);
+                int count = input.readInt();
+                if (count < 0 || count > nodeCount)
+                    throw new IOException("Corrupted request.");
+                if (count == 0)
+                    break;
+                int[] nodes = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    nodes[i] = input.readInt();
+                    if (nodes[i] < 0 || nodes[i] >= nodeCount)
+                        throw new IOException("Corrupted request.");
+                }
+                output.write(source.getMerkleNodes(height - 1,
+                        children(nodes, MerkleTree.nodeCount(lineCount, height - 1))));
+                output.flush();
+            }
+
+            // the candidates the target has, then the blocks it does not have yet
+            int targetSize = input.readInt();
+            int candidateCount = input.readInt();
+            if (targetSize < 0 || candidateCount < 0 || candidateCount > source.capacity())
+                throw new IOException("Corrupted request.");
+            List<Integer> blockNumbers = new ArrayList<>();
+            List<Block> blocks = new ArrayList<>();
+            byte[] hash = new byte[hashSize];
+            for (int i = 0; i < candidateCount; ++i) {
+                int blockNumber = input.readInt();
+                input.readFully(hash);
+                if (blockNumber < 0 || blockNumber >= targetSize)
+                    throw new IOException("Corrupted request.");
+                // only the blocks that differ are copied
+                if (blockNumber < size && !source.getHashView(blockNumber).equals(ByteBuffer.wrap(hash))) {
+                    blockNumbers.add(blockNumber);
+                    blocks.add(source.getBlock(blockNumber));
+                }
+            }
+            for (int blockNumber = targetSize; blockNumber < size; ++blockNumber) {
+                blockNumbers.add(blockNumber);
+                blocks.add(source.getBlock(blockNumber));
+            }
+
+            output.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); ++i) {
+                Block block = blocks.get(i);
+                output.writeInt(blockNumbers.get(i));
+                output.writeLong(block.getTimestamp());
+                output.writeInt(block.getData().length);
+                output.write(block.getData());
+            }
+            output.flush();
+        } catch (EOFException e) {
+            throw new IOException("Session ended early.", e);
+        }
+    }
+
+    /**
+     * Run one session against a source served by {@link #serve(BlockTensor, ReadableByteChannel,
+     * WritableByteChannel)}, copying the blocks of the source that differ in the target to the target in one batch,
+     * keeping their timestamps. The channels are not closed.
+     *
+     * @param target replica to update
+     * @param in     channel to read the answers of the source from
+     * @param out    channel to write the requests to
+     * @return number of blocks copied
+     * @throws IOException if the channels cannot be read or written, the blocktensors are not replicas or the source
+     *                     does not follow the protocol
+     */
+    public static int pull(BlockTensor target, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), 1 << 16));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+        try {
+            byte[] algorithm = target.getHashEngine().getAlgorithm().getBytes(StandardCharsets.UTF_8);
+            output.writeLong(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(target.getWidth());
+            output.writeInt(target.getDimCount());
+            output.writeLong(target.getOriginTimestamp());
+            output.writeInt(algorithm.length);
+            output.write(algorithm);
+            output.writeInt(target.getHashEngine().getDigestLength());
+            output.writeBoolean(hashesCompressed(target));
+            output.write(target.getRootDigest());
+            output.flush();
+
+            int status = input.readInt();
+            if (status == STATUS_INCOMPATIBLE)
+                throw new IOException("Blocktensors are not replicas.");
+            if (status == STATUS_IN_SYNC)
+                return 0;
+            if (status != STATUS_DIFF)
+                throw new IOException("Unexpected status " + status + ".");
+            int sourceSize = input.readInt();
+            if (sourceSize < 0 || sourceSize > target.capacity())
+                throw new IOException("Corrupted answer.");
+            int lineCount = lineCount(target);
+            int[] nodes = {0};
+            for (int height = MerkleTree.depth(lineCount); height > 0; --height) {
+                output.writeInt(nodes.length);
+                for (int node : nodes)
+                    output.writeInt(node);
+                output.flush();
+                if (nodes.length == 0)
+                    break;
+                int[] children = children(nodes, MerkleTree.nodeCount(lineCount, height - 1));
+                byte[] hashes = new byte[children.length * target.getHashEngine().getDigestLength()];
+                input.readFully(hashes);
+                nodes = differing(target, height - 1, children, hashes);
+            }
+
+            int targetSize = target.size();
+            int[] candidates = candidates(target, nodes, sourceSize);
+            output.writeInt(targetSize);
+            output.writeInt(candidates.length);
+            for (int blockNumber : candidates) {
+                output.writeInt(blockNumber);
+                output.write(target.getHash(blockNumber));
+            }
+            output.flush();
+
+            int count = input.readInt();
+            if (count < 0 || count > target.capacity())
+                throw new IOException("Corrupted answer.");
+            int[] blockNumbers = new int[count];
+            long[] timestamps = new long[count];
+            byte[][] data = new byte[count][];
+            for (int i = 0; i < count; ++i) {
+                blockNumbers[i] = input.readInt();
+                timestamps[i] = input.readLong();
+                int length = input.readInt();
+                if (length < 0 || length > Compression.MAX_DATA_LENGTH)
+                    throw new IOException("Corrupted block " + blockNumbers[i] + ".");
+                data[i] = new byte[length];
+                input.readFully(data[i]);
+            }
+            try {
+                target.applyBatch(blockNumbers, timestamps, data);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Blocks do not fit the blocktensor.", e);
+            }
+            return count;
+        } catch (EOFException e) {
+            throw new IOException("Session ended early.", e);
+        }
+    }
+
+    /**
+     * Get the children of the nodes of the Merkle tree, see {@link MerkleTree}.
+     *
+     * @param nodes      indexes of the nodes in ascending order
+     * @param childCount number of nodes of the height below
+     * @return indexes of the children in ascending order
+     */
+    private static int[] children(int[] nodes, int childCount) {
+        return Arrays.stream(nodes).flatMap(node -> IntStream.of(2 * node, 2 * node + 1))
+                .filter(child -> child < childCount).toArray();
+    }
+
+    /**
+     * Get the nodes of the Merkle tree whose hashes differ between the replicas.
+     *
+     * @param local        replica
+     * @param height       height of the nodes, 0 for the lines
+     * @param nodes        indexes of the nodes in ascending order
+     * @param remoteHashes hashes of the nodes in the other replica, one after another
+     * @return indexes of the nodes that differ in ascending order
+     */
+    private static int[] differing(BlockTensor local, int height, int[] nodes, byte[] remoteHashes) {
+        byte[] localHashes = local.getMerkleNodes(height, nodes);
+        int hashSize = local.getHashEngine().getDigestLength();
+        return IntStream.range(0, nodes.length).filter(i -> !Arrays.equals(localHashes, i * hashSize,
+                (i + 1) * hashSize, remoteHashes, i * hashSize, (i + 1) * hashSize)).map(i -> nodes[i]).toArray();
+    }
+
+    /**
+     * Get the blocks both replicas have that may differ: the cells all of whose lines differ.
+     *
+     * @param local     replica
+     * @param lines     numbers of the lines that differ
+     * @param remoteSize size of the other replica
+     * @return block numbers of the candidates in ascending order
+     */
+    private static int[] candidates(BlockTensor local, int[] lines, int remoteSize) {
+        BitSet differingLines = new BitSet(lineCount(local));
+        for (int line : lines)
+            differingLines.set(line);
+        int bothSize = Math.min(local.size(), remoteSize);
+        return Arrays.stream(local.blocksOnLines(differingLines)).filter(blockNumber -> blockNumber < bothSize)
+                .toArray();
+    }
+
+    /**
+     * Get number of lines of the blocktensor, the leaves of its Merkle tree.
+     *
+     * @param bt blocktensor
+     * @return number of lines
+     */
+    private static int lineCount(BlockTensor bt) {
+        return (int) ((long) bt.capacity() / bt.getWidth() * bt.getDimCount());
+    }
+
+    /**
+     * Check that the blocktensors are replicas of each other.
+     *
+     * @param local  replica
+     * @param remote other replica
+     * @throws IllegalArgumentException if the blocktensors are not replicas
+     */
+    private static void checkReplicas(BlockTensor local, BlockTensor remote) throws IllegalArgumentException {
+        if (local.getWidth() != remote.getWidth() || local.getDimCount() != remote.getDimCount() ||
+                local.getOriginTimestamp() != remote.getOriginTimestamp() ||
+                hashesCompressed(local) != hashesCompressed(remote) ||
+                !local.getHashEngine().getAlgorithm().equals(remote.getHashEngine().getAlgorithm()))
+            throw new IllegalArgumentException("Blocktensors are not replicas.");
+    }
+
+    /**
+     * Check whether the block hashes of the blocktensor cover compressed data. Blocktensors storing data uncompressed
+     * and blocktensors hashing the data as given have the same block hashes for the same blocks.
+     *
+     * @param bt blocktensor
+     * @return whether the block hashes cover compressed data
+     */
+    private static boolean hashesCompressed(BlockTensor bt) {
+        return bt.getCompression().isCompressed() && bt.getCompression().hashesStoredData();
+    }
+}
@@ -0,0 +1,126 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.bouncycastle.crypto.Digest;
+
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * Hash engine backed by a digest of the Bouncy Castle lightweight API, such as BLAKE2b or BLAKE2s. The digests are
+ * pure Java and do not need the Bouncy Castle security provider to be installed. One digest instance is created per
+ * thread and reused.
+ */
+public class BouncyCastleHashEngine implements HashEngine {
+    /**
+     * Name of the algorithm.
+     */
+    private final String algorithm;
+    /**
+     * Size of the hashes produced.
+     */
+    private final int digestLength;
+    /**
+     * Hasher of each thread.
+     */
+    private final ThreadLocal<BouncyCastleHasher> hashers;
+
+    /**
+     * Create new hash engine.
+     *
+     * @param algorithm name of the algorithm
+     * @param digests   factory of new digest instances
+     */
+    public BouncyCastleHashEngine(String algorithm, Supplier<Digest> digests) {
+        this.algorithm = algorithm;
+        this.digestLength = digests.get().getDigestSize();
+        this.hashers = ThreadLocal.withInitial(() -> new BouncyCastleHasher(digests.get()));
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    @Override
+    public Hasher hasher() {
+        BouncyCastleHasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * Hasher feeding a lightweight digest.
+     */
+    private static final class BouncyCastleHasher implements Hasher {
+        /**
+         * The digest.
+         */
+        private final Digest digest;
+        /**
+         * Buffer to copy bytes of direct byte buffers through.
+         */
+        private final byte[] buffer;
+
+        /**
+         * Create new hasher.
+         *
+         * @param digest digest
+         */
+        private BouncyCastleHasher(Digest digest) {
+            this.digest = digest;
+            this.buffer = new byte[4096];
+        }
+
+        @Override
+        public void update(byte[] input) {
+            digest.update(input, 0, input.length);
+        }
+
+        @Override
+        public void update(byte[] input, int offset, int length) {
+            digest.update(input, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer input) {
+            if (input.hasArray()) {
+                digest.update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                input.position(input.limit());
+                return;
+            }
+            while (input.hasRemaining()) {
+                int n = Math.min(buffer.length, input.remaining());
+                input.get(buffer, 0, n);
+                digest.update(buffer, 0, n);
+            }
+        }
+
+        @Override
+        public void updateLong(long value) {
+            for (int i = Long.BYTES - 1; i >= 0; --i)
+                digest.update((byte) (value >>> (Byte.SIZE * i)));
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] output = new byte[digest.getDigestSize()];
+            digest.doFinal(output, 0);
+            return output;
+        }
+
+        @Override
+        public void digest(byte[] output, int offset) {
+            digest.doFinal(output, offset);
+        }
+
+        @Override
+        public void reset() {
+            digest.reset();
+        }
+    }
+}
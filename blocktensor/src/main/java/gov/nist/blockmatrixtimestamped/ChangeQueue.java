@@ -0,0 +1,139 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.Arrays;
+
+/**
+ * Queue of the numbers of changed elements, such as block numbers or line numbers, which a reader drains in one go.
+ * The queue is striped like the locks of {@link BlockTensor#newLocks(int)}: the number n is queued in stripe
+ * n % stripes, each stripe guarded by its own monitor, so writers of different elements rarely wait for each other.
+ * <p>
+ * Writers only append to the primitive array of their stripe; when it is full, the numbers queued more than once are
+ * dropped, and the array grows only if that frees less than half of it. A stripe so stays within four times the number
+ * of distinct numbers queued in it, and draining the queue costs time in proportion to the changes, not to the number
+ * of elements. This class is thread-safe.
+ */
+final class ChangeQueue {
+    /**
+     * Initial length of each stripe.
+     */
+    private static final int INITIAL_LENGTH = 16;
+
+    /**
+     * Stripes, the number n is queued in stripes[n % stripes.length].
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Create new empty queue for the numbers of the given number of elements.
+     *
+     * @param items number of elements whose numbers are queued, the numbers lie in the interval [0 .. items)
+     */
+    ChangeQueue(int items) {
+        this.stripes = new Stripe[BlockTensor.newLocks(items).length];
+        for (int i = 0; i < stripes.length; ++i)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Queue the changed number.
+     *
+     * @param number number of the changed element, not negative
+     */
+    void add(int number) {
+        Stripe stripe = stripes[number % stripes.length];
+        synchronized (stripe) {
+            stripe.add(number);
+        }
+    }
+
+    /**
+     * Queue the changed numbers.
+     *
+     * @param numbers numbers of the changed elements, not negative
+     */
+    void addAll(int[] numbers) {
+        for (int number : numbers)
+            add(number);
+    }
+
+    /**
+     * Remove all queued numbers. The stripes are emptied one after another, so numbers queued meanwhile are either
+     * returned or kept for the next call.
+     *
+     * @return numbers queued since the last call, in ascending order without duplicates
+     */
+    int[] drain() {
+        int[][] drained = new int[stripes.length][];
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            synchronized (stripes[i]) {
+                drained[i] = Arrays.copyOf(stripes[i].queue, stripes[i].queued);
+                stripes[i].queued = 0;
+            }
+            total += drained[i].length;
+        }
+        int[] changed = new int[total];
+        for (int i = 0, position = 0; i < drained.length; position += drained[i++].length)
+            System.arraycopy(drained[i], 0, changed, position, drained[i].length);
+        Arrays.sort(changed);
+        return Arrays.stream(changed).distinct().toArray();
+    }
+
+    /**
+     * Get the number of distinct queued numbers, without removing them. Each number is always queued in the same
+     * stripe, so the distinct numbers of the stripes add up.
+     *
+     * @return number of distinct queued numbers
+     */
+    int count() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.dropDuplicates();
+                count += stripe.queued;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * One stripe of the queue, guarded by its own monitor.
+     */
+    private static final class Stripe {
+        /**
+         * Queued numbers, the first queued elements are used.
+         */
+        private int[] queue = new int[INITIAL_LENGTH];
+        /**
+         * Number of queued numbers.
+         */
+        private int queued;
+
+        /**
+         * Queue the number, making room first if the stripe is full.
+         *
+         * @param number number of the changed element
+         */
+        void add(int number) {
+            if (queued == queue.length) {
+                dropDuplicates();
+                if (queued > queue.length / 2)
+                    queue = Arrays.copyOf(queue, queue.length * 2);
+            }
+            queue[queued++] = number;
+        }
+
+        /**
+         * Drop the numbers queued more than once, leaving the queued numbers in ascending order.
+         */
+        void dropDuplicates() {
+            Arrays.sort(queue, 0, queued);
+            int distinct = 0;
+            for (int i = 0; i < queued; ++i) {
+                if (distinct == 0 || queue[distinct - 1] != queue[i])
+                    queue[distinct++] = queue[i];
+            }
+            queued = distinct;
+        }
+    }
+}
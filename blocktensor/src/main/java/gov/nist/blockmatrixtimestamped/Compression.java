@@ -0,0 +1,122 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the data stored in the blocks of a blocktensor. Compressed data is stored as its length followed by
+ * the deflated bytes and inflated again whenever it is read. Empty data is never compressed.
+ * <p>
+ * The option also says what the block hash covers. If it covers the data as given, the hashes are the same as in an
+ * uncompressed blocktensor, but every validation of a block has to inflate it. If it covers the stored compressed
+ * bytes, writes and validations hash fewer bytes and never inflate, but a client verifying a block, see
+ * {@link BlockProof}, needs the compressed bytes, and the hashes depend on the output of the deflater, which is only
+ * guaranteed to be the same for the same Java runtime.
+ */
+public enum Compression {
+    /**
+     * Data is stored as given.
+     */
+    NONE,
+    /**
+     * Data is stored deflated, the block hash covers the data as given.
+     */
+    DEFLATE,
+    /**
+     * Data is stored deflated, the block hash covers the stored compressed bytes.
+     */
+    DEFLATE_HASH_COMPRESSED;
+
+    /**
+     * Maximal length of decompressed data, 1 GiB, so a corrupted length cannot allocate more.
+     */
+    static final int MAX_DATA_LENGTH = 1 << 30;
+    /**
+     * Deflater of each thread, reset before each use.
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    /**
+     * Inflater of each thread, reset before each use.
+     */
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Check whether the data is stored compressed.
+     *
+     * @return whether the data is compressed
+     */
+    public boolean isCompressed() {
+        return this != NONE;
+    }
+
+    /**
+     * Check whether the block hash covers the stored bytes rather than the data as given. The two are the same if the
+     * data is not compressed.
+     *
+     * @return whether the hash covers the stored bytes
+     */
+    public boolean hashesStoredData() {
+        return this != DEFLATE;
+    }
+
+    /**
+     * Compress the data, without modifying it.
+     *
+     * @param data non-empty data
+     * @return length of the data followed by the deflated bytes
+     */
+    byte[] compress(byte[] data) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[Integer.BYTES + Math.max(64, data.length / 4)];
+        ByteBuffer.wrap(compressed).putInt(data.length);
+        int length = Integer.BYTES;
+        while (!deflater.finished()) {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, (int) Math.min(Integer.MAX_VALUE - 8, 2L * compressed.length));
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return Arrays.copyOf(compressed, length);
+    }
+
+    /**
+     * Decompress data compressed by {@link #compress(byte[])}.
+     *
+     * @param compressed length of the data followed by the deflated bytes
+     * @return the data
+     * @throws IllegalArgumentException if the compressed bytes are corrupted or the data is longer than
+     *                                  {@link #MAX_DATA_LENGTH}
+     */
+    byte[] decompress(byte[] compressed) throws IllegalArgumentException {
+        if (compressed.length < Integer.BYTES)
+            throw new IllegalArgumentException("Compressed data is too short.");
+        int length = ByteBuffer.wrap(compressed).getInt();
+        if (length < 0)
+            throw new IllegalArgumentException("Compressed data is corrupted.");
+        if (length > MAX_DATA_LENGTH)
+            throw new IllegalArgumentException("Data must not be longer than " + MAX_DATA_LENGTH + " bytes.");
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+        // the buffer grows with the inflated bytes, so the stated length alone allocates nothing
+        byte[] data = new byte[Math.min(length, Math.max(64, 4 * (compressed.length - Integer.BYTES)))];
+        try {
+            for (int position = 0; position < length; ) {
+                if (position == data.length)
+                    data = Arrays.copyOf(data, (int) Math.min(length, 2L * data.length));
+                int inflated = inflater.inflate(data, position, data.length - position);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IllegalArgumentException("Compressed data is corrupted.");
+                position += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed data is corrupted.", e);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,484 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Blocktensor whose modifications are recorded in a write-ahead log, so it can be recovered after a crash. Every
+ * modification is written to the log before it is applied, and it is durable when the modifying method returns.
+ * Concurrent modifications share one fsync of the log (group commit), see {@link WriteAheadLog#commit(long)}.
+ * <p>
+ * Opening the blocktensor replays the log in batches; each batch rehashes only the blocks it sets and the lines they
+ * lie on. A batch modification is logged as one frame, so it is replayed whole or not at all; a frame that was not
+ * written completely before the crash was never acknowledged, so it is ignored. Modifications that cannot be logged
+ * throw {@link UncheckedIOException}, and they are not applied then.
+ * <p>
+ * The log keeps every modification until it is compacted by {@link #compact()}, which replaces it by the current
+ * blocks alone, so replaying it costs one record per block and the data of erased blocks leaves the log.
+ * {@link #eraseAll(Collection)} and {@link #eraseIf(Predicate)} compact the log before they return, so their erased
+ * data is gone from the file when the erasure record is handed out; the data of single erasures stays in the log
+ * until the next compaction.
+ */
+public class DurableBlockTensor extends BlockTensor implements Closeable {
+    /**
+     * Number of records replayed in one batch when the blocktensor is opened.
+     */
+    static final int REPLAY_BATCH = 4096;
+
+    /**
+     * Log of the modifications.
+     */
+    private final WriteAheadLog log;
+    /**
+     * Lock ordering the modifications: single modifications take the read lock, batches the write lock.
+     */
+    private final ReentrantReadWriteLock batchLock;
+    /**
+     * Lock ordering the added blocks, so they are logged in the order of their block numbers.
+     */
+    private final Object appendLock;
+    /**
+     * Striped locks ordering the modifications of each block, so the log holds them in the order they are applied.
+     * A thread holding the append lock may take them, never the other way round.
+     */
+    private final Object[] blockLocks;
+
+    /**
+     * Create the blocktensor on top of the log.
+     *
+     * @param width           width
+     * @param dimCount        dimension count
+     * @param hashEngine      hash engine
+     * @param originTimestamp timestamp of the template block
+     * @param log             log of the modifications
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    private DurableBlockTensor(int width, int dimCount, HashEngine hashEngine, long originTimestamp,
+                               WriteAheadLog log) throws IllegalArgumentException {
+        super(width, dimCount, hashEngine, originTimestamp);
+        this.log = log;
+        this.batchLock = new ReentrantReadWriteLock();
+        this.appendLock = new Object();
+        this.blockLocks = newLocks(capacity());
+    }
+
+    /**
+     * Create new durable blocktensor with given width and dimCount logging to the file, using SHA-256.
+     *
+     * @param logFile  log file
+     * @param width    width, a positive integer
+     * @param dimCount dimension count, an integer greater than 1
+     * @return the blocktensor
+     * @throws IOException              if the file cannot be created, or it already exists
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    public static DurableBlockTensor create(Path logFile, int width, int dimCount)
+            throws IOException, IllegalArgumentException {
+        return create(logFile, width, dimCount, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new durable blocktensor with given width, dimCount and hash engine logging to the file. The name of the
+     * hash algorithm is stored, so the engine must be available through {@link SecurityUtil#getHashEngine(String)}
+     * when the blocktensor is opened.
+     *
+     * @param logFile    log file
+     * @param width      width, a positive integer
+     * @param dimCount   dimension count, an integer greater than 1
+     * @param hashEngine hash engine for the block hashes and the line hashes
+     * @return the blocktensor
+     * @throws IOException              if the file cannot be created, or it already exists
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    public static DurableBlockTensor create(Path logFile, int width, int dimCount, HashEngine hashEngine)
+            throws IOException, IllegalArgumentException {
+        // check the arguments before the file is created
+        checkShape(width, dimCount);
+        long originTimestamp = System.currentTimeMillis();
+        byte[] algorithm = hashEngine.getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES + algorithm.length);
+        header.putInt(width).putInt(dimCount).putLong(originTimestamp).put(algorithm);
+
+        WriteAheadLog log = WriteAheadLog.create(logFile, header.array());
+        try {
+            return new DurableBlockTensor(width, dimCount, hashEngine, originTimestamp, log);
+        } catch (RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open durable blocktensor logging to the file, replaying all modifications recorded in it.
+     *
+     * @param logFile log file
+     * @return the blocktensor
+     * @throws IOException              if the file cannot be opened or does not hold a valid log
+     * @throws IllegalArgumentException if the hash algorithm of the blocktensor is not available
+     */
+    public static DurableBlockTensor open(Path logFile) throws IOException, IllegalArgumentException {
+        WriteAheadLog log = WriteAheadLog.open(logFile);
+        try {
+            ByteBuffer header = ByteBuffer.wrap(log.header());
+            if (header.remaining() < Integer.BYTES * 2 + Long.BYTES)
+                throw new IOException("Corrupted header.");
+            int width = header.getInt();
+            int dimCount = header.getInt();
+            long originTimestamp = header.getLong();
+            HashEngine hashEngine = SecurityUtil.getHashEngine(new String(header.array(), header.position(),
+                    header.remaining(), StandardCharsets.UTF_8));
+            DurableBlockTensor bt;
+            try {
+                bt = new DurableBlockTensor(width, dimCount, hashEngine, originTimestamp, log);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted header.", e);
+            }
+
+            int[] blockNumbers = new int[REPLAY_BATCH];
+            long[] timestamps = new long[REPLAY_BATCH];
+            byte[][] data = new byte[REPLAY_BATCH][];
+            int[] count = new int[1];
+            log.replay((blockNumber, timestamp, blockData) -> {
+                blockNumbers[count[0]] = blockNumber;
+                timestamps[count[0]] = timestamp;
+                data[count[0]] = blockData;
+                if (++count[0] == REPLAY_BATCH) {
+                    bt.replay(blockNumbers, timestamps, data, REPLAY_BATCH);
+                    count[0] = 0;
+                }
+            });
+            bt.replay(blockNumbers, timestamps, data, count[0]);
+            return bt;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the new block to the given block number and wait until the modification is durable. All single
+     * modifications come here, see {@link BlockTensor#set(int, byte[])}. The blocktensor does not compress data, so
+     * the data of the block is the data as given.
+     *
+     * @param blockNumber block number, an integer in interval [0 .. size]
+     * @param block       new block, owned by the blocktensor
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     * @throws UncheckedIOException      if the modification cannot be logged
+     */
+    @Override
+    byte[] setBlock(int blockNumber, Block block) throws IndexOutOfBoundsException, UncheckedIOException {
+        long position = -1;
+        byte[] old = null;
+        boolean added = false;
+        batchLock.readLock().lock();
+        try {
+            // the size only grows, so an existing block stays existing, the others are added in order
+            if (blockNumber < 0 || blockNumber >= size()) {
+                synchronized (appendLock) {
+                    // adds hold the append lock until their block is written, so the size is settled here
+                    if (blockNumber != size()) {
+                        // fail the same way as the parent class before anything is logged
+                        Objects.checkIndex(blockNumber, size());
+                    } else {
+                        Objects.checkIndex(blockNumber, capacity());
+                        synchronized (blockLock(blockNumber)) {
+                            position = log.append(blockNumber, block.getTimestamp(), block.getData());
+                            old = super.setBlock(blockNumber, block);
+                        }
+                        added = true;
+                    }
+                }
+            }
+            // the block exists, possibly added by another thread meanwhile
+            if (!added) {
+                synchronized (blockLock(blockNumber)) {
+                    position = log.append(blockNumber, block.getTimestamp(), block.getData());
+                    old = super.setBlock(blockNumber, block);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        commit(position);
+        return old;
+    }
+
+    /**
+     * Add the new block to the blocktensor and wait until the modification is durable. All single additions come
+     * here, see {@link BlockTensor#add(byte[])}.
+     *
+     * @param block new block, owned by the blocktensor
+     * @return block number of the added block
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws UncheckedIOException      if the modification cannot be logged
+     */
+    @Override
+    int addBlock(Block block) throws IndexOutOfBoundsException, UncheckedIOException {
+        long position;
+        int blockNumber;
+        batchLock.readLock().lock();
+        try {
+            synchronized (appendLock) {
+                blockNumber = Objects.checkIndex(size(), capacity());
+                // the block exists once its number is reserved, a set of it waits until it has been written
+                synchronized (blockLock(blockNumber)) {
+                    position = log.append(blockNumber, block.getTimestamp(), block.getData());
+                    append(blockNumber, block);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        commit(position);
+        return blockNumber;
+    }
+
+    /**
+     * Add all data to the blocktensor in one batch and wait until the batch is durable. The whole batch is logged as
+     * one frame before it is applied and committed with one fsync. See {@link BlockTensor#addAll(List, ForkJoinPool)}.
+     *
+     * @param data data byte arrays
+     * @param pool pool to rehash in, or null to rehash in the calling thread
+     * @return block number of the first added block, or size() if the list is empty
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws NullPointerException      if the list is null
+     * @throws UncheckedIOException      if the batch cannot be logged
+     */
+    @Override
+    public int addAll(List<byte[]> data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, NullPointerException, UncheckedIOException {
+        byte[][] array = data.toArray(new byte[0][]);
+        long[] timestamps = new long[array.length];
+        Arrays.fill(timestamps, timestamp());
+        long position = -1;
+        int first;
+        batchLock.writeLock().lock();
+        try {
+            // all other modifications hold the batch lock, so no block can be added between reading the size and
+            // the batch
+            first = size();
+            int[] blockNumbers = IntStream.range(first, first + array.length).toArray();
+            checkBlockNumbers(blockNumbers);
+            position = log.appendAll(blockNumbers, timestamps, array);
+            setAll(blockNumbers, timestamps, array, pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        commit(position);
+        return first;
+    }
+
+    /**
+     * Set data to the given blocks in one batch and wait until the batch is durable. The whole batch is logged as
+     * one frame before it is applied and committed with one fsync. See {@link BlockTensor#setAll(int[], byte[][],
+     * ForkJoinPool)}.
+     *
+     * @param blockNumbers block numbers
+     * @param data         data byte arrays, one for each block number
+     * @param pool         pool to rehash in, or null to rehash in the calling thread
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws IllegalArgumentException  if the arrays are not of the same length
+     * @throws UncheckedIOException      if the batch cannot be logged
+     */
+    @Override
+    public byte[][] setAll(int[] blockNumbers, byte[][] data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, IllegalArgumentException, UncheckedIOException {
+        if (blockNumbers.length != data.length)
+            throw new IllegalArgumentException("There must be exactly one data array for each block number.");
+        long[] timestamps = new long[blockNumbers.length];
+        Arrays.fill(timestamps, timestamp());
+        return logAll(blockNumbers, timestamps, data, pool);
+    }
+
+    /**
+     * Set data with explicit timestamps to the given blocks in one batch. The batch is logged and committed like
+     * {@link #setAll(int[], byte[][], ForkJoinPool)}.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data byte arrays, one for each block number
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws UncheckedIOException      if the batch cannot be logged
+     */
+    @Override
+    byte[][] applyBatch(int[] blockNumbers, long[] timestamps, byte[][] data)
+            throws IndexOutOfBoundsException, UncheckedIOException {
+        return logAll(blockNumbers, timestamps, data, null);
+    }
+
+    /**
+     * Erase the given blocks, see {@link BlockTensor#eraseAll(Collection)}, and compact the log, so the erased data
+     * is no longer in the file when this returns.
+     *
+     * @param blockNumbers block numbers, each an integer in interval [0 .. size), duplicates are erased once
+     * @return record of the erasure
+     * @throws IndexOutOfBoundsException if any block number is not in the required interval, nothing is erased then
+     * @throws NullPointerException      if the collection or any of its elements is null
+     * @throws UncheckedIOException      if the erasure cannot be logged or the log cannot be compacted
+     */
+    @Override
+    public EraseRecord eraseAll(Collection<Integer> blockNumbers)
+            throws IndexOutOfBoundsException, NullPointerException, UncheckedIOException {
+        EraseRecord record = super.eraseAll(blockNumbers);
+        compactUnchecked();
+        return record;
+    }
+
+    /**
+     * Erase the blocks matching the predicate, see {@link BlockTensor#eraseIf(Predicate)}, and compact the log, so
+     * the erased data is no longer in the file when this returns.
+     *
+     * @param predicate predicate selecting the blocks to erase
+     * @return record of the erasure
+     * @throws NullPointerException if the predicate is null
+     * @throws UncheckedIOException if the erasure cannot be logged or the log cannot be compacted
+     */
+    @Override
+    public EraseRecord eraseIf(Predicate<Block> predicate) throws NullPointerException, UncheckedIOException {
+        EraseRecord record = super.eraseIf(predicate);
+        compactUnchecked();
+        return record;
+    }
+
+    /**
+     * Replace the log by the current blocks alone, one record per block, so superseded records and the data of
+     * erased blocks are no longer in the file and opening the blocktensor replays each block once. Modifications wait
+     * until the compacted log has been written; a crash meanwhile leaves the old log, which holds the same blocks.
+     *
+     * @throws IOException if the compacted log cannot be written, the old log is kept then
+     */
+    public void compact() throws IOException {
+        batchLock.writeLock().lock();
+        try {
+            // every modification is logged before it is applied, so the blocks hold the effect of the whole log
+            Block[] blocks = snapshot().blocks;
+            long[] timestamps = new long[blocks.length];
+            byte[][] data = new byte[blocks.length][];
+            for (int i = 0; i < blocks.length; ++i) {
+                timestamps[i] = blocks[i].getTimestamp();
+                data[i] = blocks[i].getData();
+            }
+            log.compact(timestamps, data);
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the log. All modifications that have returned are already durable. The blocktensor must not be modified
+     * after closing.
+     *
+     * @throws IOException if the log cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Compact the log, see {@link #compact()}.
+     *
+     * @throws UncheckedIOException if the log cannot be compacted
+     */
+    private void compactUnchecked() throws UncheckedIOException {
+        try {
+            compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to the position.
+     *
+     * @param position position after the last record of the modification, or -1 if nothing has been logged
+     * @throws UncheckedIOException if the log cannot be forced
+     */
+    private void commit(long position) throws UncheckedIOException {
+        if (position < 0)
+            return;
+        try {
+            log.commit(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Log the batch as one frame, apply it and commit it with one fsync.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data byte arrays, one for each block number
+     * @param pool         pool to rehash in, or null to rehash in the calling thread
+     * @return data that was there before each element of the batch was set, in the same order
+     * @throws IndexOutOfBoundsException if any block is not in the required interval
+     * @throws UncheckedIOException      if the batch cannot be logged
+     */
+    private byte[][] logAll(int[] blockNumbers, long[] timestamps, byte[][] data, ForkJoinPool pool)
+            throws IndexOutOfBoundsException, UncheckedIOException {
+        long position = -1;
+        byte[][] old;
+        batchLock.writeLock().lock();
+        try {
+            checkBlockNumbers(blockNumbers);
+            position = log.appendAll(blockNumbers, timestamps, data);
+            old = setAll(blockNumbers, timestamps, data, pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        commit(position);
+        return old;
+    }
+
+    /**
+     * Apply the first count replayed records in one batch.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks
+     * @param data         data of the blocks
+     * @param count        number of records
+     * @throws IOException if any record does not fit the blocktensor
+     */
+    private void replay(int[] blockNumbers, long[] timestamps, byte[][] data, int count) throws IOException {
+        try {
+            setAll(Arrays.copyOf(blockNumbers, count), Arrays.copyOf(timestamps, count), Arrays.copyOf(data, count),
+                    null);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted log.", e);
+        }
+    }
+
+    /**
+     * Get the lock of the block.
+     *
+     * @param blockNumber block number
+     * @return lock object
+     */
+    private Object blockLock(int blockNumber) {
+        return blockLocks[blockNumber % blockLocks.length];
+    }
+}
@@ -0,0 +1,85 @@
+package gov.nist.blockmatrixtimestamped;
+
+/**
+ * Audit record of a bulk erasure, see {@link BlockTensor#eraseAll(java.util.Collection)}. It holds what was erased and
+ * when, and the root digest of the blocktensor after the erasure, but none of the erased data.
+ */
+public class EraseRecord {
+    /**
+     * Timestamp of the erased blocks.
+     */
+    private final long timestamp;
+    /**
+     * Block numbers of the erased blocks in ascending order.
+     */
+    private final int[] blockNumbers;
+    /**
+     * Total length of the data erased.
+     */
+    private final long erasedBytes;
+    /**
+     * Root digest of the blocktensor after the erasure.
+     */
+    private final byte[] rootDigest;
+
+    /**
+     * Create new record. The arrays are stored without copying.
+     *
+     * @param timestamp    timestamp of the erased blocks
+     * @param blockNumbers block numbers of the erased blocks in ascending order
+     * @param erasedBytes  total length of the data erased
+     * @param rootDigest   root digest of the blocktensor after the erasure
+     */
+    EraseRecord(long timestamp, int[] blockNumbers, long erasedBytes, byte[] rootDigest) {
+        this.timestamp = timestamp;
+        this.blockNumbers = blockNumbers;
+        this.erasedBytes = erasedBytes;
+        this.rootDigest = rootDigest;
+    }
+
+    /**
+     * Get timestamp of the erased blocks, the same for all of them.
+     *
+     * @return timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get copy of the block numbers of the erased blocks.
+     *
+     * @return block numbers in ascending order
+     */
+    public int[] getBlockNumbers() {
+        return blockNumbers.clone();
+    }
+
+    /**
+     * Get number of the erased blocks.
+     *
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return blockNumbers.length;
+    }
+
+    /**
+     * Get total length of the data erased, 0 if all blocks were empty already.
+     *
+     * @return number of bytes
+     */
+    public long getErasedBytes() {
+        return erasedBytes;
+    }
+
+    /**
+     * Get copy of the root digest of the blocktensor after the erasure, see {@link BlockTensor#getRootDigest()}. It
+     * also covers modifications made by other threads during the erasure.
+     *
+     * @return root digest
+     */
+    public byte[] getRootDigest() {
+        return rootDigest.clone();
+    }
+}
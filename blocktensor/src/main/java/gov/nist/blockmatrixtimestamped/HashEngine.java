@@ -0,0 +1,44 @@
+package gov.nist.blockmatrixtimestamped;
+
+/**
+ * Hash function used for the block hashes and the line hashes of a blocktensor. An engine is thread-safe and hands
+ * out a cached {@link Hasher} per thread, so no digest object is created per hash.
+ * <p>
+ * Engines are looked up by algorithm name with {@link SecurityUtil#getHashEngine(String)}. Additional engines can be
+ * provided as services of this interface through {@link java.util.ServiceLoader}.
+ */
+public interface HashEngine {
+    /**
+     * Get name of the algorithm, such as "SHA-256".
+     *
+     * @return name of the algorithm
+     */
+    String getAlgorithm();
+
+    /**
+     * Get size of the hashes produced.
+     *
+     * @return size of the hash in bytes
+     */
+    int getDigestLength();
+
+    /**
+     * Get a reset hasher of the calling thread. The same hasher is returned on each call from the same thread, so it
+     * must be used to complete one hash before the next call, and must not be passed to another thread.
+     *
+     * @return hasher confined to the calling thread
+     */
+    Hasher hasher();
+
+    /**
+     * Calculate the hash of the whole input array.
+     *
+     * @param input input bytes
+     * @return hash of the size getDigestLength()
+     */
+    default byte[] hash(byte[] input) {
+        Hasher hasher = hasher();
+        hasher.update(input);
+        return hasher.digest();
+    }
+}
@@ -0,0 +1,61 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental hash calculation obtained from a {@link HashEngine}. Input is fed piece by piece with the update methods,
+ * so it never has to be concatenated into one array, and the hash is written either to a new array or into an
+ * existing one. Completing the hash resets the hasher, so it can be used again. A hasher is confined to the thread
+ * that obtained it.
+ */
+public interface Hasher {
+    /**
+     * Feed the bytes of the array.
+     *
+     * @param input input bytes
+     */
+    void update(byte[] input);
+
+    /**
+     * Feed a part of the array.
+     *
+     * @param input  input bytes
+     * @param offset offset of the first byte in the array
+     * @param length number of bytes
+     */
+    void update(byte[] input, int offset, int length);
+
+    /**
+     * Feed the remaining bytes of the buffer. The position of the buffer is moved to its limit.
+     *
+     * @param input input buffer
+     */
+    void update(ByteBuffer input);
+
+    /**
+     * Feed the 8 bytes of the long in big-endian order.
+     *
+     * @param value input long
+     */
+    void updateLong(long value);
+
+    /**
+     * Complete the hash into a new array and reset the hasher.
+     *
+     * @return hash of the size {@link HashEngine#getDigestLength()}
+     */
+    byte[] digest();
+
+    /**
+     * Complete the hash into the given array and reset the hasher. Nothing is allocated.
+     *
+     * @param output array to store the hash in
+     * @param offset offset in the array, there must be {@link HashEngine#getDigestLength()} bytes available after it
+     */
+    void digest(byte[] output, int offset);
+
+    /**
+     * Discard any input fed so far.
+     */
+    void reset();
+}
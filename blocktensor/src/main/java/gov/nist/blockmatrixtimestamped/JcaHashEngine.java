@@ -0,0 +1,128 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash engine backed by a {@link MessageDigest} of the installed security providers, such as "SHA-256",
+ * "SHA-512/256" or "SHA3-256". One digest instance is created per thread and reused.
+ */
+public class JcaHashEngine implements HashEngine {
+    /**
+     * Name of the algorithm.
+     */
+    private final String algorithm;
+    /**
+     * Size of the hashes produced.
+     */
+    private final int digestLength;
+    /**
+     * Hasher of each thread.
+     */
+    private final ThreadLocal<JcaHasher> hashers;
+
+    /**
+     * Create new hash engine for the given message digest algorithm.
+     *
+     * @param algorithm name of the algorithm
+     * @throws IllegalArgumentException if no provider supports the algorithm
+     */
+    public JcaHashEngine(String algorithm) throws IllegalArgumentException {
+        this.algorithm = algorithm;
+        // some providers do not report the length, so calculate one hash
+        this.digestLength = newDigest().digest().length;
+        this.hashers = ThreadLocal.withInitial(() -> new JcaHasher(newDigest()));
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    @Override
+    public Hasher hasher() {
+        JcaHasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * Create new message digest of the algorithm.
+     *
+     * @return message digest
+     * @throws IllegalArgumentException if no provider supports the algorithm
+     */
+    private MessageDigest newDigest() throws IllegalArgumentException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Hash algorithm " + algorithm + " is not available.", e);
+        }
+    }
+
+    /**
+     * Hasher feeding a message digest.
+     */
+    private static final class JcaHasher implements Hasher {
+        /**
+         * The message digest.
+         */
+        private final MessageDigest digest;
+
+        /**
+         * Create new hasher.
+         *
+         * @param digest message digest
+         */
+        private JcaHasher(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte[] input) {
+            digest.update(input);
+        }
+
+        @Override
+        public void update(byte[] input, int offset, int length) {
+            digest.update(input, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer input) {
+            digest.update(input);
+        }
+
+        @Override
+        public void updateLong(long value) {
+            for (int i = Long.BYTES - 1; i >= 0; --i)
+                digest.update((byte) (value >>> (Byte.SIZE * i)));
+        }
+
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+
+        @Override
+        public void digest(byte[] output, int offset) {
+            try {
+                digest.digest(output, offset, output.length - offset);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public void reset() {
+            digest.reset();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Tensor of line hashes of a blocktensor. All hashes are stored in one byte array with a fixed stride, the hash size.
+ * A line is given by the index of its variable index varDimIdx and the fixed indexes (all indexes except the variable
+ * one), the same as in {@link Tensor#getLine(int, int...)}. Lines are numbered varDimIdx*width^(dimCount-1)+i, where
+ * i is the one-dimensional index of the fixed indexes, so all lines along one dimension are adjacent in memory.
+ */
+public class LineHashTensor {
+    /**
+     * Hashes of the lines, one after another.
+     */
+    private final byte[] data;
+    /**
+     * Number of dimensions of the blocktensor.
+     */
+    private final int dimCount;
+    /**
+     * Width of the blocktensor.
+     */
+    private final int width;
+    /**
+     * Size of each hash in bytes.
+     */
+    private final int hashSize;
+    /**
+     * Number of lines along each dimension, width^(dimCount-1).
+     */
+    private final int linesPerDim;
+
+    /**
+     * Create new tensor for the line hashes of a blocktensor with given number of dimensions and width. The hashes are
+     * 32 bytes long and initially filled with zeros.
+     *
+     * @param dimCount dimension count of the blocktensor, an integer greater than 1
+     * @param width    width of the blocktensor, a positive integer
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    public LineHashTensor(int dimCount, int width) throws IllegalArgumentException {
+        this(dimCount, width, BlockTensor.HASH_ARRAY_SIZE);
+    }
+
+    /**
+     * Create new tensor for the line hashes of a blocktensor with given number of dimensions and width. The hashes are
+     * hashSize bytes long and initially filled with zeros.
+     *
+     * @param dimCount dimension count of the blocktensor, an integer greater than 1
+     * @param width    width of the blocktensor, a positive integer
+     * @param hashSize size of each hash in bytes, a positive integer
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    public LineHashTensor(int dimCount, int width, int hashSize) throws IllegalArgumentException {
+        if (dimCount < 2)
+            throw new IllegalArgumentException("Dimension count must be greater than one.");
+        if (width < 1)
+            throw new IllegalArgumentException("Width must be greater than zero.");
+        if (hashSize < 1)
+            throw new IllegalArgumentException("Hash size must be greater than zero.");
+
+        this.hashSize = hashSize;
+        try {
+            this.linesPerDim = Math.toIntExact(Tensor.binPowExact(width, dimCount - 1));
+            this.data = new byte[Math.toIntExact((long) linesPerDim * dimCount * hashSize)];
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Too many lines to store in a single array.");
+        }
+        this.dimCount = dimCount;
+        this.width = width;
+    }
+
+    /**
+     * Get dimension count of the blocktensor.
+     *
+     * @return dimension count
+     */
+    public int getDimCount() {
+        return dimCount;
+    }
+
+    /**
+     * Get width of the blocktensor.
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get size of each hash.
+     *
+     * @return hash size in bytes
+     */
+    public int getHashSize() {
+        return hashSize;
+    }
+
+    /**
+     * Get number of lines, dimCount*width^(dimCount-1).
+     *
+     * @return number of lines
+     */
+    public int capacity() {
+        return linesPerDim * dimCount;
+    }
+
+    /**
+     * Get number of the line.
+     *
+     * @param varDimIdx    index of the variable index, in the interval [0 .. dimCount)
+     * @param fixedIndexes fixed indexes, dimCount-1 indexes in the interval [0 .. width)
+     * @return number of the line
+     * @throws IndexOutOfBoundsException if any index is not in the required interval
+     */
+    public int lineIndex(int varDimIdx, int... fixedIndexes) throws IndexOutOfBoundsException {
+        Objects.checkIndex(varDimIdx, dimCount);
+        return varDimIdx * linesPerDim + Tensor.indexesToIndex(dimCount - 1, width, fixedIndexes);
+    }
+
+    /**
+     * Get copy of the hash of the line.
+     *
+     * @param line number of the line, in the interval [0 .. capacity)
+     * @return hash of the line
+     * @throws IndexOutOfBoundsException if the line is not in the required interval
+     */
+    public byte[] get(int line) throws IndexOutOfBoundsException {
+        int from = offset(line);
+        return Arrays.copyOfRange(data, from, from + hashSize);
+    }
+
+    /**
+     * Get copy of the hash of the line.
+     *
+     * @param varDimIdx    index of the variable index, in the interval [0 .. dimCount)
+     * @param fixedIndexes fixed indexes, dimCount-1 indexes in the interval [0 .. width)
+     * @return hash of the line
+     * @throws IndexOutOfBoundsException if any index is not in the required interval
+     */
+    public byte[] get(int varDimIdx, int... fixedIndexes) throws IndexOutOfBoundsException {
+        return get(lineIndex(varDimIdx, fixedIndexes));
+    }
+
+    /**
+     * Set hash of the line. The hash is copied.
+     *
+     * @param line number of the line, in the interval [0 .. capacity)
+     * @param hash hash of size getHashSize()
+     * @throws IndexOutOfBoundsException if the line is not in the required interval
+     * @throws IllegalArgumentException  if the hash is not of the required size
+     */
+    public void set(int line, byte[] hash) throws IndexOutOfBoundsException, IllegalArgumentException {
+        if (hash.length != hashSize)
+            throw new IllegalArgumentException("Hash must be " + hashSize + " bytes long.");
+        System.arraycopy(hash, 0, data, offset(line), hashSize);
+    }
+
+    /**
+     * Set hash of the line. The hash is copied.
+     *
+     * @param hash         hash of size getHashSize()
+     * @param varDimIdx    index of the variable index, in the interval [0 .. dimCount)
+     * @param fixedIndexes fixed indexes, dimCount-1 indexes in the interval [0 .. width)
+     * @throws IndexOutOfBoundsException if any index is not in the required interval
+     * @throws IllegalArgumentException  if the hash is not of the required size
+     */
+    public void set(byte[] hash, int varDimIdx, int... fixedIndexes)
+            throws IndexOutOfBoundsException, IllegalArgumentException {
+        set(lineIndex(varDimIdx, fixedIndexes), hash);
+    }
+
+    /**
+     * Check whether the hash of the line is equal to the given hash without copying it.
+     *
+     * @param line number of the line, in the interval [0 .. capacity)
+     * @param hash hash to compare with
+     * @return whether the hashes are equal
+     * @throws IndexOutOfBoundsException if the line is not in the required interval
+     */
+    public boolean hashEquals(int line, byte[] hash) throws IndexOutOfBoundsException {
+        int from = offset(line);
+        return Arrays.equals(data, from, from + hashSize, hash, 0, hash.length);
+    }
+
+    /**
+     * Complete the hasher directly into the hash of the line, without allocating.
+     *
+     * @param line   number of the line, in the interval [0 .. capacity)
+     * @param hasher hasher producing hashes of size getHashSize()
+     * @throws IndexOutOfBoundsException if the line is not in the required interval
+     */
+    void digest(int line, Hasher hasher) throws IndexOutOfBoundsException {
+        hasher.digest(data, offset(line));
+    }
+
+    /**
+     * Get copy of all hashes one after another, in order of the line numbers.
+     *
+     * @return hashes
+     */
+    byte[] toByteArray() {
+        return data.clone();
+    }
+
+    /**
+     * Checks whether two tensors are equal by comparing their dimension count, width, hash size and then comparing the
+     * hashes stored.
+     *
+     * @param o other object
+     * @return whether the objects are equal
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || o.getClass() != getClass())
+            return false;
+        LineHashTensor t = (LineHashTensor) o;
+        return getDimCount() == t.getDimCount() &&
+                getWidth() == t.getWidth() &&
+                getHashSize() == t.getHashSize() &&
+                Arrays.equals(data, t.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(dimCount, width, hashSize, Arrays.hashCode(data));
+    }
+
+    /**
+     * Get offset of the hash of the line in the array.
+     *
+     * @param line number of the line
+     * @return offset in the array
+     * @throws IndexOutOfBoundsException if the line is not in the interval [0 .. capacity)
+     */
+    private int offset(int line) throws IndexOutOfBoundsException {
+        return Objects.checkIndex(line, capacity()) * hashSize;
+    }
+}
@@ -0,0 +1,216 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Merkle tree over the line hashes of a blocktensor. The leaves are the line hashes in order of the line numbers,
+ * each inner node is the hash of the byte 1 followed by its two children, and a node without a right sibling is
+ * carried to the next level unchanged. The leaves are read from the line hash tensor, only the inner levels are
+ * stored, each in one byte array.
+ * <p>
+ * After the hashes of some lines change, {@link #update(int[])} recalculates only the nodes on their paths to the
+ * root, log2(lines) hashes per line, with scratch space in proportion to the changed lines. Nodes are addressed by
+ * their height, 0 for the leaves and {@link #depth(int)} for the root, and their index within the height; the
+ * children of node n are the nodes 2n and 2n+1 of the height below. This class is not thread-safe.
+ */
+final class MerkleTree {
+    /**
+     * Prefix of the inner nodes, so they cannot be confused with line hashes. It is never modified.
+     */
+    private static final byte[] NODE_PREFIX = {1};
+
+    /**
+     * Line hashes, the leaves.
+     */
+    private final LineHashTensor leaves;
+    /**
+     * Hash engine of the inner nodes.
+     */
+    private final HashEngine hashEngine;
+    /**
+     * Size of a hash.
+     */
+    private final int hashSize;
+    /**
+     * Inner levels from the bottom, the last one holds only the root.
+     */
+    private final byte[][] levels;
+
+    /**
+     * Create new tree over the line hashes and calculate all nodes.
+     *
+     * @param leaves     line hashes
+     * @param hashEngine hash engine of the line hashes
+     */
+    MerkleTree(LineHashTensor leaves, HashEngine hashEngine) {
+        this.leaves = leaves;
+        this.hashEngine = hashEngine;
+        this.hashSize = leaves.getHashSize();
+        int depth = depth(leaves.capacity());
+        this.levels = new byte[depth][];
+        for (int level = 0, count = leaves.capacity(); level < depth; ++level) {
+            count = (count + 1) / 2;
+            levels[level] = new byte[count * hashSize];
+        }
+        update(IntStream.range(0, leaves.capacity()).toArray());
+    }
+
+    /**
+     * Get copy of the root, which covers all line hashes.
+     *
+     * @return root digest
+     */
+    byte[] root() {
+        return levels[levels.length - 1].clone();
+    }
+
+    /**
+     * Recalculate the nodes on the paths from the given leaves to the root.
+     *
+     * @param dirtyLeaves numbers of the lines whose hashes have changed, in ascending order without duplicates
+     */
+    void update(int[] dirtyLeaves) {
+        // the parents of ascending nodes are ascending, so each level is deduplicated in place
+        int[] dirty = dirtyLeaves.clone();
+        int dirtyCount = dirty.length;
+        int count = leaves.capacity();
+        Hasher hasher = hashEngine.hasher();
+        byte[] left = new byte[hashSize];
+        byte[] right = new byte[hashSize];
+        for (int level = 0; level < levels.length && dirtyCount > 0; ++level) {
+            int parentCount = 0;
+            for (int i = 0; i < dirtyCount; ++i) {
+                int parent = dirty[i] / 2;
+                if (parentCount == 0 || dirty[parentCount - 1] != parent)
+                    dirty[parentCount++] = parent;
+            }
+            for (int i = 0; i < parentCount; ++i) {
+                int parent = dirty[i];
+                readNode(level, 2 * parent, left);
+                if (2 * parent + 1 < count) {
+                    readNode(level, 2 * parent + 1, right);
+                    hasher.update(NODE_PREFIX);
+                    hasher.update(left);
+                    hasher.update(right);
+                    hasher.digest(levels[level], parent * hashSize);
+                } else {
+                    System.arraycopy(left, 0, levels[level], parent * hashSize, hashSize);
+                }
+            }
+            dirtyCount = parentCount;
+            count = (count + 1) / 2;
+        }
+    }
+
+    /**
+     * Get the sibling hashes on the path from the leaf to the root, from the bottom. Levels where the node has no
+     * sibling are skipped.
+     *
+     * @param leaf number of the line
+     * @return sibling hashes
+     */
+    byte[][] path(int leaf) {
+        byte[][] path = new byte[levels.length][];
+        int length = 0;
+        byte[] sibling = new byte[hashSize];
+        for (int level = 0, node = leaf, count = leaves.capacity(); level < levels.length; ++level) {
+            int other = node ^ 1;
+            if (other < count) {
+                readNode(level, other, sibling);
+                path[length++] = sibling.clone();
+            }
+            node /= 2;
+            count = (count + 1) / 2;
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * Get the hashes of the given nodes of one height, one after another.
+     *
+     * @param height height of the nodes, 0 for the leaves
+     * @param nodes  indexes of the nodes within the height
+     * @return hashes of the nodes
+     * @throws IndexOutOfBoundsException if the height or any node does not exist
+     */
+    byte[] nodes(int height, int[] nodes) throws IndexOutOfBoundsException {
+        Objects.checkIndex(height, levels.length + 1);
+        int count = nodeCount(leaves.capacity(), height);
+        byte[] hashes = new byte[nodes.length * hashSize];
+        byte[] hash = new byte[hashSize];
+        for (int i = 0; i < nodes.length; ++i) {
+            readNode(height, Objects.checkIndex(nodes[i], count), hash);
+            System.arraycopy(hash, 0, hashes, i * hashSize, hashSize);
+        }
+        return hashes;
+    }
+
+    /**
+     * Calculate the root from a leaf and its path, see {@link #path(int)}.
+     *
+     * @param leafHash   hash of the line
+     * @param leaf       number of the line
+     * @param leafCount  number of lines
+     * @param path       sibling hashes from the bottom
+     * @param hashEngine hash engine of the blocktensor
+     * @return root digest, or null if the path does not fit the number of lines
+     */
+    static byte[] rootOf(byte[] leafHash, int leaf, int leafCount, byte[][] path, HashEngine hashEngine) {
+        byte[] hash = leafHash;
+        int length = 0;
+        Hasher hasher = hashEngine.hasher();
+        for (int node = leaf, count = leafCount; count > 1; node /= 2, count = (count + 1) / 2) {
+            int other = node ^ 1;
+            if (other >= count)
+                continue;
+            if (length == path.length)
+                return null;
+            hasher.update(NODE_PREFIX);
+            hasher.update(other < node ? path[length] : hash);
+            hasher.update(other < node ? hash : path[length]);
+            ++length;
+            hash = hasher.digest();
+        }
+        return length == path.length ? hash : null;
+    }
+
+    /**
+     * Get number of inner levels above the given number of leaves, the height of the root.
+     *
+     * @param leafCount number of leaves, at least 2
+     * @return number of levels
+     */
+    static int depth(int leafCount) {
+        return 32 - Integer.numberOfLeadingZeros(leafCount - 1);
+    }
+
+    /**
+     * Get number of nodes of the given height in a tree over the given number of leaves.
+     *
+     * @param leafCount number of leaves, at least 2
+     * @param height    height, 0 for the leaves
+     * @return number of nodes
+     */
+    static int nodeCount(int leafCount, int height) {
+        int count = leafCount;
+        for (int i = 0; i < height; ++i)
+            count = (count + 1) / 2;
+        return count;
+    }
+
+    /**
+     * Read the node of the level below the given inner level, a leaf for level 0.
+     *
+     * @param level inner level whose children are read
+     * @param node  index of the node in the level below
+     * @param hash  buffer for the hash
+     */
+    private void readNode(int level, int node, byte[] hash) {
+        if (level == 0)
+            System.arraycopy(leaves.get(node), 0, hash, 0, hashSize);
+        else
+            System.arraycopy(levels[level - 1], node * hashSize, hash, 0, hashSize);
+    }
+}
@@ -0,0 +1,589 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Blocktensor variant for very large capacities. Block numbers and sizes are longs, so the capacity width^dimCount may
+ * exceed 2^31, and nothing is stored per block on the Java heap: block hashes, timestamps and payload offsets are kept
+ * in fixed-size records off-heap, the payloads in an append-only off-heap arena, and the line hashes in a separate
+ * off-heap region. The size of the heap and the garbage collection pauses therefore do not grow with the number of
+ * blocks.
+ * <p>
+ * Block numbering, block hashes and line hashes are the same as in {@link BlockTensor}. The space of a payload that is
+ * replaced or erased is overwritten with zeros. Once these freed bytes exceed both {@link #COMPACTION_THRESHOLD} and
+ * the bytes still used, the payloads are compacted to the start of the arena, see {@link #compactPayloads()}, so the
+ * arena stays within a constant factor of the data it holds. This class is not thread-safe.
+ */
+public class OffHeapBlockTensor {
+    /**
+     * Offset of the timestamp in a block record.
+     */
+    private static final int TIMESTAMP_OFFSET = 0;
+    /**
+     * Offset of the payload position in a block record.
+     */
+    private static final int PAYLOAD_OFFSET = TIMESTAMP_OFFSET + Long.BYTES;
+    /**
+     * Offset of the payload length in a block record.
+     */
+    private static final int LENGTH_OFFSET = PAYLOAD_OFFSET + Long.BYTES;
+    /**
+     * Offset of the block hash in a block record, the hash size depends on the hash engine.
+     */
+    private static final int HASH_OFFSET = LENGTH_OFFSET + Long.BYTES;
+    /**
+     * Number of freed bytes in the payload arena below which the payloads are never compacted.
+     */
+    static final long COMPACTION_THRESHOLD = 1 << 20;
+    /**
+     * Size of the buffer the payloads are moved through when they are compacted.
+     */
+    private static final int MOVE_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Width of the blocktensor.
+     */
+    private final int width;
+    /**
+     * Dimension count of the blocktensor.
+     */
+    private final int dimCount;
+    /**
+     * Mapping between block numbers and cells.
+     */
+    private final BlockNumbering numbering;
+    /**
+     * Number of lines along each dimension, width^(dimCount-1).
+     */
+    private final long linesPerDim;
+    /**
+     * Block records, indexed by the one-dimensional index of the cell.
+     */
+    private final OffHeapRegion records;
+    /**
+     * Line hashes. The line with variable index varDimIdx and one-dimensional index of the fixed indexes i is stored
+     * at varDimIdx*width^(dimCount-1)+i.
+     */
+    private final OffHeapRegion lineHashes;
+    /**
+     * Payloads of the blocks, appended one after another.
+     */
+    private final OffHeapRegion payloads;
+    /**
+     * Hash engine used for all hashes of this blocktensor.
+     */
+    private final HashEngine hashEngine;
+    /**
+     * Size of a hash.
+     */
+    private final int hashSize;
+    /**
+     * Size of a block record: timestamp, payload position, payload length and hash, padded to a multiple of 8.
+     */
+    private final int recordSize;
+    /**
+     * Buffer for a single hash.
+     */
+    private final byte[] hashBuffer;
+
+    /**
+     * End of the used part of the payload arena.
+     */
+    private long payloadEnd;
+    /**
+     * Number of bytes in the used part of the payload arena that no block refers to.
+     */
+    private long garbage;
+    /**
+     * Number of blocks added to the blocktensor.
+     */
+    private long size;
+
+    /**
+     * Create new off-heap blocktensor with given width and dimCount. SHA-256 is used for hashes.
+     *
+     * @param width    width, a positive integer
+     * @param dimCount dimension count, an integer greater than 1
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     */
+    public OffHeapBlockTensor(int width, int dimCount) throws IllegalArgumentException {
+        this(width, dimCount, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new off-heap blocktensor with given width, dimCount and hash engine.
+     *
+     * @param width      width, a positive integer
+     * @param dimCount   dimension count, an integer greater than 1
+     * @param hashEngine hash engine for the block hashes and the line hashes
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     * @throws NullPointerException     if hashEngine is null
+     */
+    public OffHeapBlockTensor(int width, int dimCount, HashEngine hashEngine)
+            throws IllegalArgumentException, NullPointerException {
+        this(width, dimCount, hashEngine, OffHeapRegion.DIRECT, OffHeapRegion.DIRECT, OffHeapRegion.DIRECT, 0, 0,
+                true);
+    }
+
+    /**
+     * Create new off-heap blocktensor whose regions are allocated by the given allocators, either empty or on top of
+     * memory that already holds the content of a blocktensor.
+     *
+     * @param width              width, a positive integer
+     * @param dimCount           dimension count, an integer greater than 1
+     * @param hashEngine         hash engine for the block hashes and the line hashes
+     * @param recordAllocator    allocator of the block records
+     * @param lineHashAllocator  allocator of the line hashes
+     * @param payloadAllocator   allocator of the payload arena
+     * @param size               number of blocks already added
+     * @param payloadEnd         end of the used part of the payload arena
+     * @param initialize         whether to fill the records and the line hashes with the template block, otherwise
+     *                           the memory must hold them already
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     * @throws NullPointerException     if hashEngine is null
+     */
+    OffHeapBlockTensor(int width, int dimCount, HashEngine hashEngine, OffHeapRegion.Allocator recordAllocator,
+                       OffHeapRegion.Allocator lineHashAllocator, OffHeapRegion.Allocator payloadAllocator, long size,
+                       long payloadEnd, boolean initialize) throws IllegalArgumentException, NullPointerException {
+        if (dimCount < 2)
+            throw new IllegalArgumentException("Dimension count must be greater than one.");
+        if (width < 1)
+            throw new IllegalArgumentException("Width must be greater than zero.");
+
+        this.width = width;
+        this.dimCount = dimCount;
+        this.hashEngine = Objects.requireNonNull(hashEngine);
+        this.hashSize = hashEngine.getDigestLength();
+        this.recordSize = recordSize(hashSize);
+        try {
+            this.numbering = new BlockNumbering(width, dimCount);
+            this.linesPerDim = Tensor.binPowExact(width, dimCount - 1);
+            this.records = new OffHeapRegion(Math.multiplyExact(numbering.capacity(), recordSize), recordSize,
+                    recordAllocator);
+            this.lineHashes = new OffHeapRegion(Math.multiplyExact(Math.multiplyExact(linesPerDim, dimCount),
+                    hashSize), hashSize, lineHashAllocator);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Capacity width^dimCount is too large.");
+        }
+        if (size < 0 || size > numbering.capacity() || payloadEnd < 0)
+            throw new IllegalArgumentException("Size and payload end must be in the capacity.");
+        this.payloads = new OffHeapRegion(payloadEnd, 1, payloadAllocator);
+        this.hashBuffer = new byte[hashSize];
+        this.payloadEnd = payloadEnd;
+        this.size = size;
+        if (!initialize) {
+            // the freed bytes are not stored, but every byte of the used part that no record covers is freed
+            long used = 0;
+            for (long blockNumber = 0; blockNumber < size; ++blockNumber)
+                used += records.getInt(recordPosition(blockNumber) + LENGTH_OFFSET);
+            this.garbage = Math.max(0, payloadEnd - used);
+            return;
+        }
+
+        // every cell holds the template block with empty data, so every line has the same hash
+        long templateTimestamp = timestamp();
+        byte[] template = new byte[recordSize];
+        calculateBlockHash(templateTimestamp, new byte[0]);
+        System.arraycopy(hashBuffer, 0, template, HASH_OFFSET, hashSize);
+        ByteBuffer.wrap(template).putLong(TIMESTAMP_OFFSET, templateTimestamp);
+        records.fill(0, template, capacity());
+
+        Hasher hasher = hashEngine.hasher();
+        for (int i = 0; i < width; ++i)
+            hasher.update(template, HASH_OFFSET, hashSize);
+        hasher.digest(hashBuffer, 0);
+        lineHashes.fill(0, hashBuffer, linesPerDim * dimCount);
+    }
+
+    /**
+     * Get size of a block record for the given hash size: timestamp, payload position, payload length and hash,
+     * padded to a multiple of 8.
+     *
+     * @param hashSize size of a hash in bytes
+     * @return size of a record in bytes
+     */
+    static int recordSize(int hashSize) {
+        return (HASH_OFFSET + hashSize + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+    }
+
+    /**
+     * Get data of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return data of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public byte[] getData(long blockNumber) throws IndexOutOfBoundsException {
+        Tensor.checkIndex(blockNumber, size());
+        return readPayload(recordPosition(blockNumber));
+    }
+
+    /**
+     * Get timestamp of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return timestamp of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public long getTimestamp(long blockNumber) throws IndexOutOfBoundsException {
+        Tensor.checkIndex(blockNumber, size());
+        return records.getLong(recordPosition(blockNumber) + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Get hash of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return hash of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public byte[] getHash(long blockNumber) throws IndexOutOfBoundsException {
+        Tensor.checkIndex(blockNumber, size());
+        byte[] hash = new byte[hashSize];
+        records.get(recordPosition(blockNumber) + HASH_OFFSET, hash, 0, hash.length);
+        return hash;
+    }
+
+    /**
+     * Set data to the given block. Return the data that was there before or zero-length byte array if the block has
+     * not been set yet. You can do set(size(), data) to add a block to the end.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size]
+     * @param data        data byte array, its size should be less than 1073741824 (1 gibibyte)
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     * @throws IllegalArgumentException  if the data is too large
+     */
+    public byte[] set(long blockNumber, byte[] data) throws IndexOutOfBoundsException, IllegalArgumentException {
+        if (blockNumber == size())
+            Tensor.checkIndex(size(), capacity());
+        else
+            Tensor.checkIndex(blockNumber, size());
+        if (data == null)
+            data = new byte[0];
+        if (data.length > 1073741824)
+            throw new IllegalArgumentException("Maximum block size is 1 gibibyte (1024^3 byte).");
+
+        long index = numbering.toIndex(blockNumber);
+        long position = index * recordSize;
+
+        // read the old payload and wipe it from the arena
+        byte[] old = readPayload(position);
+        records.putInt(position + LENGTH_OFFSET, 0);
+        payloads.clear(records.getLong(position + PAYLOAD_OFFSET), old.length);
+
+        long timestamp = timestamp();
+        payloads.ensureCapacity(payloadEnd + data.length);
+        payloads.put(payloadEnd, data, 0, data.length);
+        records.putLong(position + PAYLOAD_OFFSET, payloadEnd);
+        records.putInt(position + LENGTH_OFFSET, data.length);
+        payloadEnd += data.length;
+        garbage += old.length;
+
+        calculateBlockHash(timestamp, data);
+        records.put(position + HASH_OFFSET, hashBuffer, 0, hashBuffer.length);
+        records.putLong(position + TIMESTAMP_OFFSET, timestamp);
+
+        // update hashes of lines which intersect the modified cell
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx)
+            updateLineHash(varDimIdx, index);
+
+        if (blockNumber == size())
+            size++;
+        if (garbage > COMPACTION_THRESHOLD && garbage > payloadEnd - garbage)
+            compactPayloads();
+        return old;
+    }
+
+    /**
+     * Add data to the blocktensor. Equivalent to set(size(), data).
+     *
+     * @param data data byte array
+     * @return block number of the added block
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     */
+    public long add(byte[] data) throws IndexOutOfBoundsException {
+        set(size(), data);
+        return size() - 1;
+    }
+
+    /**
+     * Erase the block at given block number. Equivalent to set(blockNumber, new byte[0]).
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return previous data at the given block number
+     */
+    public byte[] erase(long blockNumber) throws IndexOutOfBoundsException {
+        return set(blockNumber, null);
+    }
+
+    /**
+     * Number of set blocks. Does not decrease after erase and set.
+     *
+     * @return number of blocks modified
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Maximal number of blocks the blocktensor can accommodate. This number is fixed.
+     *
+     * @return capacity of blocktensor, width^dimCount
+     */
+    public long capacity() {
+        return numbering.capacity();
+    }
+
+    /**
+     * Get width of the blocktensor. This number is fixed.
+     *
+     * @return width of each line in blocktensor
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get dimension count of the blocktensor. This number is fixed.
+     *
+     * @return dimension count
+     */
+    public int getDimCount() {
+        return dimCount;
+    }
+
+    /**
+     * Get the hash engine of the blocktensor. This is fixed.
+     *
+     * @return hash engine used for the block hashes and the line hashes
+     */
+    public HashEngine getHashEngine() {
+        return hashEngine;
+    }
+
+    /**
+     * Check the validity of the blocktensor by checking whether each block has the same hash value stored as the one
+     * calculated for it, and checking whether each line hash stored is the same as the one calculated.
+     *
+     * @return whether the tensor is valid
+     */
+    public boolean isValid() {
+        byte[] stored = new byte[hashSize];
+
+        for (long i = 0; i < size(); ++i) {
+            long position = recordPosition(i);
+            Hasher hasher = hashEngine.hasher();
+            hasher.updateLong(records.getLong(position + TIMESTAMP_OFFSET));
+            payloads.update(hasher, records.getLong(position + PAYLOAD_OFFSET),
+                    records.getInt(position + LENGTH_OFFSET));
+            hasher.digest(hashBuffer, 0);
+            records.get(position + HASH_OFFSET, stored, 0, stored.length);
+            if (!Arrays.equals(stored, hashBuffer))
+                return false;
+        }
+
+        for (int varDimIdx = 0; varDimIdx < dimCount; ++varDimIdx) {
+            long stride = numbering.stride(varDimIdx);
+            for (long fixed = 0; fixed < linesPerDim; ++fixed) {
+                // the first cell of the line has the variable index 0
+                long first = fixed / stride * stride * width + fixed % stride;
+                calculateLineHash(first, stride);
+                lineHashes.get((varDimIdx * linesPerDim + fixed) * hashSize, stored, 0, stored.length);
+                if (!Arrays.equals(stored, hashBuffer))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get number of lines, dimCount*width^(dimCount-1).
+     *
+     * @return number of lines
+     */
+    long lineCount() {
+        return linesPerDim * dimCount;
+    }
+
+    /**
+     * Get number of the line along the given dimension through the cell of the block. Lines are numbered the same as
+     * in {@link LineHashTensor}.
+     *
+     * @param varDimIdx   index of the variable index, in the interval [0 .. dimCount)
+     * @param blockNumber block number, a long in interval [0 .. capacity)
+     * @return number of the line
+     */
+    long lineOf(int varDimIdx, long blockNumber) {
+        long index = numbering.toIndex(blockNumber);
+        long stride = numbering.stride(varDimIdx);
+        return varDimIdx * linesPerDim + index / (stride * width) * stride + index % stride;
+    }
+
+    /**
+     * Check the line: whether each block on it has the same hash stored as the one calculated for it, and whether
+     * the line hash stored is the same as the one calculated. Only local buffers are used, but the caller must
+     * exclude writers.
+     *
+     * @param line number of the line, in the interval [0 .. lineCount)
+     * @return whether the line and its blocks are valid
+     */
+    boolean isLineValid(long line) {
+        int varDimIdx = (int) (line / linesPerDim);
+        long fixed = line % linesPerDim;
+        long stride = numbering.stride(varDimIdx);
+        long first = fixed / stride * stride * width + fixed % stride;
+        byte[] calculated = new byte[hashSize];
+        byte[] stored = new byte[hashSize];
+
+        Hasher hasher = hashEngine.hasher();
+        for (int i = 0; i < width; ++i) {
+            long position = (first + i * stride) * recordSize;
+            hasher.updateLong(records.getLong(position + TIMESTAMP_OFFSET));
+            payloads.update(hasher, records.getLong(position + PAYLOAD_OFFSET),
+                    records.getInt(position + LENGTH_OFFSET));
+            hasher.digest(calculated, 0);
+            records.get(position + HASH_OFFSET, stored, 0, stored.length);
+            if (!Arrays.equals(stored, calculated))
+                return false;
+        }
+
+        for (int i = 0; i < width; ++i)
+            records.update(hasher, (first + i * stride) * recordSize + HASH_OFFSET, hashSize);
+        hasher.digest(calculated, 0);
+        lineHashes.get(line * hashSize, stored, 0, stored.length);
+        return Arrays.equals(stored, calculated);
+    }
+
+    /**
+     * Get end of the used part of the payload arena.
+     *
+     * @return end of the used part in bytes
+     */
+    long payloadEnd() {
+        return payloadEnd;
+    }
+
+    /**
+     * Move the payloads of all blocks to the start of the arena, in order of the block numbers, dropping the freed
+     * bytes. Each payload is first copied after the used part, so no payload is overwritten before its record points
+     * to the copy, and then all copies are moved to the start in one pass. Nothing is kept on the heap but a buffer;
+     * the arena temporarily holds the used part and the payloads once more. The bytes after the moved payloads are
+     * overwritten with zeros. The hashes do not change.
+     */
+    void compactPayloads() {
+        long start = payloadEnd;
+        long end = start;
+        for (long blockNumber = 0; blockNumber < size; ++blockNumber) {
+            long position = recordPosition(blockNumber);
+            byte[] data = readPayload(position);
+            payloads.ensureCapacity(end + data.length);
+            payloads.put(end, data, 0, data.length);
+            records.putLong(position + PAYLOAD_OFFSET, end);
+            end += data.length;
+        }
+
+        // the copies lie after the used part, so a chunk is never overwritten before it is read
+        long length = end - start;
+        byte[] buffer = new byte[(int) Math.min(length, MOVE_BUFFER_SIZE)];
+        for (long moved = 0; moved < length; moved += buffer.length) {
+            int n = (int) Math.min(length - moved, buffer.length);
+            payloads.get(start + moved, buffer, 0, n);
+            payloads.put(moved, buffer, 0, n);
+        }
+        for (long blockNumber = 0; blockNumber < size; ++blockNumber) {
+            long position = recordPosition(blockNumber) + PAYLOAD_OFFSET;
+            records.putLong(position, records.getLong(position) - start);
+        }
+        payloads.clear(length, end - length);
+        payloadEnd = length;
+        garbage = 0;
+    }
+
+    /**
+     * Force the content of the regions to their storage, see {@link OffHeapRegion#force()}.
+     */
+    void force() {
+        records.force();
+        lineHashes.force();
+        payloads.force();
+    }
+
+    /**
+     * Get current time.
+     *
+     * @return current time
+     */
+    protected long timestamp() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Recalculate and store the hash of the line along the given dimension through the given cell.
+     *
+     * @param varDimIdx index of the variable index
+     * @param index     one-dimensional index of a cell on the line
+     */
+    private void updateLineHash(int varDimIdx, long index) {
+        long stride = numbering.stride(varDimIdx);
+        // drop the variable index from the cell index to get the first cell and the index of the fixed indexes
+        long first = index - index / stride % width * stride;
+        long fixed = index / (stride * width) * stride + index % stride;
+
+        calculateLineHash(first, stride);
+        lineHashes.put((varDimIdx * linesPerDim + fixed) * hashSize, hashBuffer, 0, hashSize);
+    }
+
+    /**
+     * Calculate the hash of the line into the hash buffer. The line hash is the hash of the block hashes of the line
+     * concatenated.
+     *
+     * @param first  one-dimensional index of the first cell of the line
+     * @param stride distance between the one-dimensional indexes of neighbouring cells of the line
+     */
+    private void calculateLineHash(long first, long stride) {
+        Hasher hasher = hashEngine.hasher();
+        for (int i = 0; i < width; ++i)
+            records.update(hasher, (first + i * stride) * recordSize + HASH_OFFSET, hashSize);
+        hasher.digest(hashBuffer, 0);
+    }
+
+    /**
+     * Calculate the hash of the timestamp and the data concatenated (in this order) into the hash buffer, the same as
+     * {@link Block#calculateHash(HashEngine)}.
+     *
+     * @param timestamp timestamp
+     * @param data      data
+     */
+    private void calculateBlockHash(long timestamp, byte[] data) {
+        Hasher hasher = hashEngine.hasher();
+        hasher.updateLong(timestamp);
+        hasher.update(data);
+        hasher.digest(hashBuffer, 0);
+    }
+
+    /**
+     * Get position of the record of the given block.
+     *
+     * @param blockNumber block number
+     * @return position in the records region
+     */
+    private long recordPosition(long blockNumber) {
+        return numbering.toIndex(blockNumber) * recordSize;
+    }
+
+    /**
+     * Read payload of the record at the given position.
+     *
+     * @param position position of the record
+     * @return copy of the payload
+     */
+    private byte[] readPayload(long position) {
+        byte[] data = new byte[records.getInt(position + LENGTH_OFFSET)];
+        payloads.get(records.getLong(position + PAYLOAD_OFFSET), data, 0, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,353 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Long-addressed region of off-heap memory. A single direct byte buffer cannot hold more than 2^31 bytes, so the
+ * region is made of direct buffers (chunks) of equal size. The chunk size is a multiple of the stride given on
+ * creation, so fixed-size records never cross chunk boundaries, while bulk reads and writes of byte arrays may.
+ * <p>
+ * The region can grow. The last chunk grows geometrically until it reaches the chunk size, then new chunks are added.
+ * Chunks are allocated by an {@link Allocator}, either as direct buffers or as buffers mapped from a file.
+ */
+final class OffHeapRegion {
+    /**
+     * Allocator of direct buffers, the memory does not outlive the region.
+     */
+    static final Allocator DIRECT = (position, size) -> ByteBuffer.allocateDirect(size);
+
+    /**
+     * Upper bound of the chunk size, 1 gibibyte.
+     */
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    /**
+     * Smallest chunk allocated when the region grows.
+     */
+    private static final int MIN_GROWTH = 4096;
+    /**
+     * Source of zeros for clearing.
+     */
+    private static final byte[] ZEROS = new byte[4096];
+
+    /**
+     * Size of every chunk except possibly the last one.
+     */
+    private final int chunkSize;
+    /**
+     * Allocator of the chunks.
+     */
+    private final Allocator allocator;
+    /**
+     * Direct buffers holding the memory.
+     */
+    private ByteBuffer[] chunks;
+    /**
+     * Total size of all chunks.
+     */
+    private long capacity;
+
+    /**
+     * Create new region of the given size made of direct buffers.
+     *
+     * @param capacity initial size of the region in bytes, a non-negative long
+     * @param stride   size of the records stored in the region, a positive integer not greater than 2^30
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    OffHeapRegion(long capacity, int stride) throws IllegalArgumentException {
+        this(capacity, stride, DIRECT);
+    }
+
+    /**
+     * Create new region of the given size with chunks allocated by the given allocator.
+     *
+     * @param capacity  initial size of the region in bytes, a non-negative long
+     * @param stride    size of the records stored in the region, a positive integer not greater than 2^30
+     * @param allocator allocator of the chunks
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    OffHeapRegion(long capacity, int stride, Allocator allocator) throws IllegalArgumentException {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative.");
+        if (stride < 1 || stride > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Stride must be in the interval [1 .. " + MAX_CHUNK_SIZE + "].");
+
+        this.chunkSize = MAX_CHUNK_SIZE / stride * stride;
+        this.allocator = allocator;
+        this.chunks = new ByteBuffer[0];
+        this.capacity = 0;
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Get size of the region.
+     *
+     * @return size in bytes
+     */
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Grow the region so that it is at least of the given size. The content is preserved.
+     *
+     * @param minCapacity minimal size in bytes
+     */
+    void ensureCapacity(long minCapacity) {
+        while (capacity < minCapacity) {
+            int last = chunks.length - 1;
+            if (last >= 0 && chunks[last].capacity() < chunkSize) {
+                // grow the last chunk by copying it into a larger one
+                ByteBuffer old = chunks[last];
+                long wanted = minCapacity - (long) last * chunkSize;
+                int grownSize = (int) Math.min(chunkSize, Math.max(wanted, 2L * old.capacity()));
+                chunks[last] = allocator.grow(old, (long) last * chunkSize, grownSize);
+                capacity += grownSize - old.capacity();
+            } else {
+                long wanted = minCapacity - capacity;
+                int newSize = (int) Math.min(chunkSize, Math.max(wanted, MIN_GROWTH));
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[last + 1] = allocator.allocate((long) (last + 1) * chunkSize, newSize);
+                capacity += newSize;
+            }
+        }
+    }
+
+    /**
+     * Write the changes of the chunks mapped from a file to the file. Chunks that are not mapped are skipped.
+     */
+    void force() {
+        for (ByteBuffer chunk : chunks) {
+            if (chunk instanceof MappedByteBuffer)
+                ((MappedByteBuffer) chunk).force();
+        }
+    }
+
+    /**
+     * Read a long at the given position. The long must not cross a chunk boundary.
+     *
+     * @param position position in bytes
+     * @return the long
+     */
+    long getLong(long position) {
+        return chunk(position).getLong(offset(position));
+    }
+
+    /**
+     * Write a long at the given position. The long must not cross a chunk boundary.
+     *
+     * @param position position in bytes
+     * @param value    the long
+     */
+    void putLong(long position, long value) {
+        chunk(position).putLong(offset(position), value);
+    }
+
+    /**
+     * Read an int at the given position. The int must not cross a chunk boundary.
+     *
+     * @param position position in bytes
+     * @return the int
+     */
+    int getInt(long position) {
+        return chunk(position).getInt(offset(position));
+    }
+
+    /**
+     * Write an int at the given position. The int must not cross a chunk boundary.
+     *
+     * @param position position in bytes
+     * @param value    the int
+     */
+    void putInt(long position, int value) {
+        chunk(position).putInt(offset(position), value);
+    }
+
+    /**
+     * Copy bytes from the region to the array.
+     *
+     * @param position position in the region
+     * @param dst      destination array
+     * @param offset   offset in the destination array
+     * @param length   number of bytes to copy
+     */
+    void get(long position, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer view = view(position);
+            int n = Math.min(length, view.remaining());
+            view.get(dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copy bytes from the array to the region.
+     *
+     * @param position position in the region
+     * @param src      source array
+     * @param offset   offset in the source array
+     * @param length   number of bytes to copy
+     */
+    void put(long position, byte[] src, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer view = view(position);
+            int n = Math.min(length, view.remaining());
+            view.put(src, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write the pattern repeatedly, count times, starting at the given position.
+     *
+     * @param position position in the region
+     * @param pattern  bytes to be written
+     * @param count    number of repetitions
+     */
+    void fill(long position, byte[] pattern, long count) {
+        if (count == 0)
+            return;
+        ByteBuffer view = view(position);
+        for (long i = 0; i < count; ++i) {
+            if (view.remaining() < pattern.length) {
+                // the pattern crosses a chunk boundary
+                put(position, pattern, 0, pattern.length);
+                position += pattern.length;
+                if (i + 1 < count)
+                    view = view(position);
+                continue;
+            }
+            view.put(pattern);
+            position += pattern.length;
+        }
+    }
+
+    /**
+     * Overwrite bytes of the region with zeros.
+     *
+     * @param position position in the region
+     * @param length   number of bytes to overwrite
+     */
+    void clear(long position, long length) {
+        while (length > 0) {
+            int n = (int) Math.min(length, ZEROS.length);
+            put(position, ZEROS, 0, n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Feed bytes of the region to the hasher.
+     *
+     * @param hasher   hasher to be updated
+     * @param position position in the region
+     * @param length   number of bytes
+     */
+    void update(Hasher hasher, long position, long length) {
+        while (length > 0) {
+            ByteBuffer view = view(position);
+            int n = (int) Math.min(length, view.remaining());
+            view.limit(view.position() + n);
+            hasher.update(view);
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Get the chunk containing the given position.
+     *
+     * @param position position in the region
+     * @return the chunk
+     */
+    private ByteBuffer chunk(long position) {
+        return chunks[(int) (position / chunkSize)];
+    }
+
+    /**
+     * Get offset of the position in its chunk.
+     *
+     * @param position position in the region
+     * @return offset in the chunk
+     */
+    private int offset(long position) {
+        return (int) (position % chunkSize);
+    }
+
+    /**
+     * Get a view of the chunk containing the position, positioned at it and reaching to the end of the chunk. Views
+     * have their own position and limit, so they can be used concurrently.
+     *
+     * @param position position in the region
+     * @return view of the chunk
+     */
+    private ByteBuffer view(long position) {
+        Tensor.checkIndex(position, capacity);
+        ByteBuffer view = chunk(position).duplicate();
+        view.position(offset(position));
+        return view;
+    }
+
+    /**
+     * Get allocator of chunks mapped from the file, starting at the given offset. The file grows as the region grows.
+     *
+     * @param channel channel of the file, open for reading and writing
+     * @param base    offset of the region in the file
+     * @return allocator of mapped chunks
+     */
+    static Allocator mapped(FileChannel channel, long base) {
+        return new Allocator() {
+            @Override
+            public ByteBuffer allocate(long position, int size) {
+                try {
+                    return channel.map(FileChannel.MapMode.READ_WRITE, base + position, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public ByteBuffer grow(ByteBuffer chunk, long position, int size) {
+                // the content is in the file, so a larger mapping already holds it
+                return allocate(position, size);
+            }
+        };
+    }
+
+    /**
+     * Allocator of the chunks of a region.
+     */
+    interface Allocator {
+        /**
+         * Allocate a chunk.
+         *
+         * @param position position of the chunk in the region
+         * @param size     size of the chunk in bytes
+         * @return the chunk
+         */
+        ByteBuffer allocate(long position, int size);
+
+        /**
+         * Replace a chunk by a larger one with the same content.
+         *
+         * @param chunk    the chunk
+         * @param position position of the chunk in the region
+         * @param size     new size of the chunk in bytes
+         * @return the larger chunk
+         */
+        default ByteBuffer grow(ByteBuffer chunk, long position, int size) {
+            ByteBuffer grown = allocate(position, size);
+            grown.put(chunk.duplicate().clear());
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store of the data arrays of a blocktensor. Equal data is stored once and shared by all blocks
+ * holding it, with a count of the references; the array is dropped when the last block holding it is modified. The
+ * arrays are looked up by the hash code of their content and compared in full, so no digest of the data is needed.
+ * Stored arrays are never modified. This class is thread-safe.
+ */
+final class PayloadStore {
+    /**
+     * Stored arrays by their content.
+     */
+    private final ConcurrentHashMap<ByteBuffer, Payload> payloads;
+
+    /**
+     * Create new empty store.
+     */
+    PayloadStore() {
+        this.payloads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a reference to the data. If equal data is stored already, the stored array is returned; otherwise the given
+     * array is stored, so the caller must not modify it afterwards.
+     *
+     * @param data data array, owned by the store from now on
+     * @return stored array with the same content
+     */
+    byte[] intern(byte[] data) {
+        return payloads.compute(ByteBuffer.wrap(data), (content, payload) -> {
+            if (payload == null)
+                return new Payload(data);
+            payload.references++;
+            return payload;
+        }).data;
+    }
+
+    /**
+     * Drop a reference to the stored array, removing it with the last reference.
+     *
+     * @param data array returned by {@link #intern(byte[])}
+     * @return whether other references to the array remain, so it must not be handed out
+     */
+    boolean release(byte[] data) {
+        boolean[] shared = new boolean[1];
+        payloads.computeIfPresent(ByteBuffer.wrap(data), (content, payload) -> {
+            // an equal array that is not the stored one holds no reference
+            if (payload.data != data)
+                return payload;
+            shared[0] = --payload.references > 0;
+            return shared[0] ? payload : null;
+        });
+        return shared[0];
+    }
+
+    /**
+     * Get number of distinct arrays stored.
+     *
+     * @return number of arrays
+     */
+    int size() {
+        return payloads.size();
+    }
+
+    /**
+     * Get total length of the distinct arrays stored.
+     *
+     * @return number of bytes
+     */
+    long storedBytes() {
+        return payloads.values().stream().mapToLong(payload -> payload.data.length).sum();
+    }
+
+    /**
+     * Stored array with its reference count, guarded by the map.
+     */
+    private static final class Payload {
+        /**
+         * Stored array.
+         */
+        private final byte[] data;
+        /**
+         * Number of blocks holding the array.
+         */
+        private int references;
+
+        /**
+         * Create new payload with one reference.
+         *
+         * @param data stored array
+         */
+        private Payload(byte[] data) {
+            this.data = data;
+            this.references = 1;
+        }
+    }
+}
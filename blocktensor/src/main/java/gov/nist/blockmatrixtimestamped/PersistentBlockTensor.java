@@ -0,0 +1,544 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Off-heap blocktensor stored in memory-mapped files, so it survives restarts. The directory of the blocktensor holds
+ * two files: {@value #BLOCKS_FILE} with a header, the fixed-size block records (hash, timestamp, payload position and
+ * length) and the line hashes, and {@value #PAYLOADS_FILE} with the payloads appended one after another and compacted
+ * when more than half of it is freed, see {@link OffHeapBlockTensor}. Opening an existing blocktensor only maps the
+ * files and sums the payload lengths of the records, nothing is rehashed; use {@link #isValid()} to check it.
+ * <p>
+ * A blocktensor opened by {@link #openLazily(Path)} verifies itself on demand instead: the first time a block is read
+ * or modified, the lines through it are checked together with all their blocks, and reading or modifying a block on
+ * a line that fails the check throws an IllegalStateException. Lines can also be checked ahead of use by
+ * {@link #verifyInBackground(ExecutorService)}. A blocktensor opened this way synchronizes all reads and writes on
+ * itself, so the background pass can run while it is used.
+ * <p>
+ * Changes reach the files when {@link #flush()} or {@link #close()} is called, or whenever the operating system
+ * writes the mapped pages back. The mappings are released by the garbage collector after closing. Unless it is opened
+ * lazily, this class is not thread-safe.
+ */
+public class PersistentBlockTensor extends OffHeapBlockTensor implements Closeable {
+    /**
+     * Name of the file with the header, the block records and the line hashes.
+     */
+    public static final String BLOCKS_FILE = "blocks.dat";
+    /**
+     * Name of the file with the payloads.
+     */
+    public static final String PAYLOADS_FILE = "payloads.dat";
+    /**
+     * Magic number at the start of the blocks file, "BLKTNSR" followed by a zero byte.
+     */
+    static final long MAGIC = 0x424C4B544E535200L;
+    /**
+     * Version of the file format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Size of the header at the start of the blocks file. The records follow it.
+     */
+    static final int HEADER_SIZE = 128;
+
+    /**
+     * Offset of the magic number in the header.
+     */
+    private static final int MAGIC_OFFSET = 0;
+    /**
+     * Offset of the version in the header.
+     */
+    private static final int VERSION_OFFSET = 8;
+    /**
+     * Offset of the width in the header.
+     */
+    private static final int WIDTH_OFFSET = 12;
+    /**
+     * Offset of the dimension count in the header.
+     */
+    private static final int DIM_COUNT_OFFSET = 16;
+    /**
+     * Offset of the hash size in the header.
+     */
+    private static final int HASH_SIZE_OFFSET = 20;
+    /**
+     * Offset of the size in the header.
+     */
+    private static final int SIZE_OFFSET = 24;
+    /**
+     * Offset of the end of the used part of the payloads file in the header.
+     */
+    private static final int PAYLOAD_END_OFFSET = 32;
+    /**
+     * Offset of the length of the hash algorithm name in the header, the UTF-8 name follows it.
+     */
+    private static final int ALGORITHM_OFFSET = 40;
+    /**
+     * Maximal length of the hash algorithm name in UTF-8.
+     */
+    private static final int MAX_ALGORITHM_LENGTH = HEADER_SIZE - ALGORITHM_OFFSET - Short.BYTES;
+
+    /**
+     * Channel of the blocks file.
+     */
+    private final FileChannel blocksChannel;
+    /**
+     * Channel of the payloads file.
+     */
+    private final FileChannel payloadsChannel;
+    /**
+     * Mapped header of the blocks file.
+     */
+    private final MappedByteBuffer header;
+    /**
+     * Bits of the lines that have been verified, or null if the blocktensor verifies nothing on demand. Guarded by
+     * the monitor of the blocktensor.
+     */
+    private final long[] verifiedLines;
+
+    /**
+     * Create the blocktensor on top of the open files.
+     *
+     * @param width           width
+     * @param dimCount        dimension count
+     * @param hashEngine      hash engine
+     * @param blocksChannel   channel of the blocks file
+     * @param payloadsChannel channel of the payloads file
+     * @param header          mapped header
+     * @param size            number of blocks already added
+     * @param payloadEnd      end of the used part of the payloads file
+     * @param initialize      whether the files are new and have to be filled with the template block
+     * @param lazy            whether the lines are verified on demand
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     */
+    private PersistentBlockTensor(int width, int dimCount, HashEngine hashEngine, FileChannel blocksChannel,
+                                  FileChannel payloadsChannel, MappedByteBuffer header, long size, long payloadEnd,
+                                  boolean initialize, boolean lazy) throws IllegalArgumentException {
+        super(width, dimCount, hashEngine, OffHeapRegion.mapped(blocksChannel, HEADER_SIZE),
+                OffHeapRegion.mapped(blocksChannel, lineHashOffset(width, dimCount, hashEngine.getDigestLength())),
+                OffHeapRegion.mapped(payloadsChannel, 0), size, payloadEnd, initialize);
+        this.blocksChannel = blocksChannel;
+        this.payloadsChannel = payloadsChannel;
+        this.header = header;
+        try {
+            this.verifiedLines = lazy ? new long[Math.toIntExact((lineCount() + Long.SIZE - 1) / Long.SIZE)] : null;
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Too many lines to verify on demand.");
+        }
+    }
+
+    /**
+     * Create new persistent blocktensor with given width and dimCount in the directory, using SHA-256.
+     *
+     * @param directory directory of the blocktensor, created if it does not exist
+     * @param width     width, a positive integer
+     * @param dimCount  dimension count, an integer greater than 1
+     * @return the blocktensor
+     * @throws IOException              if the files cannot be created, or they already exist
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     */
+    public static PersistentBlockTensor create(Path directory, int width, int dimCount)
+            throws IOException, IllegalArgumentException {
+        return create(directory, width, dimCount, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new persistent blocktensor with given width, dimCount and hash engine in the directory. The name of the
+     * hash algorithm is stored, so the engine must be available through {@link SecurityUtil#getHashEngine(String)}
+     * when the blocktensor is opened.
+     *
+     * @param directory  directory of the blocktensor, created if it does not exist
+     * @param width      width, a positive integer
+     * @param dimCount   dimension count, an integer greater than 1
+     * @param hashEngine hash engine for the block hashes and the line hashes
+     * @return the blocktensor
+     * @throws IOException              if the files cannot be created, or they already exist
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements or the capacity is too large
+     */
+    public static PersistentBlockTensor create(Path directory, int width, int dimCount, HashEngine hashEngine)
+            throws IOException, IllegalArgumentException {
+        byte[] algorithm = hashEngine.getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        if (algorithm.length > MAX_ALGORITHM_LENGTH)
+            throw new IllegalArgumentException("Hash algorithm name is too long.");
+
+        Files.createDirectories(directory);
+        FileChannel blocks = FileChannel.open(directory.resolve(BLOCKS_FILE), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel payloads = null;
+        try {
+            payloads = FileChannel.open(directory.resolve(PAYLOADS_FILE), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer header = blocks.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            PersistentBlockTensor bt = new PersistentBlockTensor(width, dimCount, hashEngine, blocks, payloads, header,
+                    0, 0, true, false);
+
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(WIDTH_OFFSET, width);
+            header.putInt(DIM_COUNT_OFFSET, dimCount);
+            header.putInt(HASH_SIZE_OFFSET, hashEngine.getDigestLength());
+            header.putShort(ALGORITHM_OFFSET, (short) algorithm.length);
+            for (int i = 0; i < algorithm.length; ++i)
+                header.put(ALGORITHM_OFFSET + Short.BYTES + i, algorithm[i]);
+            bt.flush();
+            // the magic number is written last, so a blocktensor whose creation did not finish cannot be opened
+            header.putLong(MAGIC_OFFSET, MAGIC);
+            header.force();
+            return bt;
+        } catch (IOException | RuntimeException e) {
+            blocks.close();
+            if (payloads != null)
+                payloads.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open persistent blocktensor stored in the directory. The files are mapped and the blocktensor can be used
+     * immediately, nothing is rehashed.
+     *
+     * @param directory directory of the blocktensor
+     * @return the blocktensor
+     * @throws IOException              if the files cannot be opened or do not hold a blocktensor
+     * @throws IllegalArgumentException if the hash algorithm of the blocktensor is not available
+     */
+    public static PersistentBlockTensor open(Path directory) throws IOException, IllegalArgumentException {
+        return open(directory, false);
+    }
+
+    /**
+     * Open persistent blocktensor stored in the directory, verifying it on demand. The files are mapped and the
+     * blocktensor can be used immediately; each line is checked the first time a block on it is read or modified,
+     * see {@link PersistentBlockTensor}.
+     *
+     * @param directory directory of the blocktensor
+     * @return the blocktensor
+     * @throws IOException              if the files cannot be opened or do not hold a blocktensor
+     * @throws IllegalArgumentException if the hash algorithm of the blocktensor is not available
+     */
+    public static PersistentBlockTensor openLazily(Path directory) throws IOException, IllegalArgumentException {
+        return open(directory, true);
+    }
+
+    /**
+     * Open persistent blocktensor stored in the directory.
+     *
+     * @param directory directory of the blocktensor
+     * @param lazy      whether the lines are verified on demand
+     * @return the blocktensor
+     * @throws IOException              if the files cannot be opened or do not hold a blocktensor
+     * @throws IllegalArgumentException if the hash algorithm of the blocktensor is not available
+     */
+    private static PersistentBlockTensor open(Path directory, boolean lazy)
+            throws IOException, IllegalArgumentException {
+        FileChannel blocks = FileChannel.open(directory.resolve(BLOCKS_FILE), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel payloads = null;
+        try {
+            payloads = FileChannel.open(directory.resolve(PAYLOADS_FILE), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (blocks.size() < HEADER_SIZE)
+                throw new IOException("File " + BLOCKS_FILE + " is too short.");
+            MappedByteBuffer header = blocks.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getLong(MAGIC_OFFSET) != MAGIC)
+                throw new IOException("File " + BLOCKS_FILE + " does not hold a blocktensor.");
+            if (header.getInt(VERSION_OFFSET) != VERSION)
+                throw new IOException("Unsupported version " + header.getInt(VERSION_OFFSET) + ".");
+
+            int algorithmLength = header.getShort(ALGORITHM_OFFSET);
+            if (algorithmLength < 0 || algorithmLength > MAX_ALGORITHM_LENGTH)
+                throw new IOException("Corrupted header.");
+            byte[] algorithm = new byte[algorithmLength];
+            for (int i = 0; i < algorithm.length; ++i)
+                algorithm[i] = header.get(ALGORITHM_OFFSET + Short.BYTES + i);
+            HashEngine hashEngine = SecurityUtil.getHashEngine(new String(algorithm, StandardCharsets.UTF_8));
+            if (hashEngine.getDigestLength() != header.getInt(HASH_SIZE_OFFSET))
+                throw new IOException("Hash size does not match the hash algorithm.");
+
+            int width = header.getInt(WIDTH_OFFSET);
+            int dimCount = header.getInt(DIM_COUNT_OFFSET);
+            long size = header.getLong(SIZE_OFFSET);
+            long payloadEnd = header.getLong(PAYLOAD_END_OFFSET);
+            if (payloadEnd > payloads.size())
+                throw new IOException("File " + PAYLOADS_FILE + " is too short.");
+            try {
+                return new PersistentBlockTensor(width, dimCount, hashEngine, blocks, payloads, header, size,
+                        payloadEnd, false, lazy);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted header.", e);
+            }
+        } catch (IOException | RuntimeException e) {
+            blocks.close();
+            if (payloads != null)
+                payloads.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set data to the given block and record the new size and payload end in the header. See
+     * {@link OffHeapBlockTensor#set(long, byte[])}. If the blocktensor is opened lazily, the lines through the block
+     * are verified first.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size]
+     * @param data        data byte array, its size should be less than 1073741824 (1 gibibyte)
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     * @throws IllegalArgumentException  if the data is too large
+     * @throws IllegalStateException     if any line through the block is not valid
+     */
+    @Override
+    public byte[] set(long blockNumber, byte[] data)
+            throws IndexOutOfBoundsException, IllegalArgumentException, IllegalStateException {
+        if (verifiedLines == null)
+            return write(blockNumber, data);
+        synchronized (this) {
+            // the line hashes are recalculated from the other blocks, which must not be trusted blindly
+            if (blockNumber >= 0 && blockNumber < capacity())
+                verifyLines(blockNumber);
+            return write(blockNumber, data);
+        }
+    }
+
+    /**
+     * Add data to the blocktensor. See {@link OffHeapBlockTensor#add(byte[])}.
+     *
+     * @param data data byte array
+     * @return block number of the added block
+     * @throws IndexOutOfBoundsException if there is not enough space in blocktensor
+     * @throws IllegalStateException     if any line through the new block is not valid
+     */
+    @Override
+    public long add(byte[] data) throws IndexOutOfBoundsException, IllegalStateException {
+        if (verifiedLines == null)
+            return super.add(data);
+        synchronized (this) {
+            return super.add(data);
+        }
+    }
+
+    /**
+     * Get data of the given block number. If the blocktensor is opened lazily, the lines through the block are
+     * verified first.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return data of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     * @throws IllegalStateException     if any line through the block is not valid
+     */
+    @Override
+    public byte[] getData(long blockNumber) throws IndexOutOfBoundsException, IllegalStateException {
+        if (verifiedLines == null)
+            return super.getData(blockNumber);
+        synchronized (this) {
+            Tensor.checkIndex(blockNumber, size());
+            verifyLines(blockNumber);
+            return super.getData(blockNumber);
+        }
+    }
+
+    /**
+     * Get timestamp of the given block number. If the blocktensor is opened lazily, the lines through the block are
+     * verified first.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return timestamp of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     * @throws IllegalStateException     if any line through the block is not valid
+     */
+    @Override
+    public long getTimestamp(long blockNumber) throws IndexOutOfBoundsException, IllegalStateException {
+        if (verifiedLines == null)
+            return super.getTimestamp(blockNumber);
+        synchronized (this) {
+            Tensor.checkIndex(blockNumber, size());
+            verifyLines(blockNumber);
+            return super.getTimestamp(blockNumber);
+        }
+    }
+
+    /**
+     * Get hash of the given block number. If the blocktensor is opened lazily, the lines through the block are
+     * verified first.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return hash of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     * @throws IllegalStateException     if any line through the block is not valid
+     */
+    @Override
+    public byte[] getHash(long blockNumber) throws IndexOutOfBoundsException, IllegalStateException {
+        if (verifiedLines == null)
+            return super.getHash(blockNumber);
+        synchronized (this) {
+            Tensor.checkIndex(blockNumber, size());
+            verifyLines(blockNumber);
+            return super.getHash(blockNumber);
+        }
+    }
+
+    /**
+     * Check the validity of the whole blocktensor, see {@link OffHeapBlockTensor#isValid()}. If the blocktensor is
+     * opened lazily and it is valid, all lines are marked as verified.
+     *
+     * @return whether the tensor is valid
+     */
+    @Override
+    public boolean isValid() {
+        if (verifiedLines == null)
+            return super.isValid();
+        synchronized (this) {
+            boolean valid = super.isValid();
+            if (valid)
+                Arrays.fill(verifiedLines, -1L);
+            return valid;
+        }
+    }
+
+    /**
+     * Verify all lines that have not been verified yet in the executor. The blocktensor stays usable meanwhile, the
+     * pass holds its monitor only for 64 lines at a time. It must finish before the blocktensor is closed.
+     *
+     * @param executor executor to run the pass in
+     * @return future result, whether all lines are valid
+     * @throws IllegalStateException if the blocktensor has not been opened lazily
+     */
+    public Future<Boolean> verifyInBackground(ExecutorService executor) throws IllegalStateException {
+        if (verifiedLines == null)
+            throw new IllegalStateException("Blocktensor has not been opened lazily.");
+        return executor.submit(() -> {
+            boolean valid = true;
+            for (int word = 0; word < verifiedLines.length; ++word) {
+                synchronized (this) {
+                    for (long line = (long) word * Long.SIZE; line < Math.min(lineCount(), (word + 1L) * Long.SIZE);
+                         ++line) {
+                        if (!isVerified(line) && !verifyLine(line))
+                            valid = false;
+                    }
+                }
+            }
+            return valid;
+        });
+    }
+
+    /**
+     * Check whether all lines have been verified. Always true if the blocktensor has not been opened lazily.
+     *
+     * @return whether all lines have been verified
+     */
+    public boolean isVerified() {
+        if (verifiedLines == null)
+            return true;
+        synchronized (this) {
+            for (long line = 0; line < lineCount(); ++line) {
+                if (!isVerified(line))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Write all changes to the files. The records, the line hashes and the payloads are forced before the header, so
+     * after a flush the size in the header does not cover blocks that are not in the files.
+     */
+    public void flush() {
+        force();
+        header.force();
+    }
+
+    /**
+     * Flush the changes and close the files. The blocktensor must not be used after closing.
+     *
+     * @throws IOException if the files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        try {
+            blocksChannel.close();
+        } finally {
+            payloadsChannel.close();
+        }
+    }
+
+    /**
+     * Set data to the given block and record the new size and payload end in the header.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size]
+     * @param data        data byte array
+     * @return data that was there before
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     * @throws IllegalArgumentException  if the data is too large
+     */
+    private byte[] write(long blockNumber, byte[] data) throws IndexOutOfBoundsException, IllegalArgumentException {
+        byte[] old = super.set(blockNumber, data);
+        header.putLong(PAYLOAD_END_OFFSET, payloadEnd());
+        header.putLong(SIZE_OFFSET, size());
+        return old;
+    }
+
+    /**
+     * Verify the lines through the cell of the block that have not been verified yet. The caller holds the monitor.
+     *
+     * @param blockNumber block number, a long in interval [0 .. capacity)
+     * @throws IllegalStateException if any line is not valid
+     */
+    private void verifyLines(long blockNumber) throws IllegalStateException {
+        for (int varDimIdx = 0; varDimIdx < getDimCount(); ++varDimIdx) {
+            long line = lineOf(varDimIdx, blockNumber);
+            if (!isVerified(line) && !verifyLine(line))
+                throw new IllegalStateException("Line " + line + " through block " + blockNumber + " is not valid.");
+        }
+    }
+
+    /**
+     * Check the line and its blocks and mark it as verified if it is valid. The caller holds the monitor.
+     *
+     * @param line number of the line
+     * @return whether the line is valid
+     */
+    private boolean verifyLine(long line) {
+        if (!isLineValid(line))
+            return false;
+        verifiedLines[(int) (line / Long.SIZE)] |= 1L << line;
+        return true;
+    }
+
+    /**
+     * Check whether the line has been verified. The caller holds the monitor.
+     *
+     * @param line number of the line
+     * @return whether the line has been verified
+     */
+    private boolean isVerified(long line) {
+        return (verifiedLines[(int) (line / Long.SIZE)] & (1L << line)) != 0;
+    }
+
+    /**
+     * Get offset of the line hashes in the blocks file, they follow the header and the records.
+     *
+     * @param width    width
+     * @param dimCount dimension count
+     * @param hashSize size of a hash
+     * @return offset in bytes
+     * @throws IllegalArgumentException if the capacity is too large
+     */
+    private static long lineHashOffset(int width, int dimCount, int hashSize) throws IllegalArgumentException {
+        try {
+            return Math.addExact(HEADER_SIZE, Math.multiplyExact(Tensor.binPowExact(width, dimCount),
+                    OffHeapBlockTensor.recordSize(hashSize)));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Capacity width^dimCount is too large.");
+        }
+    }
+}
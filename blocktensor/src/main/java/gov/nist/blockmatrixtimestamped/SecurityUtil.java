@@ -1,25 +1,62 @@
 package gov.nist.blockmatrixtimestamped;
 
-import java.security.MessageDigest;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.digests.Blake2sDigest;
+
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.util.ServiceLoader;
 
 public class SecurityUtil {
+    /**
+     * SHA-256, the default hash engine.
+     */
+    public static final HashEngine SHA256 = new JcaHashEngine("SHA-256");
+    /**
+     * SHA-512 truncated to 256 bits, usually faster than SHA-256 on 64-bit machines without SHA extensions.
+     */
+    public static final HashEngine SHA512_256 = new JcaHashEngine("SHA-512/256");
+    /**
+     * BLAKE2b with 256-bit hashes, pure Java.
+     */
+    public static final HashEngine BLAKE2B_256 =
+            new BouncyCastleHashEngine("BLAKE2b-256", () -> new Blake2bDigest(256));
+    /**
+     * BLAKE2s with 256-bit hashes, pure Java.
+     */
+    public static final HashEngine BLAKE2S_256 =
+            new BouncyCastleHashEngine("BLAKE2s-256", () -> new Blake2sDigest(256));
+
+    /**
+     * Get hash engine by the name of its algorithm, ignoring case. The built-in engines are searched first, then the
+     * engines provided through {@link ServiceLoader}, and finally the message digests of the installed security
+     * providers.
+     *
+     * @param algorithm name of the algorithm, such as "SHA-256" or "BLAKE2b-256"
+     * @return hash engine
+     * @throws IllegalArgumentException if no engine supports the algorithm
+     */
+    public static HashEngine getHashEngine(String algorithm) throws IllegalArgumentException {
+        for (HashEngine engine : new HashEngine[]{SHA256, SHA512_256, BLAKE2B_256, BLAKE2S_256}) {
+            if (engine.getAlgorithm().equalsIgnoreCase(algorithm))
+                return engine;
+        }
+        for (HashEngine engine : ServiceLoader.load(HashEngine.class)) {
+            if (engine.getAlgorithm().equalsIgnoreCase(algorithm))
+                return engine;
+        }
+        return new JcaHashEngine(algorithm);
+    }
+
     /**
      * Calculate SHA-256 hash of the given input byte array.
      *
      * @param input data byte array
      * @return byte array of size 32 containing the hash
-     * @throws RuntimeException if no SHA-256 algorithm found
      */
-    public static byte[] applySha256(byte[] input) throws RuntimeException {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return digest.digest(input);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public static byte[] applySha256(byte[] input) {
+        return SHA256.hash(input);
     }
 
     /**
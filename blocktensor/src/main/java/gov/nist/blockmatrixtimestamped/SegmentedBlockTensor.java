@@ -0,0 +1,354 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Blocktensor that grows without a fixed capacity. Blocks are stored in segments, blocktensors of the same width and
+ * dimension count; when the last segment is full, a new one is opened instead of failing. Block numbers are global:
+ * block n is block n % segmentCapacity of segment n / segmentCapacity.
+ * <p>
+ * Full segments are sealed and linked by a digest chain. The digest of segment i is the hash of the digest of segment
+ * i-1 (zeros for the first segment) and all line hashes of segment i concatenated, so it covers every block of all
+ * segments up to i. Modifying a block of a sealed segment, for example erasing it, recalculates the digests from that
+ * segment on. This class is thread-safe: modifications hold the read lock of the chain from the write of the block
+ * until the digests are recalculated, and {@link #isValid()} holds the write lock, so it never sees a segment whose
+ * digest is not recalculated yet. The chain lock is always taken before the monitor of the blocktensor.
+ */
+public class SegmentedBlockTensor {
+    /**
+     * Width of the segments.
+     */
+    private final int width;
+    /**
+     * Dimension count of the segments.
+     */
+    private final int dimCount;
+    /**
+     * Hash engine of the segments and of the digest chain.
+     */
+    private final HashEngine hashEngine;
+    /**
+     * Capacity of each segment, width^dimCount.
+     */
+    private final int segmentCapacity;
+    /**
+     * Segments in order, replaced by a longer copy when a segment is added.
+     */
+    private volatile BlockTensor[] segments;
+    /**
+     * Digests of the sealed segments, all segments but the last one. Guarded by the monitor of the blocktensor.
+     */
+    private final List<byte[]> digests;
+    /**
+     * Lock of the digest chain: modifications take the read lock, validation takes the write lock.
+     */
+    private final ReentrantReadWriteLock chainLock;
+
+    /**
+     * Create new segmented blocktensor with segments of given width and dimCount, using SHA-256.
+     *
+     * @param width    width of the segments, a positive integer
+     * @param dimCount dimension count of the segments, an integer greater than 1
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     */
+    public SegmentedBlockTensor(int width, int dimCount) throws IllegalArgumentException {
+        this(width, dimCount, SecurityUtil.SHA256);
+    }
+
+    /**
+     * Create new segmented blocktensor with segments of given width, dimCount and hash engine. Only the first segment
+     * is allocated.
+     *
+     * @param width      width of the segments, a positive integer
+     * @param dimCount   dimension count of the segments, an integer greater than 1
+     * @param hashEngine hash engine for the block hashes, the line hashes and the digests
+     * @throws IllegalArgumentException if any argument does not satisfy the requirements
+     * @throws NullPointerException     if hashEngine is null
+     */
+    public SegmentedBlockTensor(int width, int dimCount, HashEngine hashEngine)
+            throws IllegalArgumentException, NullPointerException {
+        BlockTensor first = new BlockTensor(width, dimCount, hashEngine);
+        this.width = width;
+        this.dimCount = dimCount;
+        this.hashEngine = hashEngine;
+        this.segmentCapacity = first.capacity();
+        this.segments = new BlockTensor[]{first};
+        this.digests = new ArrayList<>();
+        this.chainLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Get data of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return data of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public byte[] getData(long blockNumber) throws IndexOutOfBoundsException {
+        return segment(blockNumber).getData(local(blockNumber));
+    }
+
+    /**
+     * Get timestamp of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return timestamp of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public long getTimestamp(long blockNumber) throws IndexOutOfBoundsException {
+        return segment(blockNumber).getTimestamp(local(blockNumber));
+    }
+
+    /**
+     * Get hash of the given block number.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return hash of the block
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public byte[] getHash(long blockNumber) throws IndexOutOfBoundsException {
+        return segment(blockNumber).getHash(local(blockNumber));
+    }
+
+    /**
+     * Set data to the given block. Return the data that was there before or zero-length byte array if the block has
+     * not been set yet. You can do set(size(), data) to add a block to the end, opening a new segment if needed.
+     *
+     * @param blockNumber block number, a long in interval [0 .. size]
+     * @param data        data byte array
+     * @return data that was there before or zero-length byte array if the block has not been set yet
+     * @throws IndexOutOfBoundsException if the block is not in the required interval
+     */
+    public byte[] set(long blockNumber, byte[] data) throws IndexOutOfBoundsException {
+        chainLock.readLock().lock();
+        try {
+            while (true) {
+                BlockTensor[] current = segments;
+                long segment = blockNumber < 0 ? -1 : blockNumber / segmentCapacity;
+                if (segment == current.length && local(blockNumber) == 0 && isFull(current)) {
+                    addSegment(current);
+                    continue;
+                }
+                if (segment < 0 || segment >= current.length)
+                    throw new IndexOutOfBoundsException("Block " + blockNumber + " out of bounds for size " + size());
+
+                byte[] old = current[(int) segment].set(local(blockNumber), data);
+                // a segment sealed before this read of the segments has its digest recalculated here, one sealed
+                // later is sealed with the new data already
+                if (segment < segments.length - 1)
+                    relink((int) segment);
+                return old;
+            }
+        } finally {
+            chainLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add data to the blocktensor, opening a new segment if the last one is full.
+     *
+     * @param data data byte array
+     * @return block number of the added block
+     */
+    public long add(byte[] data) {
+        chainLock.readLock().lock();
+        try {
+            while (true) {
+                BlockTensor[] current = segments;
+                try {
+                    return (long) (current.length - 1) * segmentCapacity + current[current.length - 1].add(data);
+                } catch (IndexOutOfBoundsException e) {
+                    addSegment(current);
+                }
+            }
+        } finally {
+            chainLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Erase the block at given block number. Equivalent to set(blockNumber, new byte[0]).
+     *
+     * @param blockNumber block number, a long in interval [0 .. size)
+     * @return previous data at the given block number
+     * @throws IndexOutOfBoundsException if the block number is not in the required interval
+     */
+    public byte[] erase(long blockNumber) throws IndexOutOfBoundsException {
+        return set(blockNumber, null);
+    }
+
+    /**
+     * Number of set blocks over all segments. Does not decrease after erase and set.
+     *
+     * @return number of blocks
+     */
+    public long size() {
+        BlockTensor[] current = segments;
+        return (long) (current.length - 1) * segmentCapacity + current[current.length - 1].size();
+    }
+
+    /**
+     * Get number of segments, including the last one, which is not sealed yet.
+     *
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Get capacity of each segment. This number is fixed.
+     *
+     * @return capacity of a segment, width^dimCount
+     */
+    public int getSegmentCapacity() {
+        return segmentCapacity;
+    }
+
+    /**
+     * Get width of the segments. This number is fixed.
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get dimension count of the segments. This number is fixed.
+     *
+     * @return dimension count
+     */
+    public int getDimCount() {
+        return dimCount;
+    }
+
+    /**
+     * Get the hash engine of the blocktensor. This is fixed.
+     *
+     * @return hash engine used for the block hashes, the line hashes and the digests
+     */
+    public HashEngine getHashEngine() {
+        return hashEngine;
+    }
+
+    /**
+     * Get digest of the sealed segment, which covers all segments up to it.
+     *
+     * @param segment index of the segment, in the interval [0 .. getSegmentCount()-1)
+     * @return digest of the segment
+     * @throws IndexOutOfBoundsException if the segment is not sealed
+     */
+    public synchronized byte[] getSegmentDigest(int segment) throws IndexOutOfBoundsException {
+        return digests.get(segment).clone();
+    }
+
+    /**
+     * Check the validity of the blocktensor by checking the validity of each segment and recalculating the digest
+     * chain. Modifications wait until the check is finished, and the check waits until the modifications in progress
+     * have recalculated the digests.
+     *
+     * @return whether the blocktensor is valid
+     */
+    public boolean isValid() {
+        chainLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                BlockTensor[] current = segments;
+                byte[] digest = new byte[hashEngine.getDigestLength()];
+                for (int i = 0; i < current.length; ++i) {
+                    if (!current[i].isValid())
+                        return false;
+                    if (i < digests.size()) {
+                        digest = digest(digest, current[i]);
+                        if (!Arrays.equals(digest, digests.get(i)))
+                            return false;
+                    }
+                }
+                return true;
+            }
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Seal the last of the given segments and open a new one, unless another thread has done it already.
+     *
+     * @param seen segments seen by the caller
+     */
+    private synchronized void addSegment(BlockTensor[] seen) {
+        if (segments != seen)
+            return;
+        BlockTensor[] next = Arrays.copyOf(seen, seen.length + 1);
+        next[seen.length] = new BlockTensor(width, dimCount, hashEngine);
+        // publish first, so a writer that still sees the old segments writes before the digest is calculated
+        segments = next;
+        byte[] previous = digests.isEmpty() ? new byte[hashEngine.getDigestLength()] : digests.get(digests.size() - 1);
+        digests.add(digest(previous, seen[seen.length - 1]));
+    }
+
+    /**
+     * Recalculate the digests from the given sealed segment on.
+     *
+     * @param from index of the first segment to recalculate
+     */
+    private synchronized void relink(int from) {
+        byte[] previous = from == 0 ? new byte[hashEngine.getDigestLength()] : digests.get(from - 1);
+        for (int i = from; i < digests.size(); ++i) {
+            previous = digest(previous, segments[i]);
+            digests.set(i, previous);
+        }
+    }
+
+    /**
+     * Calculate digest of the segment, the hash of the previous digest and the line hashes concatenated.
+     *
+     * @param previous digest of the previous segment
+     * @param segment  segment
+     * @return digest
+     */
+    private byte[] digest(byte[] previous, BlockTensor segment) {
+        Hasher hasher = hashEngine.hasher();
+        hasher.update(previous);
+        hasher.update(segment.snapshot().lineHashes);
+        return hasher.digest();
+    }
+
+    /**
+     * Check whether the last segment is full.
+     *
+     * @param current segments
+     * @return whether the last segment is full
+     */
+    private boolean isFull(BlockTensor[] current) {
+        return current[current.length - 1].size() == segmentCapacity;
+    }
+
+    /**
+     * Get the segment of the block.
+     *
+     * @param blockNumber block number
+     * @return segment
+     * @throws IndexOutOfBoundsException if the segment does not exist
+     */
+    private BlockTensor segment(long blockNumber) throws IndexOutOfBoundsException {
+        BlockTensor[] current = segments;
+        if (blockNumber < 0 || blockNumber / segmentCapacity >= current.length)
+            throw new IndexOutOfBoundsException("Block " + blockNumber + " out of bounds for size " + size());
+        return current[(int) (blockNumber / segmentCapacity)];
+    }
+
+    /**
+     * Get block number of the block within its segment.
+     *
+     * @param blockNumber global block number
+     * @return block number within the segment
+     */
+    private int local(long blockNumber) {
+        return (int) (blockNumber % segmentCapacity);
+    }
+}
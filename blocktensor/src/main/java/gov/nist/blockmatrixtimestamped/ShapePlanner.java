@@ -0,0 +1,237 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Planner of the width and dimension count of a blocktensor for an expected size and workload. All costs are counted
+ * in hashes of hash size, the unit of work and of storage of a blocktensor:
+ * <ul>
+ * <li>each append, set or erase rehashes dimCount lines of width block hashes, dimCount*width hashes;</li>
+ * <li>each full validation rehashes all blocks and all lines, size + dimCount*capacity hashes;</li>
+ * <li>the blocktensor stores and initializes capacity cells and dimCount*capacity/width line hashes, whether they
+ * are used or not.</li>
+ * </ul>
+ * Reads do not depend on the shape, every block is found by arithmetic, so they are not part of the workload. For a
+ * fixed dimension count the cost only grows with the width, so the planner considers the smallest width reaching the
+ * expected size for each dimension count.
+ */
+public class ShapePlanner {
+    /**
+     * Largest dimension count considered, 2^31 already exceeds the capacity of a blocktensor.
+     */
+    private static final int MAX_DIM_COUNT = 31;
+
+    /**
+     * Expected number of appends per block.
+     */
+    private final double appends;
+    /**
+     * Expected number of erases and other modifications per block.
+     */
+    private final double erases;
+    /**
+     * Expected number of full validations over the lifetime of the blocktensor.
+     */
+    private final double validations;
+
+    /**
+     * Create new planner for a workload.
+     *
+     * @param appends     expected number of appends per block, usually 1, a non-negative number
+     * @param erases      expected number of erases and other modifications per block, a non-negative number
+     * @param validations expected number of full validations over the lifetime of the blocktensor, a non-negative
+     *                    number
+     * @throws IllegalArgumentException if any argument is negative or not a number
+     */
+    public ShapePlanner(double appends, double erases, double validations) throws IllegalArgumentException {
+        if (!(appends >= 0) || !(erases >= 0) || !(validations >= 0))
+            throw new IllegalArgumentException("Workload must not be negative.");
+        this.appends = appends;
+        this.erases = erases;
+        this.validations = validations;
+    }
+
+    /**
+     * Get the shape with the lowest total cost for the expected size.
+     *
+     * @param expectedSize expected number of blocks, a positive integer
+     * @return the best shape
+     * @throws IllegalArgumentException if the expected size is not positive
+     */
+    public Shape plan(int expectedSize) throws IllegalArgumentException {
+        return candidates(expectedSize).get(0);
+    }
+
+    /**
+     * Get all shapes that can hold the expected size, from the lowest total cost to the highest, one for each
+     * dimension count.
+     *
+     * @param expectedSize expected number of blocks, a positive integer
+     * @return shapes ordered by total cost
+     * @throws IllegalArgumentException if the expected size is not positive
+     */
+    public List<Shape> candidates(int expectedSize) throws IllegalArgumentException {
+        if (expectedSize < 1)
+            throw new IllegalArgumentException("Size must be a positive integer.");
+
+        List<Shape> shapes = new ArrayList<>();
+        for (int dimCount = 2; dimCount <= MAX_DIM_COUNT; ++dimCount) {
+            int width = minWidth(expectedSize, dimCount);
+            long capacity = Tensor.binPowExact(width, dimCount);
+            if (capacity > Integer.MAX_VALUE)
+                continue;
+            shapes.add(new Shape(width, dimCount, (int) capacity, expectedSize));
+            // larger dimension counts cannot have a smaller width, they only add lines
+            if (width <= 2)
+                break;
+        }
+        shapes.sort(Comparator.comparingDouble(Shape::getCost));
+        return shapes;
+    }
+
+    /**
+     * Get the smallest width such that width^dimCount is at least the size.
+     *
+     * @param size     size, a positive integer
+     * @param dimCount dimension count, an integer greater than 1
+     * @return the width
+     */
+    private static int minWidth(int size, int dimCount) {
+        int width = Math.max(1, (int) Math.ceil(Math.pow(size, 1.0 / dimCount)));
+        // correct the rounding errors of the floating-point root
+        while (width > 1 && Tensor.binPowExact(width - 1, dimCount) >= size)
+            --width;
+        while (Tensor.binPowExact(width, dimCount) < size)
+            ++width;
+        return width;
+    }
+
+    /**
+     * Shape of a blocktensor with its costs for the workload of the planner.
+     */
+    public final class Shape {
+        /**
+         * Width.
+         */
+        private final int width;
+        /**
+         * Dimension count.
+         */
+        private final int dimCount;
+        /**
+         * Capacity, width^dimCount.
+         */
+        private final int capacity;
+        /**
+         * Expected size the costs are calculated for.
+         */
+        private final int expectedSize;
+
+        /**
+         * Create new shape.
+         *
+         * @param width        width
+         * @param dimCount     dimension count
+         * @param capacity     capacity
+         * @param expectedSize expected size
+         */
+        private Shape(int width, int dimCount, int capacity, int expectedSize) {
+            this.width = width;
+            this.dimCount = dimCount;
+            this.capacity = capacity;
+            this.expectedSize = expectedSize;
+        }
+
+        /**
+         * Get width.
+         *
+         * @return width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get dimension count.
+         *
+         * @return dimension count
+         */
+        public int getDimCount() {
+            return dimCount;
+        }
+
+        /**
+         * Get capacity, width^dimCount.
+         *
+         * @return capacity
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Get cost of one append, set or erase: the hashes of the lines through the block.
+         *
+         * @return number of hashes rehashed
+         */
+        public long getMutationCost() {
+            return (long) dimCount * width;
+        }
+
+        /**
+         * Get cost of one full validation: all blocks of the expected size and all lines.
+         *
+         * @return number of hashes rehashed
+         */
+        public long getValidationCost() {
+            return expectedSize + (long) dimCount * capacity;
+        }
+
+        /**
+         * Get cost of the storage: all cells and all line hashes, allocated and initialized up front.
+         *
+         * @return number of cells and hashes stored
+         */
+        public long getStorageCost() {
+            return capacity + (long) dimCount * (capacity / width);
+        }
+
+        /**
+         * Get total cost for the workload of the planner: the mutations and validations expected over the lifetime
+         * of the blocktensor and its storage.
+         *
+         * @return total cost in hashes
+         */
+        public double getCost() {
+            return expectedSize * (appends + erases) * getMutationCost() + validations * getValidationCost() +
+                    getStorageCost();
+        }
+
+        /**
+         * Create new blocktensor of this shape, using SHA-256.
+         *
+         * @return the blocktensor
+         */
+        public BlockTensor newBlockTensor() {
+            return new BlockTensor(width, dimCount);
+        }
+
+        /**
+         * Create new blocktensor of this shape.
+         *
+         * @param hashEngine hash engine for the block hashes and the line hashes
+         * @return the blocktensor
+         * @throws NullPointerException if hashEngine is null
+         */
+        public BlockTensor newBlockTensor(HashEngine hashEngine) throws NullPointerException {
+            return new BlockTensor(width, dimCount, hashEngine);
+        }
+
+        @Override
+        public String toString() {
+            return width + "^" + dimCount;
+        }
+    }
+}
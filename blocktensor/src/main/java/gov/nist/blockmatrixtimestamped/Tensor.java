@@ -1,8 +1,6 @@
 package gov.nist.blockmatrixtimestamped;
 
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Tensor auxiliary data structure. This data structure is "square" multidimensional array, where the number of
@@ -41,9 +39,16 @@ public class Tensor<T> implements Iterable<T> {
         if (width < 1)
             throw new IllegalArgumentException("Width must be greater than zero.");
 
+        int capacity;
+        try {
+            capacity = Math.toIntExact(binPowExact(width, dimCount));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Capacity width^dimCount must not exceed " + Integer.MAX_VALUE + ".");
+        }
+
         this.dimCount = dimCount;
         this.width = width;
-        data = new ArrayList<>(Collections.nCopies(binPow(width, dimCount), null));
+        data = new ArrayList<>(Collections.nCopies(capacity, null));
 
         size = 0;
     }
@@ -67,6 +72,41 @@ public class Tensor<T> implements Iterable<T> {
         return res;
     }
 
+    /**
+     * Long binary exponentiation. Returns a^b. b must be non-negative, a and b cannot be 0 at the same time.
+     *
+     * @param a non-negative long
+     * @param b non-negative integer
+     * @return a^b
+     * @throws ArithmeticException if the result overflows a long
+     */
+    public static long binPowExact(long a, int b) throws ArithmeticException {
+        long res = 1;
+        while (b > 0) {
+            if ((b & 1) != 0)
+                res = Math.multiplyExact(res, a);
+            b >>= 1;
+            // squaring after the last bit would overflow needlessly
+            if (b > 0)
+                a = Math.multiplyExact(a, a);
+        }
+        return res;
+    }
+
+    /**
+     * Check that the long index is in the interval [0 .. length). Long counterpart of Objects.checkIndex.
+     *
+     * @param index  index to be checked
+     * @param length upper bound of the interval, exclusive
+     * @return the index
+     * @throws IndexOutOfBoundsException if the index is not in the interval
+     */
+    static long checkIndex(long index, long length) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+        return index;
+    }
+
     /**
      * Convert multidimensional index to one-dimensional index of the tensor.
      *
@@ -167,6 +207,18 @@ public class Tensor<T> implements Iterable<T> {
         return size() == 0;
     }
 
+    /**
+     * Access the element in tensor by its one-dimensional index. The same as get(int...) with a single index, but
+     * without allocating the array of indexes.
+     *
+     * @param index one-dimensional index, in the interval [0 .. width^dimCount)
+     * @return the element at the given index
+     * @throws IndexOutOfBoundsException if the index is not in the required interval
+     */
+    public T get(int index) throws IndexOutOfBoundsException {
+        return data.get(index);
+    }
+
     /**
      * Access the element in tensor. You can either use a multidimensional indexing or the underlying one-dimensional
      * index. If dimCount is 4, the multidimensional indexes look like {i1, i2, i3, i4} and one-dimensional index is
@@ -387,16 +439,10 @@ public class Tensor<T> implements Iterable<T> {
          */
         public LineViewIterator(int varDimIdx, int... fixedIndexes) {
             this.varDimIdx = varDimIdx;
-            // make stream of the indexes
-            ArrayList<Integer> indexes = IntStream.of(fixedIndexes.clone())
-                    // convert int to Integer
-                    .boxed()
-                    // save to ArrayList
-                    .collect(Collectors.toCollection(ArrayList::new));
-            // add index at varDimIdx to be variable
-            indexes.add(varDimIdx, 0);
-            // convert ArrayList back to array
-            this.indexes = indexes.stream().mapToInt(x -> x).toArray();
+            // insert the variable index, starting at 0, at varDimIdx
+            this.indexes = new int[fixedIndexes.length + 1];
+            System.arraycopy(fixedIndexes, 0, indexes, 0, varDimIdx);
+            System.arraycopy(fixedIndexes, varDimIdx, indexes, varDimIdx + 1, fixedIndexes.length - varDimIdx);
         }
 
         /**
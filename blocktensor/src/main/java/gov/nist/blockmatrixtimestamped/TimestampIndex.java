@@ -0,0 +1,239 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Index of the blocks of a blocktensor by their timestamps. The entries are kept in two parallel primitive arrays,
+ * the timestamps and the block numbers, sorted by timestamp and then by block number, so a range of timestamps is
+ * found by two binary searches.
+ * <p>
+ * Writers only queue the numbers of the blocks they have set, see {@link #changed(int)}; each query first merges the
+ * queued blocks into the index. Added blocks usually have the latest timestamps, so their entries are appended without
+ * moving the others. When a block is set again, its old entry is found by a binary search for its old timestamp and
+ * left in place as a tombstone, the complement of its block number, which queries skip; the arrays are compacted only
+ * when more than half of the entries are tombstones, so dropping an entry costs amortized O(log n). This class is
+ * thread-safe.
+ */
+final class TimestampIndex {
+    /**
+     * Numbers of the blocks set since the last query, writers never wait for the index.
+     */
+    private final ChangeQueue changes;
+    /**
+     * Timestamps of the entries in ascending order, the first count elements are used, guarded by this.
+     */
+    private long[] timestamps;
+    /**
+     * Block numbers of the entries, parallel to the timestamps, the complement ~blockNumber for a tombstone, guarded by
+     * this.
+     */
+    private int[] blockNumbers;
+    /**
+     * Number of entries, including the tombstones, guarded by this.
+     */
+    private int count;
+    /**
+     * Number of tombstones among the entries, guarded by this.
+     */
+    private int tombstones;
+    /**
+     * Block numbers that have a live entry, guarded by this.
+     */
+    private final BitSet indexed;
+    /**
+     * Timestamp of the live entry of each indexed block number, guarded by this.
+     */
+    private long[] indexedTimestamps;
+
+    /**
+     * Create new empty index.
+     *
+     * @param blocks number of blocks that can be indexed, the block numbers lie in the interval [0 .. blocks)
+     */
+    TimestampIndex(int blocks) {
+        this.changes = new ChangeQueue(blocks);
+        this.timestamps = new long[0];
+        this.blockNumbers = new int[0];
+        this.count = 0;
+        this.tombstones = 0;
+        this.indexed = new BitSet();
+        this.indexedTimestamps = new long[0];
+    }
+
+    /**
+     * Queue the block, which has just been set, for the next query.
+     *
+     * @param blockNumber block number
+     */
+    void changed(int blockNumber) {
+        changes.add(blockNumber);
+    }
+
+    /**
+     * Queue the blocks, which have just been set, for the next query.
+     *
+     * @param blockNumbers block numbers
+     */
+    void changedAll(int[] blockNumbers) {
+        changes.addAll(blockNumbers);
+    }
+
+    /**
+     * Get the block numbers of the blocks whose timestamps lie in the interval [from .. to), after merging the queued
+     * blocks into the index.
+     *
+     * @param from        first timestamp of the interval
+     * @param to          timestamp after the interval
+     * @param timestampOf current timestamp of each block number
+     * @return block numbers in ascending order of the timestamps, equal timestamps in ascending order of the block
+     * numbers
+     */
+    synchronized int[] between(long from, long to, IntToLongFunction timestampOf) {
+        update(timestampOf);
+        return Arrays.stream(blockNumbers, lowerBound(from), lowerBound(to)).filter(blockNumber -> blockNumber >= 0)
+                .toArray();
+    }
+
+    /**
+     * Merge the queued blocks into the index. The caller holds the monitor of this.
+     *
+     * @param timestampOf current timestamp of each block number
+     */
+    private void update(IntToLongFunction timestampOf) {
+        int[] drained = changes.drain();
+        if (drained.length == 0)
+            return;
+
+        int[] changed = new int[drained.length];
+        long[] changedTimestamps = new long[drained.length];
+        int changedCount = 0;
+        for (int blockNumber : drained) {
+            long timestamp = timestampOf.applyAsLong(blockNumber);
+            if (indexed.get(blockNumber)) {
+                if (indexedTimestamps[blockNumber] == timestamp)
+                    continue;
+                int position = find(indexedTimestamps[blockNumber], blockNumber);
+                blockNumbers[position] = ~blockNumber;
+                ++tombstones;
+            } else if (blockNumber >= indexedTimestamps.length) {
+                indexedTimestamps = Arrays.copyOf(indexedTimestamps,
+                        Math.max(blockNumber + 1, indexedTimestamps.length * 3 / 2));
+            }
+            indexed.set(blockNumber);
+            indexedTimestamps[blockNumber] = timestamp;
+            changed[changedCount] = blockNumber;
+            changedTimestamps[changedCount++] = timestamp;
+        }
+        if (tombstones > count / 2)
+            compact();
+        merge(Arrays.copyOf(changed, changedCount), changedTimestamps);
+    }
+
+    /**
+     * Merge new entries into the index. The caller holds the monitor of this.
+     *
+     * @param changed           block numbers of the new entries in ascending order
+     * @param changedTimestamps timestamps of the new entries, parallel to the block numbers
+     */
+    private void merge(int[] changed, long[] changedTimestamps) {
+        // the block numbers are ascending already, a stable sort keeps them so for equal timestamps
+        int[] order = IntStream.range(0, changed.length).boxed()
+                .sorted(Comparator.comparingLong(i -> changedTimestamps[i])).mapToInt(Integer::intValue).toArray();
+
+        long[] mergedTimestamps = count + changed.length <= timestamps.length ? timestamps :
+                Arrays.copyOf(timestamps, Math.max(count + changed.length, timestamps.length * 3 / 2));
+        int[] mergedBlockNumbers = mergedTimestamps == timestamps ? blockNumbers :
+                Arrays.copyOf(blockNumbers, mergedTimestamps.length);
+        // merge from the end, so the old entries can be moved in place
+        int i = count - 1;
+        int j = changed.length - 1;
+        for (int k = count + changed.length - 1; j >= 0; --k) {
+            int next = order[j];
+            if (i >= 0 && (timestamps[i] > changedTimestamps[next] ||
+                    timestamps[i] == changedTimestamps[next] && blockOf(blockNumbers[i]) > changed[next])) {
+                mergedTimestamps[k] = timestamps[i];
+                mergedBlockNumbers[k] = blockNumbers[i--];
+            } else {
+                mergedTimestamps[k] = changedTimestamps[next];
+                mergedBlockNumbers[k] = changed[next];
+                --j;
+            }
+        }
+        timestamps = mergedTimestamps;
+        blockNumbers = mergedBlockNumbers;
+        count += changed.length;
+    }
+
+    /**
+     * Drop the tombstones in one pass over the arrays. The caller holds the monitor of this.
+     */
+    private void compact() {
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            if (blockNumbers[i] >= 0) {
+                timestamps[kept] = timestamps[i];
+                blockNumbers[kept++] = blockNumbers[i];
+            }
+        }
+        count = kept;
+        tombstones = 0;
+    }
+
+    /**
+     * Find the live entry of the indexed block. Entries are ordered by timestamp and then by block number, tombstones
+     * by the block number they stand for, so the entry is found by a binary search; only the tombstones of the same
+     * block with the same timestamp, left when its timestamp returned to an old value, are skipped.
+     *
+     * @param timestamp   timestamp of the live entry
+     * @param blockNumber block number
+     * @return position of the entry
+     */
+    private int find(long timestamp, int blockNumber) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp ||
+                    timestamps[middle] == timestamp && blockOf(blockNumbers[middle]) < blockNumber)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        while (blockNumbers[low] != blockNumber)
+            ++low;
+        return low;
+    }
+
+    /**
+     * Get the block number an entry stands for.
+     *
+     * @param entry block number of a live entry or complement of the block number of a tombstone
+     * @return block number
+     */
+    private static int blockOf(int entry) {
+        return entry < 0 ? ~entry : entry;
+    }
+
+    /**
+     * Get the position of the first entry whose timestamp is not less than the given one.
+     *
+     * @param timestamp timestamp
+     * @return position in the interval [0 .. count]
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
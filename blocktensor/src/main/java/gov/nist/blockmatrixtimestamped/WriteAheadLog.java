@@ -0,0 +1,538 @@
+package gov.nist.blockmatrixtimestamped;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of block modifications. The file starts with a header holding the magic number, the version and an
+ * opaque header of the owner, followed by the frames. Each frame holds the number of its records, the length of the
+ * records, the records and the CRC-32 of all of them; each record holds the block number, the timestamp, the data
+ * length and the data. A single modification is a frame of one record, a batch is one frame.
+ * <p>
+ * Appending only writes the frame; {@link #commit(long)} makes it durable. Commits are grouped: while one thread
+ * forces the file, the others wait, and the next force covers all frames appended in the meantime, so many
+ * concurrent modifications share one fsync. A frame that was not written completely before a crash is detected by its
+ * length or checksum and cut off by {@link #replay(Replayer)}, so a batch is replayed either whole or not at all.
+ * <p>
+ * The log grows with every modification until {@link #compact(long[], byte[][])} replaces it by a log holding only
+ * the current block of each block number, which drops the superseded records, including the data of erased blocks.
+ * Positions are counted across compactions, so a position returned before a compaction stays valid.
+ */
+final class WriteAheadLog implements Closeable {
+    /**
+     * Magic number at the start of the file, "BLKTWAL" followed by a zero byte.
+     */
+    static final long MAGIC = 0x424C4B5457414C00L;
+    /**
+     * Version of the file format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Size of the fields of a frame before the records: number of records and length of the records.
+     */
+    static final int FRAME_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    /**
+     * Size of the fields of a record before the data: block number, timestamp and data length.
+     */
+    static final int RECORD_HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    /**
+     * Maximal number of records in one frame of a compacted log, so replaying it needs little memory at a time.
+     */
+    static final int COMPACT_FRAME = 4096;
+
+    /**
+     * Log file.
+     */
+    private final Path file;
+    /**
+     * Channel of the file, replaced by compaction. Written under the monitor of the log and the commit lock.
+     */
+    private FileChannel channel;
+    /**
+     * Header of the owner.
+     */
+    private final byte[] header;
+    /**
+     * Position of the first record.
+     */
+    private final long start;
+    /**
+     * Position after the last frame written completely in the file, or -1 until the log has been replayed. Written
+     * under the monitor of the log.
+     */
+    private volatile long end;
+    /**
+     * Position of the start of the file among all positions returned, it grows with each compaction. Written under
+     * the monitor of the log and the commit lock.
+     */
+    private long offset;
+    /**
+     * Lock guarding the commit state.
+     */
+    private final ReentrantLock commitLock = new ReentrantLock();
+    /**
+     * Signalled whenever a force finishes.
+     */
+    private final Condition forced = commitLock.newCondition();
+    /**
+     * Position up to which the log is known to be durable, counted like the returned positions.
+     */
+    private long durable;
+    /**
+     * Whether some thread is forcing the file or replacing it.
+     */
+    private boolean forcing;
+
+    /**
+     * Receiver of the records read from the log.
+     */
+    @FunctionalInterface
+    interface Replayer {
+        /**
+         * Apply one record.
+         *
+         * @param blockNumber block number
+         * @param timestamp   timestamp of the block
+         * @param data        data of the block
+         * @throws IOException if the record cannot be applied
+         */
+        void apply(int blockNumber, long timestamp, byte[] data) throws IOException;
+    }
+
+    /**
+     * Create the log on top of the open file.
+     *
+     * @param file    log file
+     * @param channel channel of the file
+     * @param header  header of the owner
+     * @param start   position of the first frame
+     * @param end     position after the last frame, or -1 if it is not known yet
+     */
+    private WriteAheadLog(Path file, FileChannel channel, byte[] header, long start, long end) {
+        this.file = file;
+        this.channel = channel;
+        this.header = header;
+        this.start = start;
+        this.end = end;
+        this.offset = 0;
+        this.durable = end;
+    }
+
+    /**
+     * Create new empty log.
+     *
+     * @param file   log file
+     * @param header header of the owner, stored at the start of the file
+     * @return the log
+     * @throws IOException if the file cannot be created, or it already exists
+     */
+    static WriteAheadLog create(Path file, byte[] header) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long start = writeHeader(channel, header);
+            channel.force(true);
+            return new WriteAheadLog(file, channel, header.clone(), start, start);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open existing log and read its header. The records must be replayed before anything is appended.
+     *
+     * @param file log file
+     * @return the log
+     * @throws IOException if the file cannot be opened or does not hold a log
+     */
+    static WriteAheadLog open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 2);
+            read(channel, buf, 0);
+            if (buf.getLong() != MAGIC)
+                throw new IOException("File " + file + " does not hold a log.");
+            if (buf.getInt() != VERSION)
+                throw new IOException("Unsupported version " + buf.getInt(Long.BYTES) + ".");
+            int length = buf.getInt();
+            if (length < 0 || length > channel.size() - buf.capacity() - Integer.BYTES)
+                throw new IOException("Corrupted header.");
+
+            ByteBuffer header = ByteBuffer.allocate(length + Integer.BYTES);
+            read(channel, header, buf.capacity());
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, length);
+            if (header.getInt(length) != (int) crc.getValue())
+                throw new IOException("Corrupted header.");
+            byte[] owner = new byte[length];
+            header.get(owner);
+            return new WriteAheadLog(file, channel, owner, buf.capacity() + header.capacity(), -1);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get copy of the header of the owner.
+     *
+     * @return header
+     */
+    byte[] header() {
+        return header.clone();
+    }
+
+    /**
+     * Read all records in order and pass them to the replayer. The records of a frame are passed only after the whole
+     * frame has been read and its checksum matches. The frames after the last one written completely are removed from
+     * the file, so new frames follow the replayed ones.
+     *
+     * @param replayer receiver of the records
+     * @throws IOException if the file cannot be read or the replayer fails
+     */
+    synchronized void replay(Replayer replayer) throws IOException {
+        long size = channel.size();
+        long position = start;
+        // the stream is not closed, that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+                channel.position(start)), 1 << 16));
+        CRC32 crc = new CRC32();
+        ByteBuffer frameFields = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        ByteBuffer fields = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        try {
+            frames:
+            while (size - position >= FRAME_HEADER_SIZE + Integer.BYTES) {
+                in.readFully(frameFields.array());
+                int count = frameFields.getInt(0);
+                long length = frameFields.getLong(Integer.BYTES);
+                if (count < 1 || length < (long) count * RECORD_HEADER_SIZE ||
+                        length > size - position - FRAME_HEADER_SIZE - Integer.BYTES)
+                    break;
+                crc.reset();
+                crc.update(frameFields.array());
+
+                int[] blockNumbers = new int[count];
+                long[] timestamps = new long[count];
+                byte[][] data = new byte[count][];
+                long remaining = length;
+                for (int i = 0; i < count; ++i) {
+                    in.readFully(fields.array());
+                    int dataLength = fields.getInt(Integer.BYTES + Long.BYTES);
+                    remaining -= RECORD_HEADER_SIZE;
+                    if (dataLength < 0 || dataLength > remaining - (long) (count - 1 - i) * RECORD_HEADER_SIZE)
+                        break frames;
+                    blockNumbers[i] = fields.getInt(0);
+                    timestamps[i] = fields.getLong(Integer.BYTES);
+                    data[i] = new byte[dataLength];
+                    in.readFully(data[i]);
+                    remaining -= dataLength;
+                    crc.update(fields.array());
+                    crc.update(data[i]);
+                }
+                if (remaining != 0 || in.readInt() != (int) crc.getValue())
+                    break;
+
+                for (int i = 0; i < count; ++i)
+                    replayer.apply(blockNumbers[i], timestamps[i], data[i]);
+                position += FRAME_HEADER_SIZE + length + Integer.BYTES;
+            }
+        } catch (EOFException e) {
+            // the file is shorter than its size, the torn tail is cut off below
+        }
+
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        commitLock.lock();
+        try {
+            durable = offset + position;
+        } finally {
+            commitLock.unlock();
+        }
+        end = position;
+    }
+
+    /**
+     * Append the record to the log as a frame of its own. It is not durable until it is committed.
+     *
+     * @param blockNumber block number
+     * @param timestamp   timestamp of the block
+     * @param data        data of the block, null is the same as an empty array
+     * @return position after the frame, to be passed to {@link #commit(long)}
+     * @throws IOException           if the frame cannot be written
+     * @throws IllegalStateException if the log has not been replayed yet
+     */
+    long append(int blockNumber, long timestamp, byte[] data) throws IOException, IllegalStateException {
+        return appendAll(new int[]{blockNumber}, new long[]{timestamp}, new byte[][]{data});
+    }
+
+    /**
+     * Append the records to the log as one frame, so they are replayed together or not at all. They are not durable
+     * until they are committed.
+     *
+     * @param blockNumbers block numbers
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data of the blocks, one for each block number, null is the same as an empty array
+     * @return position after the frame, to be passed to {@link #commit(long)}, or -1 if there are no records
+     * @throws IOException           if the frame cannot be written, nothing is appended then
+     * @throws IllegalStateException if the log has not been replayed yet
+     */
+    synchronized long appendAll(int[] blockNumbers, long[] timestamps, byte[][] data)
+            throws IOException, IllegalStateException {
+        if (end < 0)
+            throw new IllegalStateException("The log must be replayed first.");
+        int count = blockNumbers.length;
+        if (count == 0)
+            return -1;
+
+        try {
+            end = writeFrame(channel, end, blockNumbers, timestamps, data);
+        } catch (IOException e) {
+            // cut the partial frame off; if that fails too, its checksum keeps it from being replayed
+            try {
+                channel.truncate(end);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return offset + end;
+    }
+
+    /**
+     * Replace the log by one holding only the given records, the current block of each block number from 0 on, so
+     * the superseded records are no longer in the file. The new log is written next to the log, forced and moved over
+     * it atomically, so a crash leaves either the old log or the new one. The records must hold the effect of all
+     * frames appended so far; all positions returned so far are durable when this returns.
+     *
+     * @param timestamps timestamps of the blocks in block number order
+     * @param data       data of the blocks, one for each timestamp
+     * @throws IOException           if the new log cannot be written or moved, the old log is kept then
+     * @throws IllegalStateException if the log has not been replayed yet
+     */
+    synchronized void compact(long[] timestamps, byte[][] data) throws IOException, IllegalStateException {
+        if (end < 0)
+            throw new IllegalStateException("The log must be replayed first.");
+        Path temporary = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel compacted = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long compactedEnd;
+        try {
+            compactedEnd = writeHeader(compacted, header);
+            for (int from = 0; from < data.length; from += COMPACT_FRAME) {
+                int to = Math.min(from + COMPACT_FRAME, data.length);
+                compactedEnd = writeFrame(compacted, compactedEnd, IntStream.range(from, to).toArray(),
+                        Arrays.copyOfRange(timestamps, from, to), Arrays.copyOfRange(data, from, to));
+            }
+            compacted.force(true);
+        } catch (IOException | RuntimeException e) {
+            compacted.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        // no force may run on the old file while it is replaced, the committers wait as for a force
+        commitLock.lock();
+        try {
+            while (forcing)
+                forced.awaitUninterruptibly();
+            forcing = true;
+        } finally {
+            commitLock.unlock();
+        }
+        FileChannel old = channel;
+        boolean moved = false;
+        boolean synced = false;
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            forceDirectory(file);
+            synced = true;
+        } finally {
+            commitLock.lock();
+            try {
+                if (moved) {
+                    // the file holds the new log now; later positions follow all positions of the old file
+                    channel = compacted;
+                    offset += end;
+                    end = compactedEnd;
+                    if (synced)
+                        durable = offset + end;
+                }
+                forcing = false;
+                forced.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+            if (moved) {
+                old.close();
+            } else {
+                compacted.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to the given position. If no other thread is forcing the file, the calling
+     * thread forces it, covering all records appended so far; otherwise it waits for that force to finish and
+     * forces again only if its record was not covered.
+     *
+     * @param position position returned by {@link #append(int, long, byte[])}
+     * @throws IOException if the file cannot be forced
+     */
+    void commit(long position) throws IOException {
+        commitLock.lock();
+        try {
+            while (durable < position) {
+                if (forcing) {
+                    forced.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                long target = offset + end;
+                FileChannel forcedChannel = channel;
+                boolean done = false;
+                commitLock.unlock();
+                try {
+                    forcedChannel.force(false);
+                    done = true;
+                } finally {
+                    commitLock.lock();
+                    forcing = false;
+                    if (done)
+                        durable = Math.max(durable, target);
+                    forced.signalAll();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Close the file. Records that have not been committed may be lost.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write the header of a log at the start of the file.
+     *
+     * @param channel channel of the file
+     * @param header  header of the owner
+     * @return position of the first frame
+     * @throws IOException if the header cannot be written
+     */
+    private static long writeHeader(FileChannel channel, byte[] header) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 3 + header.length);
+        buf.putLong(MAGIC).putInt(VERSION).putInt(header.length).put(header).putInt((int) crc.getValue()).flip();
+        write(channel, buf, 0);
+        return buf.capacity();
+    }
+
+    /**
+     * Write the records as one frame at the position, handing the data to the channel without copying it.
+     *
+     * @param channel      channel of the file
+     * @param position     position of the frame
+     * @param blockNumbers block numbers, at least one
+     * @param timestamps   timestamps of the blocks, one for each block number
+     * @param data         data of the blocks, one for each block number, null is the same as an empty array
+     * @return position after the frame
+     * @throws IOException if the frame cannot be written
+     */
+    private static long writeFrame(FileChannel channel, long position, int[] blockNumbers, long[] timestamps,
+                                   byte[][] data) throws IOException {
+        int count = blockNumbers.length;
+        ByteBuffer[] buffers = new ByteBuffer[count * 2 + 2];
+        ByteBuffer fields = ByteBuffer.allocate(count * RECORD_HEADER_SIZE);
+        long length = 0;
+        for (int i = 0; i < count; ++i) {
+            byte[] blockData = data[i] == null ? new byte[0] : data[i];
+            fields.putInt(blockNumbers[i]).putLong(timestamps[i]).putInt(blockData.length);
+            buffers[2 * i + 1] = ByteBuffer.wrap(fields.array(), i * RECORD_HEADER_SIZE, RECORD_HEADER_SIZE);
+            buffers[2 * i + 2] = ByteBuffer.wrap(blockData);
+            length += RECORD_HEADER_SIZE + blockData.length;
+        }
+        ByteBuffer frameFields = ByteBuffer.allocate(FRAME_HEADER_SIZE).putInt(count).putLong(length);
+        CRC32 crc = new CRC32();
+        crc.update(frameFields.array());
+        for (int i = 1; i <= count * 2; ++i)
+            crc.update(buffers[i].duplicate());
+        buffers[0] = frameFields.flip();
+        buffers[buffers.length - 1] = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).flip();
+
+        long total = FRAME_HEADER_SIZE + length + Integer.BYTES;
+        channel.position(position);
+        for (long written = 0; written < total; )
+            written += channel.write(buffers);
+        return position + total;
+    }
+
+    /**
+     * Force the directory of the file, so a file moved into it stays there after a crash.
+     *
+     * @param file file in the directory
+     * @throws IOException if the directory cannot be forced
+     */
+    private static void forceDirectory(Path file) throws IOException {
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Write the whole buffer at the position.
+     *
+     * @param channel  channel to write to
+     * @param buf      buffer to write
+     * @param position position in the file
+     * @throws IOException if the buffer cannot be written
+     */
+    private static void write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+
+    /**
+     * Fill the whole buffer from the position and flip it.
+     *
+     * @param channel  channel to read from
+     * @param buf      buffer to fill
+     * @param position position in the file
+     * @throws IOException if the file ends before the buffer is full
+     */
+    private static void read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException("File is too short.");
+            position += read;
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,76 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockNumberingTest {
+    @Test
+    public void testMatchesBFS() {
+        int[][] shapes = {{3, 2}, {3, 7}, {2, 5}, {5, 3}, {1, 4}, {10, 2}};
+        for (int[] shape : shapes) {
+            int width = shape[0];
+            int dimCount = shape[1];
+
+            BlockNumbering numbering = new BlockNumbering(width, dimCount);
+            int[] bfs = bfsOrder(width, dimCount);
+
+            assertEquals(bfs.length, numbering.capacity());
+            for (int blockNumber = 0; blockNumber < bfs.length; ++blockNumber) {
+                assertEquals(bfs[blockNumber], numbering.toIndex(blockNumber));
+                assertEquals(blockNumber, numbering.toBlockNumber(bfs[blockNumber]));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeCapacity() {
+        int width = 3;
+        int dimCount = 30;
+
+        BlockNumbering numbering = new BlockNumbering(width, dimCount);
+
+        assertEquals(Tensor.binPowExact(width, dimCount), numbering.capacity());
+        long[] blockNumbers = {0, 1, Integer.MAX_VALUE, 1L << 40, numbering.capacity() / 2, numbering.capacity() - 1};
+        for (long blockNumber : blockNumbers) {
+            assertEquals(blockNumber, numbering.toBlockNumber(numbering.toIndex(blockNumber)));
+        }
+        assertEquals(numbering.capacity() - 1, numbering.toIndex(numbering.capacity() - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverflow() {
+        new BlockNumbering(3, 41);
+    }
+
+    private static int[] bfsOrder(int width, int dimCount) {
+        int capacity = Tensor.binPow(width, dimCount);
+        boolean[] visited = new boolean[capacity];
+        int[] order = new int[capacity];
+
+        Queue<int[]> queue = new ArrayDeque<>();
+        queue.add(new int[dimCount]);
+
+        int idx = 0;
+        while (!queue.isEmpty()) {
+            int[] cur = queue.poll();
+            int index = Tensor.indexesToIndex(dimCount, width, cur);
+            if (visited[index])
+                continue;
+
+            visited[index] = true;
+            order[idx++] = index;
+
+            for (int i = 0; i < dimCount; ++i) {
+                int[] next = cur.clone();
+                next[i]++;
+                if (next[i] < width)
+                    queue.add(next);
+            }
+        }
+        return order;
+    }
+}
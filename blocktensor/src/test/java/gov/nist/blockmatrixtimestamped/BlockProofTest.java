@@ -0,0 +1,181 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockProofTest {
+    @Test
+    public void testVerify() {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+
+        for (int i = 0; i < bt.size(); ++i) {
+            BlockProof proof = bt.getProof(i);
+            assertEquals(i, proof.getBlockNumber());
+            assertArrayEquals(bt.getHash(i), proof.getBlockHash());
+            for (int varDimIdx = 0; varDimIdx < bt.getDimCount(); ++varDimIdx)
+                assertArrayEquals(bt.getLineHash(proof.getLine(varDimIdx)), proof.getLineHash(varDimIdx));
+            assertTrue(BlockProof.verify(proof, engine, 3, 3, bt::getLineHash));
+            assertTrue(BlockProof.verify(proof, engine, 3, 3, bt.getTimestamp(i), bt.getData(i),
+                    bt::getLineHash));
+            assertTrue(BlockProof.verify(proof, engine, 3, 3, bt.getRootDigest()));
+            assertTrue(BlockProof.verify(proof, engine, 3, 3, bt.getTimestamp(i), bt.getData(i),
+                    bt.getRootDigest()));
+        }
+    }
+
+    @Test
+    public void testReject() {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+        BlockProof proof = bt.getProof(5);
+
+        // different data, unknown lines
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, bt.getTimestamp(5), "Block 6".getBytes(),
+                bt::getLineHash));
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, line -> null));
+
+        // the proof no longer matches the line hashes once a block on its lines is erased
+        byte[] root = bt.getRootDigest();
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, bt.getTimestamp(5), "Block 6".getBytes(), root));
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, new byte[root.length]));
+
+        bt.erase(5);
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, bt::getLineHash));
+        assertFalse(BlockProof.verify(proof, engine, 3, 3, bt.getRootDigest()));
+        assertTrue(BlockProof.verify(bt.getProof(5), engine, 3, 3, bt.getRootDigest()));
+        assertTrue(BlockProof.verify(bt.getProof(5), engine, 3, 3, bt::getLineHash));
+    }
+
+    @Test
+    public void testRejectShape() {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+        BlockProof proof = bt.getProof(5);
+
+        // a valid proof, checked against a different trusted shape
+        assertFalse(BlockProof.verify(proof, engine, 2, 3, bt.getRootDigest()));
+        assertFalse(BlockProof.verify(proof, engine, 3, 2, bt::getLineHash));
+
+        // line 0 holds the cells 0, 9 and 18; its hashes are also a consistent proof of block 0 of a 3x1 tensor
+        BlockNumbering numbering = new BlockNumbering(3, 3);
+        byte[][] others = {bt.getHash((int) numbering.toBlockNumber(9)), bt.getHash((int) numbering.toBlockNumber(18))};
+        BlockProof tampered = new BlockProof(0, 3, 1, bt.getHash(0), new byte[][][]{others},
+                new byte[][]{bt.getLineHash(0)}, new byte[][][]{{}});
+        assertTrue(BlockProof.verify(tampered, engine, 3, 1, bt::getLineHash));
+        assertFalse(BlockProof.verify(tampered, engine, 3, 3, bt::getLineHash));
+        assertFalse(BlockProof.verify(tampered, engine, 3, 3, bt.getRootDigest()));
+        assertFalse(BlockProof.verify(new BlockProof(200, 3, 3, proof.getBlockHash(), new byte[3][][],
+                new byte[3][], new byte[3][][]), engine, 3, 3, bt.getRootDigest()));
+    }
+
+    @Test
+    public void testBytes() {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+        BlockProof proof = bt.getProof(7);
+
+        BlockProof decoded = BlockProof.fromBytes(proof.toBytes());
+        assertEquals(7, decoded.getBlockNumber());
+        assertArrayEquals(proof.getBlockHash(), decoded.getBlockHash());
+        for (int varDimIdx = 0; varDimIdx < 3; ++varDimIdx) {
+            assertArrayEquals(proof.getOtherHashes(varDimIdx), decoded.getOtherHashes(varDimIdx));
+            assertArrayEquals(proof.getMerklePath(varDimIdx), decoded.getMerklePath(varDimIdx));
+        }
+        assertTrue(BlockProof.verify(decoded, engine, 3, 3, bt.getTimestamp(7), bt.getData(7), bt.getRootDigest()));
+
+        byte[] bytes = proof.toBytes();
+        for (byte[] malformed : new byte[][]{new byte[0], Arrays.copyOf(bytes, bytes.length - 1),
+                Arrays.copyOf(bytes, bytes.length + 1)}) {
+            try {
+                BlockProof.fromBytes(malformed);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // a huge width must not allocate
+        ByteBuffer.wrap(bytes).putInt(2 * Integer.BYTES, Integer.MAX_VALUE);
+        try {
+            BlockProof.fromBytes(bytes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMalformed() {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+        byte[] root = bt.getRootDigest();
+        BlockProof proof = bt.getProof(5);
+        byte[][][] others = {proof.getOtherHashes(0), proof.getOtherHashes(1), proof.getOtherHashes(2)};
+        byte[][] lines = {proof.getLineHash(0), proof.getLineHash(1), proof.getLineHash(2)};
+        byte[][][] paths = {proof.getMerklePath(0), proof.getMerklePath(1), proof.getMerklePath(2)};
+        assertTrue(BlockProof.verify(new BlockProof(5, 3, 3, proof.getBlockHash(), others, lines, paths), engine, 3,
+                3, root));
+
+        byte[][][] nullOther = {others[0], {others[1][0], null}, others[2]};
+        assertFalse(BlockProof.verify(new BlockProof(5, 3, 3, proof.getBlockHash(), nullOther, lines, paths), engine,
+                3, 3, root));
+        byte[][][] shortPath = {paths[0], {Arrays.copyOf(paths[1][0], 16)}, paths[2]};
+        assertFalse(BlockProof.verify(new BlockProof(5, 3, 3, proof.getBlockHash(), others, lines, shortPath),
+                engine, 3, 3, root));
+        assertFalse(BlockProof.verify(new BlockProof(5, 3, 3, null, others, lines, paths), engine, 3, 3,
+                bt::getLineHash));
+        assertFalse(BlockProof.verify(new BlockProof(5, 3, 3, proof.getBlockHash(), others,
+                new byte[][]{lines[0], null, lines[2]}, paths), engine, 3, 3, bt::getLineHash));
+        assertFalse(BlockProof.verify(new BlockProof(5, 3, 3, proof.getBlockHash(), others, lines,
+                new byte[][][]{paths[0], null, paths[2]}), engine, 3, 3, root));
+    }
+
+    @Test
+    public void testProofDuringWrites() throws Exception {
+        BlockTensor bt = new BlockTensor(4, 3);
+        for (int i = 0; i < 64; ++i)
+            bt.add(("Block " + i).getBytes());
+        HashEngine engine = bt.getHashEngine();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicBoolean done = new AtomicBoolean();
+        // the writer modifies blocks on the lines of the proven block
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 0; !done.get(); ++i)
+                bt.set(i % 4 * 4, ("Block " + i).getBytes());
+        });
+        try {
+            for (int i = 0; i < 2000; ++i) {
+                BlockProof proof = bt.getProof(0);
+                byte[] root = MerkleTree.rootOf(proof.getLineHash(0), proof.getLine(0), 48, proof.getMerklePath(0),
+                        engine);
+                assertTrue(BlockProof.verify(proof, engine, 4, 3, root));
+            }
+        } finally {
+            done.set(true);
+            writer.get();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlockTensorSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        BlockTensor bt = new BlockTensor(4, 3, SecurityUtil.BLAKE2B_256);
+        for (int i = 0; i < 50; ++i)
+            bt.add(("Block " + i).getBytes());
+        bt.erase(7);
+        Path file = folder.getRoot().toPath().resolve("bt.snapshot");
+        BlockTensorSnapshot.write(bt, file);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        BlockTensor copy = BlockTensorSnapshot.read(file, pool);
+        pool.shutdown();
+        assertEquals(bt.getWidth(), copy.getWidth());
+        assertEquals(bt.getDimCount(), copy.getDimCount());
+        assertEquals(bt.size(), copy.size());
+        assertEquals(bt.getOriginTimestamp(), copy.getOriginTimestamp());
+        assertSame(SecurityUtil.BLAKE2B_256, copy.getHashEngine());
+        for (int i = 0; i < bt.size(); ++i) {
+            assertArrayEquals(bt.getData(i), copy.getData(i));
+            assertEquals(bt.getTimestamp(i), copy.getTimestamp(i));
+            assertArrayEquals(bt.getHash(i), copy.getHash(i));
+        }
+        assertTrue(copy.isValid());
+
+        // the copy can be modified as usual
+        copy.add("Block 50".getBytes());
+        assertTrue(copy.isValid());
+
+        // a transferred snapshot reads the same
+        Path backup = folder.getRoot().toPath().resolve("backup.snapshot");
+        try (FileChannel channel = FileChannel.open(backup, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            BlockTensorSnapshot.transfer(file, channel);
+        }
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(backup));
+        assertEquals(bt.size(), BlockTensorSnapshot.read(backup).size());
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        BlockTensor bt = new BlockTensor(3, 3, SecurityUtil.SHA256, Compression.DEFLATE_HASH_COMPRESSED);
+        for (int i = 0; i < 20; ++i)
+            bt.add(("Block " + i).repeat(50).getBytes());
+        Path file = folder.getRoot().toPath().resolve("bt.snapshot");
+        BlockTensorSnapshot.write(bt, file);
+
+        BlockTensor copy = BlockTensorSnapshot.read(file);
+        assertEquals(Compression.DEFLATE_HASH_COMPRESSED, copy.getCompression());
+        for (int i = 0; i < bt.size(); ++i) {
+            assertArrayEquals(bt.getData(i), copy.getData(i));
+            assertArrayEquals(bt.getHash(i), copy.getHash(i));
+        }
+        assertTrue(copy.isValid());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        BlockTensor bt = new BlockTensor(2, 2);
+        Path file = folder.getRoot().toPath().resolve("bt.snapshot");
+        BlockTensorSnapshot.write(bt, file);
+        BlockTensor copy = BlockTensorSnapshot.read(file);
+        assertEquals(0, copy.size());
+        assertEquals(bt.getOriginTimestamp(), copy.getOriginTimestamp());
+        assertTrue(copy.isValid());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupted() throws IOException {
+        BlockTensor bt = new BlockTensor(3, 3);
+        for (int i = 0; i < 10; ++i)
+            bt.add(("Block " + i).getBytes());
+        Path file = folder.getRoot().toPath().resolve("bt.snapshot");
+        BlockTensorSnapshot.write(bt, file);
+
+        // change one byte of the data of block 0
+        byte[] bytes = Files.readAllBytes(file);
+        int dataOffset = BlockTensorSnapshot.HEADER_SIZE + "SHA-256".length()
+                + BlockTensorSnapshot.RECORD_HEADER_SIZE;
+        assertEquals('B', bytes[dataOffset]);
+        bytes[dataOffset] = 'b';
+        Files.write(file, bytes);
+        BlockTensorSnapshot.read(file);
+    }
+}
@@ -0,0 +1,201 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockTensorSyncTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDiff() {
+        BlockTensor source = new BlockTensor(4, 3, SecurityUtil.SHA256, 0);
+        BlockTensor target = new BlockTensor(4, 3, SecurityUtil.SHA256, 0);
+        for (int i = 0; i < 40; ++i)
+            source.add(("Block " + i).getBytes());
+
+        assertEquals(40, BlockTensorSync.pull(target, source));
+        assertArrayEquals(source.getRootDigest(), target.getRootDigest());
+        assertArrayEquals(new int[0], BlockTensorSync.diff(target, source));
+
+        source.set(3, "Block 3'".getBytes());
+        source.set(17, "Block 17'".getBytes());
+        source.erase(30);
+        source.add("Block 40".getBytes());
+        source.add("Block 41".getBytes());
+        assertArrayEquals(new int[]{3, 17, 30, 40, 41}, BlockTensorSync.diff(target, source));
+        assertArrayEquals(new int[]{3, 17, 30, 40, 41}, BlockTensorSync.diff(source, target));
+
+        assertEquals(5, BlockTensorSync.pull(target, source));
+        assertArrayEquals(source.getRootDigest(), target.getRootDigest());
+        assertEquals("Block 17'", new String(target.getData(17)));
+        assertEquals(source.getTimestamp(30), target.getTimestamp(30));
+        assertEquals(0, BlockTensorSync.pull(target, source));
+    }
+
+    @Test
+    public void testPullOverSocket() throws Exception {
+        BlockTensor source = new BlockTensor(3, 4, SecurityUtil.SHA256, 0);
+        BlockTensor target = new BlockTensor(3, 4, SecurityUtil.SHA256, 0);
+        for (int i = 0; i < 60; ++i)
+            source.add(("Block " + i).getBytes());
+        BlockTensorSync.pull(target, source);
+        for (int i = 0; i < 60; i += 7)
+            source.set(i, ("Block " + i + "'").getBytes());
+        source.add("Block 60".getBytes());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            for (int expected : new int[]{10, 0}) {
+                Future<?> served = executor.submit(() -> {
+                    try (SocketChannel channel = server.accept()) {
+                        BlockTensorSync.serve(source, channel, channel);
+                    }
+                    return null;
+                });
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                    assertEquals(expected, BlockTensorSync.pull(target, channel, channel));
+                }
+                served.get();
+                assertArrayEquals(source.getRootDigest(), target.getRootDigest());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDescent() throws Exception {
+        BlockTensor source = new BlockTensor(16, 3, SecurityUtil.SHA256, 0);
+        BlockTensor target = new BlockTensor(16, 3, SecurityUtil.SHA256, 0);
+        for (int i = 0; i < 4096; ++i)
+            source.add(("Block " + i).getBytes());
+        BlockTensorSync.pull(target, source);
+        source.set(1234, "Block 1234'".getBytes());
+
+        Pipe requests = Pipe.open();
+        Pipe answers = Pipe.open();
+        AtomicLong received = new AtomicLong();
+        ReadableByteChannel counting = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int read = answers.source().read(dst);
+                received.addAndGet(Math.max(read, 0));
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return answers.source().isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                answers.source().close();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> served = executor.submit(() -> {
+                BlockTensorSync.serve(source, requests.source(), answers.sink());
+                return null;
+            });
+            assertEquals(1, BlockTensorSync.pull(target, counting, requests.sink()));
+            served.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(source.getRootDigest(), target.getRootDigest());
+        // only the paths to the three lines through the block, not the 768 line hashes
+        assertTrue(received.get() < 768 * 32 / 10);
+    }
+
+    @Test
+    public void testCorruptedLength() throws Exception {
+        BlockTensor target = new BlockTensor(2, 2, SecurityUtil.SHA256, 0);
+        // a source answering that all nodes differ, then with a block longer than any data
+        ByteBuffer answer = ByteBuffer.allocate(1024);
+        answer.putInt(2).putInt(1);
+        answer.put(new byte[2 * 32]).put(new byte[4 * 32]);
+        answer.putInt(1).putInt(0).putLong(0).putInt(Compression.MAX_DATA_LENGTH + 1);
+        answer.flip();
+        Pipe requests = Pipe.open();
+        Pipe answers = Pipe.open();
+        answers.sink().write(answer);
+        try {
+            BlockTensorSync.pull(target, answers.source(), requests.sink());
+            fail();
+        } catch (IOException e) {
+            assertEquals("Corrupted block 0.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPullIntoDurable() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        byte[] root;
+        try (DurableBlockTensor target = DurableBlockTensor.create(file, 3, 3)) {
+            BlockTensor source = new BlockTensor(3, 3, SecurityUtil.SHA256, target.getOriginTimestamp());
+            for (int i = 0; i < 20; ++i)
+                source.add(("Block " + i).getBytes());
+            assertEquals(20, BlockTensorSync.pull(target, source));
+            root = target.getRootDigest();
+        }
+        // the copied blocks are logged with their timestamps
+        try (DurableBlockTensor reopened = DurableBlockTensor.open(file)) {
+            assertArrayEquals(root, reopened.getRootDigest());
+        }
+    }
+
+    @Test
+    public void testNotReplicas() throws Exception {
+        BlockTensor source = new BlockTensor(3, 3, SecurityUtil.SHA256, 0);
+        BlockTensor target = new BlockTensor(3, 3, SecurityUtil.SHA256, 1);
+        try {
+            BlockTensorSync.diff(target, source);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Pipe requests = Pipe.open();
+        Pipe answers = Pipe.open();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> served = executor.submit(() -> {
+                BlockTensorSync.serve(source, requests.source(), answers.sink());
+                return null;
+            });
+            try {
+                BlockTensorSync.pull(target, answers.source(), requests.sink());
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            served.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
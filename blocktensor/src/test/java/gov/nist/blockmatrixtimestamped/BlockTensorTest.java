@@ -3,10 +3,30 @@ package gov.nist.blockmatrixtimestamped;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
 import java.security.Security;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BlockTensorTest {
     @Before
@@ -131,10 +151,509 @@ public class BlockTensorTest {
         assertEquals(new String(bt.getData(b2)), "Second");
     }
 
+    @Test
+    public void testAddAll() {
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 50; ++i)
+            data.add(("Block " + i).getBytes());
+
+        BlockTensor expected = fixedTimestampTensor();
+        for (byte[] d : data)
+            expected.add(d);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (ForkJoinPool p : new ForkJoinPool[]{null, pool}) {
+                BlockTensor bt = fixedTimestampTensor();
+                bt.add("First".getBytes());
+                assertEquals(1, bt.addAll(data.subList(1, data.size()), p));
+                bt.set(0, data.get(0));
+
+                assertEquals(data.size(), bt.size());
+                assertTrue(bt.isValid());
+                for (int i = 0; i < data.size(); ++i) {
+                    assertArrayEquals(data.get(i), bt.getData(i));
+                    assertArrayEquals(expected.getHash(i), bt.getHash(i));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSetAll() {
+        BlockTensor bt = fixedTimestampTensor();
+        bt.add("A".getBytes());
+        bt.add("B".getBytes());
+
+        // overwrite, erase, append, and overwrite the appended block in the same batch
+        byte[][] old = bt.setAll(new int[]{1, 0, 2, 2},
+                new byte[][]{"C".getBytes(), null, "D".getBytes(), "E".getBytes()}, ForkJoinPool.commonPool());
+
+        assertEquals("B", new String(old[0]));
+        assertEquals("A", new String(old[1]));
+        assertEquals("", new String(old[2]));
+        assertEquals("D", new String(old[3]));
+        assertEquals(3, bt.size());
+        assertEquals("", new String(bt.getData(0)));
+        assertEquals("C", new String(bt.getData(1)));
+        assertEquals("E", new String(bt.getData(2)));
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testSetAllOutOfBounds() {
+        BlockTensor bt = new BlockTensor(2, 2);
+        bt.add("A".getBytes());
+        try {
+            bt.setAll(new int[]{0, 2}, new byte[][]{"B".getBytes(), "C".getBytes()});
+        } catch (IndexOutOfBoundsException e) {
+            // nothing is modified
+            assertEquals("A", new String(bt.getData(0)));
+            assertEquals(1, bt.size());
+            assertTrue(bt.isValid());
+            return;
+        }
+        throw new AssertionError("Expected IndexOutOfBoundsException");
+    }
+
+    @Test
+    public void testIsValidParallel() {
+        TamperingHashEngine engine = new TamperingHashEngine();
+        BlockTensor bt = new BlockTensor(3, 8, engine);
+        for (int i = 0; i < 2000; ++i)
+            bt.add(("Block " + i).getBytes());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertTrue(bt.isValid(pool));
+            // every recalculated hash now differs from the stored one
+            engine.tampered = true;
+            assertFalse(bt.isValid(pool));
+            assertFalse(bt.isValid());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateIncremental() {
+        TamperingHashEngine engine = new TamperingHashEngine();
+        BlockTensor bt = new BlockTensor(3, 4, engine);
+        for (int i = 0; i < 50; ++i)
+            bt.add(("Block " + i).getBytes());
+
+        assertEquals(50, bt.getModifiedBlockCount());
+        assertTrue(bt.validateIncremental());
+        assertEquals(0, bt.getModifiedBlockCount());
+
+        bt.set(7, "Changed".getBytes());
+        assertEquals(1, bt.getModifiedBlockCount());
+        engine.tampered = true;
+        assertFalse(bt.validateIncremental());
+        // the failed blocks are checked again next time
+        assertEquals(1, bt.getModifiedBlockCount());
+        engine.tampered = false;
+        assertTrue(bt.validateIncremental());
+
+        // unmodified blocks are only checked by the periodic full validation
+        engine.tampered = true;
+        assertTrue(bt.validateIncremental());
+        bt.setFullValidationInterval(2);
+        assertFalse(bt.validateIncremental());
+        engine.tampered = false;
+        assertTrue(bt.validateIncremental());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        int threads = 8;
+        int perThread = 500;
+        BlockTensor bt = new BlockTensor(3, 9);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<int[]>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    int[] blockNumbers = new int[perThread];
+                    for (int i = 0; i < perThread; ++i) {
+                        blockNumbers[i] = bt.add((thread + ":" + i).getBytes());
+                        // overwrite an earlier block of the same thread now and then
+                        if (i % 10 == 9)
+                            bt.set(blockNumbers[i - 5], (thread + ":" + (i - 5)).getBytes());
+                    }
+                    return blockNumbers;
+                }));
+            }
+
+            Set<Integer> seen = new HashSet<>();
+            for (int t = 0; t < threads; ++t) {
+                int[] blockNumbers = futures.get(t).get();
+                for (int i = 0; i < perThread; ++i) {
+                    assertTrue(seen.add(blockNumbers[i]));
+                    assertEquals(t + ":" + i, new String(bt.getData(blockNumbers[i])));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(threads * perThread, bt.size());
+        assertTrue(bt.isValid());
+        // the lazily updated root digest is the one of the whole tree built from the same blocks
+        assertArrayEquals(copy(bt).getRootDigest(), bt.getRootDigest());
+    }
+
+    @Test
+    public void testConcurrentAddAll() throws Exception {
+        int threads = 4;
+        int batches = 100;
+        BlockTensor bt = new BlockTensor(3, 9);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    // batches race with single adds, neither may overwrite the blocks of the other
+                    for (int i = 0; i < batches; ++i) {
+                        if (thread % 2 == 0) {
+                            bt.add((thread + ":" + i).getBytes());
+                        } else {
+                            int first = bt.addAll(Arrays.asList((thread + ":" + i + "a").getBytes(),
+                                    (thread + ":" + i + "b").getBytes()));
+                            assertEquals(thread + ":" + i + "a", new String(bt.getData(first)));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < bt.size(); ++i)
+            assertTrue(seen.add(new String(bt.getData(i))));
+        assertEquals(threads / 2 * batches * 3, bt.size());
+    }
+
+    @Test
+    public void testRootDigest() {
+        BlockTensor bt = fixedTimestampTensor();
+        BlockTensor other = fixedTimestampTensor();
+        assertEquals(bt.getHashEngine().getDigestLength(), bt.getRootDigest().length);
+        assertArrayEquals(bt.getRootDigest(), other.getRootDigest());
+
+        for (int i = 0; i < 30; ++i)
+            bt.add(("Block " + i).getBytes());
+        byte[] root = bt.getRootDigest();
+        assertFalse(Arrays.equals(root, other.getRootDigest()));
+        assertArrayEquals(root, bt.getRootDigest());
+
+        // the same blocks written as one batch give the same root
+        int[] blockNumbers = new int[30];
+        byte[][] data = new byte[30][];
+        for (int i = 0; i < 30; ++i) {
+            blockNumbers[i] = i;
+            data[i] = ("Block " + i).getBytes();
+        }
+        other.setAll(blockNumbers, data);
+        assertArrayEquals(root, other.getRootDigest());
+
+        other.erase(7);
+        assertFalse(Arrays.equals(root, other.getRootDigest()));
+        bt.erase(7);
+        assertArrayEquals(bt.getRootDigest(), other.getRootDigest());
+        assertArrayEquals(copy(bt).getRootDigest(), bt.getRootDigest());
+    }
+
+    @Test
+    public void testReadersSeeWholeBlocks() throws Exception {
+        BlockTensor bt = new BlockTensor(3, 4);
+        bt.add("0".getBytes());
+
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i < 20000; ++i)
+                bt.set(0, Integer.toString(i).getBytes());
+        });
+        writer.start();
+        // each copy has the data, timestamp and hash of one write
+        while (writer.isAlive()) {
+            Block b = bt.getBlock(0);
+            assertArrayEquals(b.calculateHash(), b.getHash());
+        }
+        writer.join();
+
+        assertEquals("19999", new String(bt.getData(0)));
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testEraseAll() {
+        BlockTensor bt = fixedTimestampTensor();
+        BlockTensor expected = fixedTimestampTensor();
+        for (int i = 0; i < 40; ++i) {
+            bt.add(("Block " + i).getBytes());
+            expected.add(("Block " + i).getBytes());
+        }
+        for (int blockNumber : new int[]{3, 9, 27})
+            expected.erase(blockNumber);
+
+        EraseRecord record = bt.eraseAll(Arrays.asList(27, 3, 9, 3));
+        assertArrayEquals(new int[]{3, 9, 27}, record.getBlockNumbers());
+        assertEquals(42, record.getTimestamp());
+        assertEquals("Block 3Block 9Block 27".length(), record.getErasedBytes());
+        assertArrayEquals(expected.getRootDigest(), record.getRootDigest());
+        assertArrayEquals(expected.getRootDigest(), bt.getRootDigest());
+        assertEquals(0, bt.getData(9).length);
+        assertTrue(bt.isValid());
+
+        try {
+            bt.eraseAll(Arrays.asList(5, 40));
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // nothing is erased
+            assertEquals("Block 5", new String(bt.getData(5)));
+        }
+    }
+
+    @Test
+    public void testEraseIf() {
+        BlockTensor bt = new BlockTensor(3, 9);
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i)
+            data.add(("Block " + i).getBytes());
+        bt.addAll(data);
+
+        // more blocks than one erase batch
+        EraseRecord record = bt.eraseIf(block -> block.getData()[block.getData().length - 1] < '5');
+        assertTrue(record.getBlockCount() > BlockTensor.ERASE_BATCH);
+        assertEquals(5000, record.getBlockCount());
+        for (int i = 0; i < 10000; ++i)
+            assertEquals(i % 10 < 5, bt.getData(i).length == 0);
+        assertArrayEquals(copy(bt).getRootDigest(), record.getRootDigest());
+        assertTrue(bt.isValid());
+        assertEquals(0, bt.eraseIf(block -> false).getBlockCount());
+    }
+
+    @Test
+    public void testDeduplication() {
+        BlockTensor bt = new BlockTensor(3, 4, SecurityUtil.SHA256, true);
+        for (int i = 0; i < 50; ++i)
+            bt.add(("Template " + i % 5).getBytes());
+        PayloadStore payloads = bt.getPayloadStore();
+        assertEquals(5, payloads.size());
+        assertEquals(5 * "Template 0".length(), payloads.storedBytes());
+        assertTrue(bt.isValid());
+
+        // the old data of a shared array is a copy, modifying it does not affect other blocks
+        byte[] old = bt.set(0, "Other".getBytes());
+        old[0] = 'X';
+        assertEquals("Template 0", new String(bt.getData(5)));
+        assertEquals(6, payloads.size());
+
+        List<Integer> blockNumbers = new ArrayList<>();
+        for (int i = 1; i < 50; i += 5)
+            blockNumbers.add(i);
+        bt.eraseAll(blockNumbers);
+        assertEquals(5, payloads.size());
+        bt.setAll(new int[]{2, 3, 50}, new byte[][]{"Other".getBytes(), "Other".getBytes(), "Other".getBytes()});
+        assertEquals(5, payloads.size());
+        assertEquals("Other", new String(bt.getData(50)));
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testCompression() {
+        int[] blockNumbers = new int[30];
+        long[] timestamps = new long[30];
+        byte[][] data = new byte[30][];
+        for (int i = 0; i < 30; ++i) {
+            blockNumbers[i] = i;
+            timestamps[i] = 1000 + i;
+            data[i] = i == 7 ? new byte[0] : ("Compressible block " + i + " ".repeat(200)).getBytes();
+        }
+        BlockTensor plain = new BlockTensor(3, 4, SecurityUtil.SHA256);
+        BlockTensor deflate = new BlockTensor(3, 4, SecurityUtil.SHA256, Compression.DEFLATE);
+        BlockTensor hashCompressed = new BlockTensor(3, 4, SecurityUtil.SHA256, Compression.DEFLATE_HASH_COMPRESSED);
+        for (BlockTensor bt : Arrays.asList(plain, deflate, hashCompressed))
+            bt.applyBatch(blockNumbers, timestamps, data);
+
+        // hashing the data as given does not change the hashes, hashing the compressed data does
+        for (int i = 0; i < 30; ++i)
+            assertArrayEquals(plain.getHash(i), deflate.getHash(i));
+        assertFalse(Arrays.equals(plain.getHash(0), hashCompressed.getHash(0)));
+        assertArrayEquals(plain.getHash(7), hashCompressed.getHash(7));
+        for (BlockTensor bt : Arrays.asList(deflate, hashCompressed)) {
+            assertTrue(bt.isValid());
+            assertTrue(bt.snapshot().blocks[0].getData().length < data[0].length);
+            for (int i = 0; i < 30; ++i)
+                assertArrayEquals(data[i], bt.getData(i));
+            assertArrayEquals(data[3], bt.getBlock(3).getData());
+            assertArrayEquals(data[4], bt.set(4, "Other".getBytes()));
+            assertArrayEquals(data[5], bt.erase(5));
+            assertArrayEquals("Other".getBytes(), bt.getData(4));
+            assertTrue(bt.isValid());
+            assertArrayEquals(bt.getRootDigest(), copy(bt).getRootDigest());
+        }
+        assertTrue(BlockProof.verify(deflate.getProof(3), SecurityUtil.SHA256, deflate.getWidth(),
+                deflate.getDimCount(), deflate.getBlock(3).getTimestamp(), data[3], deflate.getRootDigest()));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        byte[] data = "Streamed block".repeat(1000).getBytes();
+        BlockTensor bt = fixedTimestampTensor();
+        BlockTensor reference = fixedTimestampTensor();
+        assertEquals(0, bt.add(new ByteArrayInputStream(data), data.length));
+        reference.add(data);
+        assertArrayEquals(reference.getHash(0), bt.getHash(0));
+        assertEquals(1, bt.add(new ByteArrayInputStream(new byte[0]), 0));
+        assertArrayEquals(data, bt.set(0, Channels.newChannel(new ByteArrayInputStream("Other".getBytes())), 5));
+        assertEquals("Other", new String(bt.getData(0)));
+        assertTrue(bt.isValid());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(5, bt.readData(0, Channels.newChannel(out)));
+        assertEquals(0, bt.readData(1, Channels.newChannel(out)));
+        assertEquals("Other", out.toString());
+
+        // a stream that ends early adds nothing
+        try {
+            bt.add(new ByteArrayInputStream(data), data.length + 1);
+            fail();
+        } catch (EOFException e) {
+            assertEquals(2, bt.size());
+        }
+
+        for (Compression compression : Compression.values()) {
+            BlockTensor compressed = new BlockTensor(3, 4, SecurityUtil.SHA256, compression);
+            compressed.add(new ByteArrayInputStream(data), data.length);
+            out.reset();
+            compressed.readData(0, Channels.newChannel(out));
+            assertArrayEquals(data, out.toByteArray());
+            assertTrue(compressed.isValid());
+        }
+    }
+
+    @Test
+    public void testViews() {
+        BlockTensor bt = new BlockTensor(3, 4);
+        bt.add("Viewed".getBytes());
+        ByteBuffer data = bt.getDataView(0);
+        ByteBuffer hash = bt.getHashView(0);
+        assertTrue(data.isReadOnly());
+        assertTrue(hash.isReadOnly());
+        assertEquals(ByteBuffer.wrap("Viewed".getBytes()), data);
+        assertEquals(ByteBuffer.wrap(bt.getHash(0)), hash);
+        try {
+            data.put(0, (byte) 'X');
+            fail();
+        } catch (ReadOnlyBufferException e) {
+            assertEquals("Viewed", new String(bt.getData(0)));
+        }
+
+        // the views keep the block as it was
+        bt.set(0, "Changed".getBytes());
+        assertEquals(ByteBuffer.wrap("Viewed".getBytes()), data);
+        assertFalse(hash.equals(bt.getHashView(0)));
+        assertEquals(0, bt.getDataView(bt.add(null)).remaining());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testStreamingOutOfBounds() throws IOException {
+        BlockTensor bt = new BlockTensor(2, 2);
+        bt.set(1, Channels.newChannel(new ByteArrayInputStream(new byte[1])), 1);
+    }
+
+    @Test
+    public void testBlocksBetween() {
+        // the origin timestamp is 100, the blocks get 101 onwards
+        AtomicLong clock = new AtomicLong(100);
+        BlockTensor bt = new BlockTensor(3, 4) {
+            @Override
+            protected long timestamp() {
+                return clock.getAndIncrement();
+            }
+        };
+        for (int i = 0; i < 10; ++i)
+            bt.add(("Block " + i).getBytes());
+        assertArrayEquals(new int[]{2, 3, 4}, bt.blocksBetween(103, 106));
+        assertArrayEquals(new int[0], bt.blocksBetween(0, 101));
+
+        // blocks set again and erased move to their new timestamps
+        bt.set(3, "Changed".getBytes());
+        bt.eraseAll(Arrays.asList(4, 5));
+        bt.add("Block 10".getBytes());
+        assertArrayEquals(new int[]{2, 6}, bt.blocksBetween(103, 108));
+        assertArrayEquals(new int[]{3, 4, 5, 10}, bt.blocksBetween(111, 200));
+        assertEquals(11, bt.blocksBetween(Long.MIN_VALUE, Long.MAX_VALUE).length);
+
+        // a restored copy has the same index
+        assertArrayEquals(new int[]{3, 4, 5, 10}, copy(bt).blocksBetween(111, 200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlocksBetweenReversed() {
+        new BlockTensor(2, 2).blocksBetween(10, 5);
+    }
+
+    private static BlockTensor copy(BlockTensor bt) {
+        BlockTensor.Snapshot snapshot = bt.snapshot();
+        long[] timestamps = new long[snapshot.blocks.length];
+        byte[][] data = new byte[snapshot.blocks.length][];
+        for (int i = 0; i < timestamps.length; ++i) {
+            timestamps[i] = snapshot.blocks[i].getTimestamp();
+            data[i] = snapshot.blocks[i].getData();
+        }
+        BlockTensor copy = new BlockTensor(bt.getWidth(), bt.getDimCount(), bt.getHashEngine(),
+                bt.getOriginTimestamp(), false, bt.getCompression());
+        copy.restore(timestamps, data, ForkJoinPool.commonPool());
+        return copy;
+    }
+
+    private static BlockTensor fixedTimestampTensor() {
+        return new BlockTensor(3, 4) {
+            @Override
+            protected long timestamp() {
+                return 42;
+            }
+        };
+    }
+
     private void warmUp() {
         long x = 0;
         for (int i = 0; i < 1000000; ++i) {
             x *= Math.sqrt(i) * i + 3;
         }
     }
+
+    /**
+     * SHA-256 engine that can be switched to produce different hashes, to simulate a tampered blocktensor.
+     */
+    private static class TamperingHashEngine implements HashEngine {
+        private volatile boolean tampered;
+
+        @Override
+        public String getAlgorithm() {
+            return "tampering SHA-256";
+        }
+
+        @Override
+        public int getDigestLength() {
+            return SecurityUtil.SHA256.getDigestLength();
+        }
+
+        @Override
+        public Hasher hasher() {
+            Hasher hasher = SecurityUtil.SHA256.hasher();
+            if (tampered)
+                hasher.updateLong(-1);
+            return hasher;
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChangeQueueTest {
+    @Test
+    public void testDrain() {
+        ChangeQueue queue = new ChangeQueue(300);
+        assertArrayEquals(new int[0], queue.drain());
+
+        // far more changes than the initial length, with few distinct numbers
+        for (int i = 0; i < 10000; ++i)
+            queue.add(i * 7 % 100);
+        queue.addAll(new int[]{250, 3, 250});
+        int[] expected = new int[101];
+        for (int i = 0; i < 100; ++i)
+            expected[i] = i;
+        expected[100] = 250;
+        assertEquals(101, queue.count());
+        assertArrayEquals(expected, queue.drain());
+        assertEquals(0, queue.count());
+        assertArrayEquals(new int[0], queue.drain());
+    }
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        ChangeQueue queue = new ChangeQueue(10000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = thread; i < 10000; i += threads.length)
+                    queue.add(i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertArrayEquals(IntStream.range(0, 10000).toArray(), queue.drain());
+    }
+}
@@ -0,0 +1,47 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+    @Test
+    public void testRoundTrip() {
+        byte[] text = "Compressible ".repeat(1000).getBytes();
+        byte[] compressed = Compression.DEFLATE.compress(text);
+        assertTrue(compressed.length < text.length / 10);
+        assertArrayEquals(text, Compression.DEFLATE.decompress(compressed));
+
+        // incompressible data grows, but still round trips
+        byte[] random = new byte[10000];
+        new Random(42).nextBytes(random);
+        assertArrayEquals(random, Compression.DEFLATE_HASH_COMPRESSED.decompress(
+                Compression.DEFLATE_HASH_COMPRESSED.compress(random)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        byte[] compressed = Compression.DEFLATE.compress("Compressible ".repeat(1000).getBytes());
+        Compression.DEFLATE.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLong() {
+        byte[] compressed = Compression.DEFLATE.compress("Compressible".getBytes());
+        ByteBuffer.wrap(compressed).putInt(Compression.MAX_DATA_LENGTH + 1);
+        Compression.DEFLATE.decompress(compressed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongLength() {
+        // a corrupted length within the bound fails when the inflater runs out, without allocating the length
+        byte[] compressed = Compression.DEFLATE.compress("Compressible".getBytes());
+        ByteBuffer.wrap(compressed).putInt(Compression.MAX_DATA_LENGTH);
+        Compression.DEFLATE.decompress(compressed);
+    }
+}
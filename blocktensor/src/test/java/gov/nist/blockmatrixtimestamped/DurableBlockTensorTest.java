@@ -0,0 +1,267 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DurableBlockTensorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecovery() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        int threads = 4;
+        int perThread = 50;
+
+        byte[][] hashes;
+        long originTimestamp;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 4, 4)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; ++i)
+                        bt.add(("Block " + thread + " " + i).getBytes());
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            executor.shutdown();
+
+            bt.erase(3);
+            bt.set(10, "Changed".getBytes());
+            bt.set(bt.size(), "Appended".getBytes());
+            bt.setAll(new int[]{11, 12, 11}, new byte[][]{"a".getBytes(), "b".getBytes(), "c".getBytes()});
+            originTimestamp = bt.getOriginTimestamp();
+            hashes = new byte[bt.size()][];
+            for (int i = 0; i < bt.size(); ++i)
+                hashes[i] = bt.getHash(i);
+            assertTrue(bt.isValid());
+        }
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(threads * perThread + 1, bt.size());
+            assertEquals(originTimestamp, bt.getOriginTimestamp());
+            assertEquals("", new String(bt.getData(3)));
+            assertEquals("Changed", new String(bt.getData(10)));
+            assertEquals("c", new String(bt.getData(11)));
+            assertEquals("Appended", new String(bt.getData(threads * perThread)));
+            for (int i = 0; i < bt.size(); ++i)
+                assertArrayEquals(hashes[i], bt.getHash(i));
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testConcurrentAddAndSet() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        int threads = 4;
+        byte[] root;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 5, 4)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    // sets race with adds of the same block numbers
+                    for (int i = 0; i < 200; ++i) {
+                        if (thread % 2 == 0) {
+                            bt.add(("Added " + thread + " " + i).getBytes());
+                        } else {
+                            int size = bt.size();
+                            bt.set(i % 2 == 0 ? size : Math.max(0, size - 1), ("Set " + thread + " " + i).getBytes());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            executor.shutdown();
+            root = bt.getRootDigest();
+        }
+
+        // every block in memory has been logged last
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertArrayEquals(root, bt.getRootDigest());
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < DurableBlockTensor.REPLAY_BATCH + 10; ++i)
+            data.add(("Block " + i).getBytes());
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 4, 7, SecurityUtil.BLAKE2B_256)) {
+            bt.addAll(data);
+        }
+        // a record cut short by a crash, it has never been acknowledged
+        Files.write(file, new byte[]{0, 0, 0, 9, 0, 0, 0, 1, 2}, StandardOpenOption.APPEND);
+        long size = Files.size(file);
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(size - 9, Files.size(file));
+            assertEquals(data.size(), bt.size());
+            assertEquals(SecurityUtil.BLAKE2B_256, bt.getHashEngine());
+            assertEquals("Block 4100", new String(bt.getData(4100)));
+            assertTrue(bt.isValid());
+            bt.add("After recovery".getBytes());
+        }
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(data.size() + 1, bt.size());
+            assertEquals("After recovery", new String(bt.getData(data.size())));
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testTornBatch() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        byte[] root;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 3, 3)) {
+            for (int i = 0; i < 5; ++i)
+                bt.add(("Block " + i).getBytes());
+            root = bt.getRootDigest();
+            bt.setAll(new int[]{0, 1, 2}, new byte[][]{"a".getBytes(), "b".getBytes(), "c".getBytes()});
+        }
+        // a crash while the batch was written, its first records are complete but the batch is not
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals("Block 0", new String(bt.getData(0)));
+            assertArrayEquals(root, bt.getRootDigest());
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testEraseAllLogged() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        byte[] root;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 3, 3)) {
+            for (int i = 0; i < 20; ++i)
+                bt.add(("Block " + i).getBytes());
+            root = bt.eraseIf(block -> new String(block.getData()).startsWith("Block 1")).getRootDigest();
+        }
+        // the erasure has compacted the log, the erased data is no longer in the file
+        assertFalse(contains(Files.readAllBytes(file), "Block 10".getBytes()));
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(0, bt.getData(10).length);
+            assertEquals("Block 9", new String(bt.getData(9)));
+            assertArrayEquals(root, bt.getRootDigest());
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        byte[] root;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 4, 3)) {
+            for (int i = 0; i < 20; ++i)
+                bt.add(("Block " + i).getBytes());
+            bt.set(7, "Secret".getBytes());
+            for (int i = 0; i < 100; ++i)
+                bt.set(3, ("Version " + i).getBytes());
+            bt.erase(7);
+            long size = Files.size(file);
+            bt.compact();
+            assertTrue(Files.size(file) < size / 2);
+            assertFalse(contains(Files.readAllBytes(file), "Secret".getBytes()));
+
+            // writers run while the log is compacted again and again
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 2; ++t) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20; ++i) {
+                        bt.add(("Added " + thread + " " + i).getBytes());
+                        bt.set(20 + i, ("Set " + thread + " " + i).getBytes());
+                    }
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 10; ++i)
+                    bt.compact();
+                return null;
+            }));
+            for (Future<?> future : futures)
+                future.get();
+            executor.shutdown();
+            bt.add("After compaction".getBytes());
+            root = bt.getRootDigest();
+        }
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(61, bt.size());
+            assertEquals("Version 99", new String(bt.getData(3)));
+            assertEquals("After compaction", new String(bt.getData(60)));
+            assertArrayEquals(root, bt.getRootDigest());
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testStreamedLogged() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        byte[] root;
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 3, 3)) {
+            bt.add(new ByteArrayInputStream("Streamed".getBytes()), "Streamed".length());
+            bt.set(0, Channels.newChannel(new ByteArrayInputStream("Replaced".getBytes())), "Replaced".length());
+            root = bt.getRootDigest();
+        }
+
+        try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+            assertEquals(1, bt.size());
+            assertEquals("Replaced", new String(bt.getData(0)));
+            assertArrayEquals(root, bt.getRootDigest());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testNothingLoggedOnFailure() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bt.log");
+        try (DurableBlockTensor bt = DurableBlockTensor.create(file, 2, 2)) {
+            bt.add("Block 0".getBytes());
+            bt.set(5, "Out of bounds".getBytes());
+        } finally {
+            try (DurableBlockTensor bt = DurableBlockTensor.open(file)) {
+                assertEquals(1, bt.size());
+            }
+        }
+    }
+
+    private static boolean contains(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; ++i) {
+            if (Arrays.equals(bytes, i, i + pattern.length, pattern, 0, pattern.length))
+                return true;
+        }
+        return false;
+    }
+}
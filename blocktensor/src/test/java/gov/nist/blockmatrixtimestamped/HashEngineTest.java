@@ -0,0 +1,96 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HashEngineTest {
+    @Test
+    public void testSha256() throws Exception {
+        byte[] input = "hello there".getBytes();
+
+        assertEquals(32, SecurityUtil.SHA256.getDigestLength());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(input), SecurityUtil.SHA256.hash(input));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(input), SecurityUtil.applySha256(input));
+    }
+
+    @Test
+    public void testHasher() {
+        for (HashEngine engine : new HashEngine[]{SecurityUtil.SHA256, SecurityUtil.SHA512_256,
+                SecurityUtil.BLAKE2B_256, SecurityUtil.BLAKE2S_256}) {
+            assertEquals(32, engine.getDigestLength());
+
+            ByteBuffer whole = ByteBuffer.allocate(Long.BYTES + 5);
+            whole.putLong(42).put("hello".getBytes());
+            byte[] expected = engine.hash(whole.array());
+
+            // the same bytes fed piece by piece, including from a direct buffer
+            Hasher hasher = engine.hasher();
+            hasher.updateLong(42);
+            ByteBuffer direct = ByteBuffer.allocateDirect(5);
+            direct.put("hello".getBytes()).flip();
+            hasher.update(direct);
+            byte[] output = new byte[engine.getDigestLength() + 3];
+            hasher.digest(output, 3);
+            byte[] actual = new byte[engine.getDigestLength()];
+            System.arraycopy(output, 3, actual, 0, actual.length);
+            assertArrayEquals(expected, actual);
+
+            // the hasher is reset after digest
+            hasher.update(whole.array(), 0, whole.capacity());
+            assertArrayEquals(expected, hasher.digest());
+        }
+    }
+
+    @Test
+    public void testGetHashEngine() {
+        assertSame(SecurityUtil.SHA256, SecurityUtil.getHashEngine("sha-256"));
+        assertSame(SecurityUtil.BLAKE2B_256, SecurityUtil.getHashEngine("BLAKE2b-256"));
+        assertEquals(64, SecurityUtil.getHashEngine("SHA-512").getDigestLength());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        SecurityUtil.getHashEngine("no such hash");
+    }
+
+    @Test
+    public void testBlockTensor() {
+        for (HashEngine engine : new HashEngine[]{SecurityUtil.BLAKE2B_256, SecurityUtil.getHashEngine("SHA-512")}) {
+            BlockTensor bt = new BlockTensor(3, 3, engine);
+            OffHeapBlockTensor offHeap = new OffHeapBlockTensor(3, 3, engine);
+            for (int i = 0; i < bt.capacity(); ++i) {
+                bt.add(("Block " + i).getBytes());
+                offHeap.add(("Block " + i).getBytes());
+            }
+            bt.erase(4);
+            offHeap.erase(4);
+
+            assertSame(engine, bt.getHashEngine());
+            assertEquals(engine.getDigestLength(), bt.getHash(0).length);
+            assertEquals(engine.getDigestLength(), offHeap.getHash(0).length);
+            assertArrayEquals(new Block(bt.getTimestamp(1), "Block 1".getBytes(), engine).getHash(), bt.getHash(1));
+            assertTrue(bt.isValid());
+            assertTrue(offHeap.isValid());
+        }
+    }
+
+    @Test
+    public void testBlockMatrix() {
+        BlockMatrix bm = new BlockMatrix(4);
+        bm.add(new Block(1, "hello".getBytes()));
+        bm.add(new Block(2, "there".getBytes()));
+
+        // row 1 holds the second block only, streamed row hashes equal the hash of the zero-padded buffer
+        ByteBuffer buf = ByteBuffer.allocate(BlockTensor.HASH_ARRAY_SIZE * 4);
+        buf.put(new Block(2, "there".getBytes()).getHash());
+        assertArrayEquals(SecurityUtil.applySha256(buf.array()), bm.getRowHashes()[1]);
+        assertTrue(bm.isMatrixValid());
+    }
+}
@@ -0,0 +1,37 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineHashTensorTest {
+    @Test
+    public void testGetSet() {
+        int dimCount = 3;
+        int width = 4;
+
+        LineHashTensor t = new LineHashTensor(dimCount, width);
+
+        assertEquals(dimCount * Tensor.binPow(width, dimCount - 1), t.capacity());
+        assertEquals(BlockTensor.HASH_ARRAY_SIZE, t.getHashSize());
+
+        byte[] hash = SecurityUtil.applySha256("line".getBytes());
+        t.set(hash, 2, 1, 3);
+
+        int line = t.lineIndex(2, 1, 3);
+        assertEquals(2 * width * width + width + 3, line);
+        assertArrayEquals(hash, t.get(line));
+        assertArrayEquals(hash, t.get(2, 1, 3));
+        assertTrue(t.hashEquals(line, hash));
+        assertFalse(t.hashEquals(line - 1, hash));
+        assertArrayEquals(new byte[BlockTensor.HASH_ARRAY_SIZE], t.get(0, 1, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongHashSize() {
+        new LineHashTensor(2, 3).set(0, new byte[16]);
+    }
+}
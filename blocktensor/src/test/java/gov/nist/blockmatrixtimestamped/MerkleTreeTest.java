@@ -0,0 +1,47 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class MerkleTreeTest {
+    @Test
+    public void testUpdate() {
+        // 3 * 5^2 = 75 lines, an odd number of nodes on most levels
+        LineHashTensor leaves = new LineHashTensor(3, 5);
+        for (int line = 0; line < leaves.capacity(); ++line)
+            leaves.set(line, SecurityUtil.applySha256(("line " + line).getBytes()));
+        MerkleTree tree = new MerkleTree(leaves, SecurityUtil.SHA256);
+        byte[] root = tree.root();
+
+        // lines 12 and 13 share their parent
+        int[] dirty = {0, 12, 13, 74};
+        for (int line : dirty)
+            leaves.set(line, SecurityUtil.applySha256(("new line " + line).getBytes()));
+        tree.update(dirty);
+        assertFalse(Arrays.equals(root, tree.root()));
+        // updating only the modified paths gives the root of the whole tree
+        assertArrayEquals(new MerkleTree(leaves, SecurityUtil.SHA256).root(), tree.root());
+    }
+
+    @Test
+    public void testPath() {
+        LineHashTensor leaves = new LineHashTensor(2, 3);
+        for (int line = 0; line < leaves.capacity(); ++line)
+            leaves.set(line, SecurityUtil.applySha256(("line " + line).getBytes()));
+        MerkleTree tree = new MerkleTree(leaves, SecurityUtil.SHA256);
+
+        for (int line = 0; line < leaves.capacity(); ++line) {
+            byte[][] path = tree.path(line);
+            assertArrayEquals(tree.root(), MerkleTree.rootOf(leaves.get(line), line, leaves.capacity(), path,
+                    SecurityUtil.SHA256));
+            // a path of another length does not fit
+            assertNull(MerkleTree.rootOf(leaves.get(line), line, leaves.capacity(),
+                    Arrays.copyOf(path, path.length - 1), SecurityUtil.SHA256));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapBlockTensorTest {
+    @Test
+    public void test2Dim() {
+        int dimCount = 2;
+        int width = 3;
+
+        OffHeapBlockTensor bt = new OffHeapBlockTensor(width, dimCount);
+
+        bt.add("hello".getBytes());
+
+        assertEquals("hello", new String(bt.getData(0)));
+        assertEquals(1, bt.size());
+
+        bt.add("there".getBytes());
+
+        assertEquals("there", new String(bt.getData(1)));
+        assertEquals(2, bt.size());
+
+        assertTrue(bt.isValid());
+
+        assertEquals("hello", new String(bt.erase(0)));
+
+        assertEquals("", new String(bt.getData(0)));
+        assertEquals("there", new String(bt.getData(1)));
+        assertEquals(2, bt.size());
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testNDim() {
+        int dimCount = 7;
+        int width = 3;
+
+        OffHeapBlockTensor bt = new OffHeapBlockTensor(width, dimCount);
+
+        for (int i = 0; i < Tensor.binPow(width, dimCount); ++i) {
+            bt.add(("Block " + i).getBytes());
+
+            assertEquals("Block " + i, new String(bt.getData(i)));
+            assertEquals(i + 1, bt.size());
+        }
+        assertTrue(bt.isValid());
+
+        bt.erase(0);
+        bt.set(5, "Changed".getBytes());
+
+        assertEquals("", new String(bt.getData(0)));
+        assertEquals("Changed", new String(bt.getData(5)));
+        assertEquals(Tensor.binPow(width, dimCount), bt.size());
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testReuseFreedSpace() {
+        OffHeapBlockTensor bt = new OffHeapBlockTensor(4, 2);
+        byte[][] data = new byte[16][];
+        for (int i = 0; i < 16; ++i) {
+            data[i] = new byte[1 << 16];
+            Arrays.fill(data[i], (byte) i);
+            bt.add(data[i]);
+        }
+        // far more replaced bytes than the blocks hold, the arena stays within a few times the blocks
+        Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            int blockNumber = random.nextInt(16);
+            data[blockNumber] = new byte[random.nextInt(1 << 16)];
+            Arrays.fill(data[blockNumber], (byte) i);
+            bt.set(blockNumber, data[blockNumber]);
+            assertTrue(bt.payloadEnd() <= 2 * OffHeapBlockTensor.COMPACTION_THRESHOLD + (1 << 16));
+        }
+        for (int i = 0; i < 16; ++i)
+            assertArrayEquals(data[i], bt.getData(i));
+        assertTrue(bt.isValid());
+
+        bt.compactPayloads();
+        assertEquals(Arrays.stream(data).mapToLong(d -> d.length).sum(), bt.payloadEnd());
+        for (int i = 0; i < 16; ++i)
+            assertArrayEquals(data[i], bt.getData(i));
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testSameHashesAsBlockTensor() {
+        int dimCount = 4;
+        int width = 4;
+
+        BlockTensor bt = new BlockTensor(width, dimCount) {
+            @Override
+            protected long timestamp() {
+                return 42;
+            }
+        };
+        OffHeapBlockTensor obt = new OffHeapBlockTensor(width, dimCount) {
+            @Override
+            protected long timestamp() {
+                return 42;
+            }
+        };
+
+        for (int i = 0; i < 100; ++i) {
+            byte[] data = ("Block " + i).getBytes();
+            assertEquals(bt.add(data), obt.add(data));
+        }
+        bt.erase(17);
+        obt.erase(17);
+
+        for (int i = 0; i < 100; ++i) {
+            assertArrayEquals(bt.getHash(i), obt.getHash(i));
+            assertEquals(bt.getTimestamp(i), obt.getTimestamp(i));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testFull() {
+        OffHeapBlockTensor bt = new OffHeapBlockTensor(2, 2);
+        for (int i = 0; i < 5; ++i)
+            bt.add(new byte[]{(byte) i});
+    }
+}
@@ -0,0 +1,29 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadStoreTest {
+    @Test
+    public void testReferences() {
+        PayloadStore store = new PayloadStore();
+        byte[] first = store.intern("payload".getBytes());
+        byte[] second = store.intern("payload".getBytes());
+        assertSame(first, second);
+        assertEquals(1, store.size());
+        assertEquals("payload".length(), store.storedBytes());
+
+        // an equal array that was not interned holds no reference
+        assertFalse(store.release("payload".getBytes()));
+        assertEquals(1, store.size());
+
+        assertTrue(store.release(first));
+        assertFalse(store.release(second));
+        assertEquals(0, store.size());
+        assertFalse(store.release(first));
+    }
+}
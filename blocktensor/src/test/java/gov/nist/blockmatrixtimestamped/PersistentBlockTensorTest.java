@@ -0,0 +1,161 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PersistentBlockTensorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopen() throws IOException {
+        Path dir = folder.getRoot().toPath().resolve("bt");
+        int width = 3;
+        int dimCount = 5;
+
+        byte[][] hashes = new byte[100][];
+        long[] timestamps = new long[100];
+        try (PersistentBlockTensor bt = PersistentBlockTensor.create(dir, width, dimCount)) {
+            for (int i = 0; i < 100; ++i)
+                bt.add(("Block " + i).getBytes());
+            bt.erase(3);
+            bt.set(10, "Changed".getBytes());
+            for (int i = 0; i < 100; ++i) {
+                hashes[i] = bt.getHash(i);
+                timestamps[i] = bt.getTimestamp(i);
+            }
+            assertTrue(bt.isValid());
+        }
+
+        try (PersistentBlockTensor bt = PersistentBlockTensor.open(dir)) {
+            assertEquals(width, bt.getWidth());
+            assertEquals(dimCount, bt.getDimCount());
+            assertEquals(100, bt.size());
+            assertSame(SecurityUtil.SHA256, bt.getHashEngine());
+            assertEquals("", new String(bt.getData(3)));
+            assertEquals("Changed", new String(bt.getData(10)));
+            assertEquals("Block 99", new String(bt.getData(99)));
+            for (int i = 0; i < 100; ++i) {
+                assertArrayEquals(hashes[i], bt.getHash(i));
+                assertEquals(timestamps[i], bt.getTimestamp(i));
+            }
+            assertTrue(bt.isValid());
+
+            bt.add("Block 100".getBytes());
+        }
+
+        try (PersistentBlockTensor bt = PersistentBlockTensor.open(dir)) {
+            assertEquals(101, bt.size());
+            assertEquals("Block 100", new String(bt.getData(100)));
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testCompactAfterReopen() throws IOException {
+        Path dir = folder.getRoot().toPath().resolve("bt");
+        byte[] data = new byte[1 << 18];
+        try (PersistentBlockTensor bt = PersistentBlockTensor.create(dir, 2, 2)) {
+            for (int i = 0; i < 4; ++i)
+                bt.add(data);
+            for (int i = 0; i < 3; ++i)
+                bt.set(i, data);
+            assertEquals(7 << 18, bt.payloadEnd());
+        }
+
+        // the bytes freed before the reopen count towards the compaction
+        try (PersistentBlockTensor bt = PersistentBlockTensor.open(dir)) {
+            bt.set(3, "Block 3".getBytes());
+            bt.set(0, "Block 0".getBytes());
+            assertEquals((2 << 18) + 14, bt.payloadEnd());
+        }
+
+        try (PersistentBlockTensor bt = PersistentBlockTensor.open(dir)) {
+            assertEquals("Block 0", new String(bt.getData(0)));
+            assertArrayEquals(data, bt.getData(1));
+            assertArrayEquals(data, bt.getData(2));
+            assertEquals("Block 3", new String(bt.getData(3)));
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testOtherHashEngine() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (PersistentBlockTensor bt = PersistentBlockTensor.create(dir, 4, 3, SecurityUtil.BLAKE2B_256)) {
+            bt.add("hello".getBytes());
+        }
+        try (PersistentBlockTensor bt = PersistentBlockTensor.open(dir)) {
+            assertSame(SecurityUtil.BLAKE2B_256, bt.getHashEngine());
+            assertEquals("hello", new String(bt.getData(0)));
+            assertTrue(bt.isValid());
+        }
+    }
+
+    @Test
+    public void testOpenLazily() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PersistentBlockTensor bt = PersistentBlockTensor.create(dir, 3, 4)) {
+            for (int i = 0; i < 50; ++i)
+                bt.add(("Block " + i).getBytes());
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (PersistentBlockTensor bt = PersistentBlockTensor.openLazily(dir)) {
+            assertFalse(bt.isVerified());
+            assertEquals("Block 7", new String(bt.getData(7)));
+            bt.add("Block 50".getBytes());
+            assertTrue(bt.verifyInBackground(executor).get());
+            assertTrue(bt.isVerified());
+        }
+
+        // change the first byte of the payload of block 5, the payloads are stored one after another
+        try (FileChannel channel = FileChannel.open(dir.resolve(PersistentBlockTensor.PAYLOADS_FILE),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("b".getBytes()), "Block 0".length() * 5);
+        }
+        try (PersistentBlockTensor bt = PersistentBlockTensor.openLazily(dir)) {
+            try {
+                bt.getData(5);
+                fail("Corrupted block must not be read.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertFalse(bt.verifyInBackground(executor).get());
+            assertFalse(bt.isVerified());
+        }
+        executor.shutdown();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCreateExisting() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        PersistentBlockTensor.create(dir, 3, 2).close();
+        PersistentBlockTensor.create(dir, 3, 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenNotBlockTensor() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve(PersistentBlockTensor.BLOCKS_FILE), new byte[PersistentBlockTensor.HEADER_SIZE]);
+        Files.write(dir.resolve(PersistentBlockTensor.PAYLOADS_FILE), new byte[0]);
+        PersistentBlockTensor.open(dir);
+    }
+}
@@ -0,0 +1,112 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedBlockTensorTest {
+    @Test
+    public void testRollover() {
+        SegmentedBlockTensor bt = new SegmentedBlockTensor(2, 2);
+        assertEquals(4, bt.getSegmentCapacity());
+        for (int i = 0; i < 10; ++i)
+            assertEquals(i, bt.add(("Block " + i).getBytes()));
+        assertEquals(10, bt.size());
+        assertEquals(3, bt.getSegmentCount());
+        assertEquals("Block 6", new String(bt.getData(6)));
+
+        // set(size(), data) opens a new segment too
+        bt.add("Block 10".getBytes());
+        bt.add("Block 11".getBytes());
+        bt.set(12, "Block 12".getBytes());
+        assertEquals(4, bt.getSegmentCount());
+        assertEquals("Block 12", new String(bt.getData(12)));
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testDigestChain() {
+        SegmentedBlockTensor bt = new SegmentedBlockTensor(2, 2);
+        for (int i = 0; i < 9; ++i)
+            bt.add(("Block " + i).getBytes());
+        byte[] first = bt.getSegmentDigest(0);
+        byte[] second = bt.getSegmentDigest(1);
+
+        // erasing a block of the first segment changes the digests of all following sealed segments
+        assertEquals("Block 1", new String(bt.erase(1)));
+        assertFalse(Arrays.equals(first, bt.getSegmentDigest(0)));
+        assertFalse(Arrays.equals(second, bt.getSegmentDigest(1)));
+        assertTrue(bt.isValid());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSetOutOfBounds() {
+        SegmentedBlockTensor bt = new SegmentedBlockTensor(2, 2);
+        for (int i = 0; i < 4; ++i)
+            bt.add(("Block " + i).getBytes());
+        bt.set(5, "Block 5".getBytes());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        SegmentedBlockTensor bt = new SegmentedBlockTensor(3, 2);
+        int threads = 4;
+        int perThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                List<Long> numbers = new ArrayList<>();
+                for (int i = 0; i < perThread; ++i)
+                    numbers.add(bt.add(("Block " + thread + " " + i).getBytes()));
+                return numbers;
+            }));
+        }
+        Set<Long> numbers = new HashSet<>();
+        for (Future<List<Long>> future : futures)
+            numbers.addAll(future.get());
+        executor.shutdown();
+
+        assertEquals(threads * perThread, numbers.size());
+        assertEquals(threads * perThread, bt.size());
+        assertEquals((threads * perThread + 8) / 9, bt.getSegmentCount());
+        assertTrue(bt.isValid());
+    }
+
+    @Test
+    public void testValidDuringErase() throws Exception {
+        SegmentedBlockTensor bt = new SegmentedBlockTensor(2, 2);
+        for (int i = 0; i < 40; ++i)
+            bt.add(("Block " + i).getBytes());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicBoolean done = new AtomicBoolean();
+        // blocks of sealed segments change while the chain is checked
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 0; !done.get(); i = (i + 1) % 36) {
+                bt.erase(i);
+                bt.set(i, ("Block " + i).getBytes());
+            }
+        });
+        try {
+            for (int i = 0; i < 2000; ++i)
+                assertTrue(bt.isValid());
+        } finally {
+            done.set(true);
+            writer.get();
+            executor.shutdown();
+        }
+    }
+}
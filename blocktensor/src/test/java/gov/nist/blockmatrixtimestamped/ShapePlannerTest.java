@@ -0,0 +1,44 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShapePlannerTest {
+    @Test
+    public void testCandidates() {
+        ShapePlanner planner = new ShapePlanner(1, 0.1, 1);
+        List<ShapePlanner.Shape> shapes = planner.candidates(1000);
+        for (int i = 0; i < shapes.size(); ++i) {
+            ShapePlanner.Shape shape = shapes.get(i);
+            assertTrue(shape.getCapacity() >= 1000);
+            // the smallest width for the dimension count
+            assertTrue(Tensor.binPowExact(shape.getWidth() - 1, shape.getDimCount()) < 1000);
+            if (i > 0)
+                assertTrue(shapes.get(i - 1).getCost() <= shape.getCost());
+        }
+        assertEquals(shapes.get(0).getCost(), planner.plan(1000).getCost(), 0);
+        assertEquals(1, new ShapePlanner(1, 0, 0).plan(1).getCapacity());
+    }
+
+    @Test
+    public void testWorkload() {
+        // frequent mutations favour narrow lines, storage alone favours little overshoot
+        ShapePlanner.Shape mutations = new ShapePlanner(1, 100, 0).plan(100000);
+        ShapePlanner.Shape storage = new ShapePlanner(0, 0, 0).plan(100000);
+        assertTrue(mutations.getMutationCost() < storage.getMutationCost());
+        assertTrue(storage.getStorageCost() <= mutations.getStorageCost());
+
+        BlockTensor bt = mutations.newBlockTensor();
+        assertEquals(mutations.getWidth(), bt.getWidth());
+        assertEquals(mutations.getDimCount(), bt.getDimCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWorkload() {
+        new ShapePlanner(1, -1, 0);
+    }
+}
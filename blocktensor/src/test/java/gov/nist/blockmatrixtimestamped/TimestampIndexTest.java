@@ -0,0 +1,71 @@
+package gov.nist.blockmatrixtimestamped;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TimestampIndexTest {
+    @Test
+    public void testUpdate() {
+        long[] timestamps = {5, 3, 8, 3, 10, 11, 12};
+        IntToLongFunction timestampOf = blockNumber -> timestamps[blockNumber];
+        TimestampIndex index = new TimestampIndex(10);
+        index.changedAll(new int[]{0, 1, 2, 3, 4});
+        assertArrayEquals(new int[]{1, 3, 0, 2, 4}, index.between(0, 100, timestampOf));
+        assertArrayEquals(new int[]{1, 3, 0}, index.between(3, 8, timestampOf));
+        assertArrayEquals(new int[0], index.between(6, 8, timestampOf));
+
+        // blocks set again move, added blocks are appended, blocks queued twice get one entry
+        timestamps[1] = 12;
+        index.changed(6);
+        index.changed(1);
+        index.changed(5);
+        index.changed(1);
+        assertArrayEquals(new int[]{3, 0, 2, 4, 5, 1, 6}, index.between(0, 100, timestampOf));
+        assertArrayEquals(new int[]{5, 1, 6}, index.between(11, 13, timestampOf));
+        assertArrayEquals(new int[]{3}, index.between(Long.MIN_VALUE, 4, timestampOf));
+    }
+
+    @Test
+    public void testQueueStaysCompact() {
+        long[] timestamps = new long[10];
+        IntToLongFunction timestampOf = blockNumber -> timestamps[blockNumber];
+        TimestampIndex index = new TimestampIndex(10);
+        for (int i = 0; i < 100000; ++i) {
+            timestamps[i % 10] = i;
+            index.changed(i % 10);
+        }
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, index.between(0, Long.MAX_VALUE, timestampOf));
+    }
+
+    @Test
+    public void testTombstones() {
+        long[] timestamps = new long[100];
+        IntToLongFunction timestampOf = blockNumber -> timestamps[blockNumber];
+        TimestampIndex index = new TimestampIndex(100);
+        for (int i = 0; i < 100; ++i) {
+            timestamps[i] = i / 2;
+            index.changed(i);
+        }
+        index.between(0, 1, timestampOf);
+
+        // each round sets a few blocks again, some back to an old timestamp, with and without compaction between
+        Random random = new Random(1);
+        for (int round = 0; round < 200; ++round) {
+            for (int i = 0; i < 1 + round % 7; ++i) {
+                int blockNumber = random.nextInt(100);
+                timestamps[blockNumber] = random.nextInt(60);
+                index.changed(blockNumber);
+            }
+            int[] expected = IntStream.range(0, 100).boxed()
+                    .sorted(Comparator.<Integer>comparingLong(b -> timestamps[b]).thenComparingInt(b -> b))
+                    .filter(b -> timestamps[b] >= 10 && timestamps[b] < 40).mapToInt(Integer::intValue).toArray();
+            assertArrayEquals(expected, index.between(10, 40, timestampOf));
+        }
+    }
+}